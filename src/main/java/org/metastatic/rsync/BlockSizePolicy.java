@@ -0,0 +1,138 @@
+/* BlockSizePolicy: choosing a block length from the length of a file.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+/**
+ * A policy for choosing the block length to use for a file, given the
+ * file's length. A policy may be set on a {@link Configuration} with
+ * {@link Configuration.Builder#blockSizePolicy(BlockSizePolicy)}, and
+ * {@link Configuration#forLength(long)} applies it.
+ *
+ * <p>With a fixed block length the number of signatures grows linearly
+ * with the length of the file; with {@link SquareRoot} it grows only as
+ * the square root of it, as does the time spent matching, at the cost
+ * of a little more literal data around each change.</p>
+ */
+public interface BlockSizePolicy
+{
+
+    // Methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Choose a block length.
+     *
+     * @param fileLength The length of the file, in bytes.
+     * @return The block length to use.
+     */
+    int blockLength(long fileLength);
+
+    // Inner classes.
+    // -------------------------------------------------------------------------
+
+    /**
+     * A policy that always chooses the same block length.
+     */
+    class Fixed implements BlockSizePolicy
+    {
+        private final int blockLength;
+
+        /**
+         * @param blockLength The block length.
+         */
+        public Fixed(int blockLength)
+        {
+            if (blockLength <= 0)
+                throw new IllegalArgumentException("block length must be positive");
+            this.blockLength = blockLength;
+        }
+
+        public int blockLength(long fileLength)
+        {
+            return blockLength;
+        }
+    }
+
+    /**
+     * The policy of rsync: the block length is about the square root of
+     * the file length, rounded down to a multiple of 8, and kept within
+     * a minimum and maximum.
+     */
+    class SquareRoot implements BlockSizePolicy
+    {
+        /**
+         * The largest block length rsync uses, 128 kilobytes.
+         */
+        public static final int MAX_BLOCK_LENGTH = 1 << 17;
+
+        private final int minBlockLength;
+        private final int maxBlockLength;
+
+        /**
+         * Create a policy with the same limits as rsync, from {@link
+         * Configuration#BLOCK_LENGTH} to {@link #MAX_BLOCK_LENGTH}.
+         */
+        public SquareRoot()
+        {
+            this(Configuration.BLOCK_LENGTH, MAX_BLOCK_LENGTH);
+        }
+
+        /**
+         * @param minBlockLength The smallest block length to choose.
+         * @param maxBlockLength The largest block length to choose.
+         */
+        public SquareRoot(int minBlockLength, int maxBlockLength)
+        {
+            if (minBlockLength <= 0 || maxBlockLength < minBlockLength)
+                throw new IllegalArgumentException("bad block length limits");
+            this.minBlockLength = minBlockLength;
+            this.maxBlockLength = maxBlockLength;
+        }
+
+        public int blockLength(long fileLength)
+        {
+            if (fileLength <= (long) minBlockLength * minBlockLength)
+                return minBlockLength;
+
+            // c is the largest power of two not above the square root.
+            long c = 1;
+            for (long l = fileLength; (l >>>= 2) != 0; )
+                c <<= 1;
+            if (c >= maxBlockLength)
+                return maxBlockLength;
+
+            // Set each bit, from c down to 8, that keeps the square of
+            // the block length within the file length.
+            long blockLength = 0;
+            do
+            {
+                blockLength |= c;
+                if (fileLength < blockLength * blockLength)
+                    blockLength &= ~c;
+                c >>= 1;
+            } while (c >= 8);
+            return (int) Math.min(Math.max(blockLength, minBlockLength), maxBlockLength);
+        }
+    }
+}
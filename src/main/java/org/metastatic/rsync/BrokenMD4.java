@@ -46,6 +46,8 @@
 
 package org.metastatic.rsync;
 
+import java.security.DigestException;
+
 /**
  * <p>An implementation of Ron Rivest's MD4 message digest algorithm.
  * MD4 was the precursor to the stronger MD5
@@ -136,6 +138,17 @@ public final class BrokenMD4 extends MD4 implements Cloneable
         return digest;
     }
 
+    protected int engineDigest(byte[] out, int off, int len) throws DigestException
+    {
+        if (off < 0 || off + len > out.length)
+        {
+            throw new DigestException();
+        }
+        System.arraycopy(engineDigest(), 0, out, off,
+                Math.min(len, DIGEST_LENGTH));
+        return Math.min(len, DIGEST_LENGTH);
+    }
+
     /**
      * Pad the buffer by appending the byte 0x80, then as many zero bytes
      * to fill the buffer 8 bytes shy of being a multiple of 64 bytes, then
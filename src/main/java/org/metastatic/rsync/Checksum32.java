@@ -34,7 +34,7 @@ package org.metastatic.rsync;
  * @author Casey Marshall
  * @version $Revision$
  */
-public class Checksum32 implements RollingChecksum, Cloneable, java.io.Serializable
+public class Checksum32 implements WindowChecksum, Cloneable, java.io.Serializable
 {
 
     // Constants and variables.
@@ -92,6 +92,12 @@ public class Checksum32 implements RollingChecksum, Cloneable, java.io.Serializa
      */
     protected byte[] new_block;
 
+    /**
+     * Whether {@link #block} holds a copy of the current window. This is
+     * false after {@link #checkNoCopy(byte[], int, int)}.
+     */
+    protected boolean copied;
+
     // Constructors.
     // -----------------------------------------------------------------
 
@@ -112,19 +118,6 @@ public class Checksum32 implements RollingChecksum, Cloneable, java.io.Serializa
         this(0);
     }
 
-    private Checksum32(Checksum32 that)
-    {
-        this.char_offset = that.char_offset;
-        this.a = that.a;
-        this.b = that.b;
-        this.l = that.l;
-        this.k = that.k;
-        this.block = (that.block != null) ? (byte[]) ((byte[]) that.block).clone() : null;
-        this.new_index = that.new_index;
-        this.new_block = (that.new_block != null)
-                ? (byte[]) ((byte[]) that.new_block).clone() : null;
-    }
-
     // Public instance methods.
     // -----------------------------------------------------------------
 
@@ -162,6 +155,8 @@ public class Checksum32 implements RollingChecksum, Cloneable, java.io.Serializa
      */
     public void roll(byte bt)
     {
+        if (!copied)
+            throw new IllegalStateException("no copy of the window; use roll(byte, byte)");
         a -= block[k] + char_offset;
         b -= l * (block[k] + char_offset);
         a += bt + char_offset;
@@ -177,15 +172,41 @@ public class Checksum32 implements RollingChecksum, Cloneable, java.io.Serializa
      */
     public void trim()
     {
+        if (!copied)
+            throw new IllegalStateException("no copy of the window");
         a -= block[k % block.length] + char_offset;
         b -= l * (block[k % block.length] + char_offset);
         k++;
         l--;
     }
 
+    /**
+     * "Roll" the checksum without consulting the internal block. The
+     * caller supplies the byte leaving the window, typically by reading
+     * it back out of its own buffer, so this may be used after either
+     * {@link #check(byte[], int, int)} or {@link #checkNoCopy(byte[],
+     * int, int)}. The internal block is not updated, so afterwards, as
+     * after {@link #checkNoCopy(byte[], int, int)}, {@link #roll(byte)}
+     * and {@link #trim()} may not be used until the next call to {@link
+     * #check(byte[], int, int)}.
+     *
+     * @param out The byte leaving the window.
+     * @param in  The byte entering the window.
+     */
+    public void roll(byte out, byte in)
+    {
+        a -= out + char_offset;
+        b -= l * (out + char_offset);
+        a += in + char_offset;
+        b += a;
+        copied = false;
+    }
+
     /**
      * Update the checksum with an entirely different block, and
-     * potentially a different block length.
+     * potentially a different block length. The block is copied into
+     * internal storage, which is reused if the block length has not
+     * changed since the last call.
      *
      * @param buf The byte array that holds the new block.
      * @param off From whence to begin reading.
@@ -194,31 +215,128 @@ public class Checksum32 implements RollingChecksum, Cloneable, java.io.Serializa
      */
     public void check(byte[] buf, int off, int len)
     {
-        block = new byte[len];
+        checkNoCopy(buf, off, len);
+        if (block == null || block.length != len)
+            block = new byte[len];
         System.arraycopy(buf, off, block, 0, len);
+        copied = true;
+    }
+
+    /**
+     * Update the checksum with an entirely different block, reading it
+     * straight from <code>buf</code> and keeping no copy of it. After
+     * this call only {@link #roll(byte, byte)} may be used to roll the
+     * checksum; {@link #roll(byte)} and {@link #trim()} need the copy
+     * kept by {@link #check(byte[], int, int)}.
+     *
+     * @param buf The byte array that holds the new block.
+     * @param off From whence to begin reading.
+     * @param len The length of the block to read.
+     */
+    public void checkNoCopy(byte[] buf, int off, int len)
+    {
         reset();
-        l = block.length;
+        l = len;
+        int a = 0;
+        int b = 0;
         int i;
 
-        for (i = 0; i < block.length - 4; i += 4)
+        for (i = 0; i < len - 4; i += 4)
         {
-            b += 4 * (a + block[i]) + 3 * block[i + 1] +
-                    2 * block[i + 2] + block[i + 3] + 10 * char_offset;
-            a += block[i] + block[i + 1] + block[i + 2]
-                    + block[i + 3] + 4 * char_offset;
+            b += 4 * (a + buf[off + i]) + 3 * buf[off + i + 1] +
+                    2 * buf[off + i + 2] + buf[off + i + 3] + 10 * char_offset;
+            a += buf[off + i] + buf[off + i + 1] + buf[off + i + 2]
+                    + buf[off + i + 3] + 4 * char_offset;
         }
-        for (; i < block.length; i++)
+        for (; i < len; i++)
         {
-            a += block[i] + char_offset;
+            a += buf[off + i] + char_offset;
             b += a;
         }
+        this.a = a;
+        this.b = b;
+        copied = false;
+    }
+
+    /**
+     * Compute the checksum of every <code>blockLength</code>-byte window
+     * of a region of a byte array. Every window is summed straight from
+     * <code>buf</code> and no copy is kept, so afterwards the checksum
+     * may only be rolled with {@link #roll(byte, byte)} or {@link
+     * #rollWindows(byte[], int, int, int[])}.
+     *
+     * @param buf         The byte array to scan.
+     * @param off         From whence to begin reading.
+     * @param len         The number of bytes to scan.
+     * @param blockLength The window size.
+     * @param sums        Receives the sum of each window.
+     */
+    public void checkWindows(byte[] buf, int off, int len, int blockLength, int[] sums)
+    {
+        if (len < blockLength)
+            throw new IllegalArgumentException("region shorter than the window");
+        checkNoCopy(buf, off, blockLength);
+        int a = this.a;
+        int b = this.b;
+        int n = len - blockLength;
+        sums[0] = (a & 0xffff) | (b << 16);
+        for (int i = 0; i < n; i++)
+        {
+            int out = buf[off + i] + char_offset;
+            a += buf[off + i + blockLength] + char_offset - out;
+            b += a - blockLength * out;
+            sums[i + 1] = (a & 0xffff) | (b << 16);
+        }
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Roll the checksum over a run of bytes, storing the sum of each
+     * window. The bytes leaving the window are read from
+     * <code>buf</code>, the <code>l</code> bytes before each incoming
+     * one, so no copy of the window is needed or kept.
+     *
+     * @param buf  The byte array holding the window and the new bytes.
+     * @param off  The index of the first byte to roll in.
+     * @param len  The number of bytes to roll in.
+     * @param sums Receives the sum after each byte.
+     */
+    public void rollWindows(byte[] buf, int off, int len, int[] sums)
+    {
+        if (off < l)
+            throw new IllegalArgumentException("window not in the buffer");
+        int a = this.a;
+        int b = this.b;
+        int l = this.l;
+        for (int i = 0; i < len; i++)
+        {
+            int out = buf[off + i - l] + char_offset;
+            a += buf[off + i] + char_offset - out;
+            b += a - l * out;
+            sums[i] = (a & 0xffff) | (b << 16);
+        }
+        this.a = a;
+        this.b = b;
+        copied = false;
     }
 
+    /**
+     * Returns a deep copy of this checksum, of the same class; the clone
+     * does not share internal storage with this instance.
+     *
+     * @return The clone.
+     */
     public Object clone()
     {
         try
         {
-            return super.clone();
+            Checksum32 that = (Checksum32) super.clone();
+            if (block != null)
+                that.block = block.clone();
+            if (new_block != null)
+                that.new_block = new_block.clone();
+            return that;
         } catch (CloneNotSupportedException cnse)
         {
             throw new Error();
@@ -71,6 +71,22 @@ public class ChecksumPair implements java.io.Serializable
         this.strong = Preconditions.checkNotNull(strong).clone();
     }
 
+    /**
+     * Create a new checksum pair, copying the strong checksum from a
+     * portion of a byte array.
+     *
+     * @param weak   The weak checksum.
+     * @param strong The array holding the strong checksum.
+     * @param off    The offset of the strong checksum in the array.
+     * @param len    The length of the strong checksum.
+     */
+    public ChecksumPair(int weak, byte[] strong, int off, int len)
+    {
+        this.weak = weak;
+        this.strong = new byte[len];
+        System.arraycopy(Preconditions.checkNotNull(strong), off, this.strong, 0, len);
+    }
+
     // Instance methods.
     // -------------------------------------------------------------------------
 
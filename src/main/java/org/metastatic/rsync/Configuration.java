@@ -62,13 +62,21 @@ public class Configuration implements Cloneable
      */
     public final int blockLength;
 
+    /**
+     * The policy that chooses the block length for a file, or null if
+     * {@link #blockLength} is always used.
+     */
+    public final BlockSizePolicy blockSizePolicy;
+
     /**
      * The effective length of the strong sum.
      */
     public final int strongSumLength;
 
     /**
-     * Whether or not to do run-length encoding when making Deltas.
+     * Whether or not to do run-length encoding when making Deltas. If
+     * set, matches that are contiguous in both the original and new data
+     * are merged into a single {@link Offsets}.
      */
     public final boolean doRunLength;
 
@@ -90,6 +98,13 @@ public class Configuration implements Cloneable
      */
     public final int chunkSize;
 
+    /**
+     * The number of events the streams may queue for a thread that
+     * sends them to their listeners, or zero if listeners are called on
+     * the thread that updates the stream.
+     */
+    public final int eventQueueLength;
+
     /**
      * A builder object for a configuration.
      *
@@ -102,11 +117,13 @@ public class Configuration implements Cloneable
         private MessageDigest strongSum;
         private RollingChecksum weakSum = new Checksum32();
         private int blockLength = BLOCK_LENGTH;
+        private BlockSizePolicy blockSizePolicy = null;
         private int chunkSize = CHUNK_SIZE;
         private Optional<Integer> strongSumLength = Optional.absent();
         private boolean doRunLength = false;
         private byte[] checksumSeed = null;
         private boolean isSeedPrefix = false;
+        private int eventQueueLength = 0;
 
         private Builder()
         {
@@ -162,6 +179,20 @@ public class Configuration implements Cloneable
             return this;
         }
 
+        /**
+         * Set the policy that chooses the block length for each file; see
+         * {@link Configuration#forLength(long)}. The default is null, so
+         * the block length is the same for all files.
+         *
+         * @param blockSizePolicy The block size policy, or null.
+         * @return This builder.
+         */
+        public Builder blockSizePolicy(BlockSizePolicy blockSizePolicy)
+        {
+            this.blockSizePolicy = blockSizePolicy;
+            return this;
+        }
+
         /**
          * Set the strong sum length. If not set, the digest size of the strong sum is used.
          *
@@ -190,8 +221,9 @@ public class Configuration implements Cloneable
         }
 
         /**
-         * Set whether or not to do run-length encoding. The default is false.
-         * @param doRunLength
+         * Set whether or not to do run-length encoding, merging runs of
+         * contiguous matches into single copies. The default is false.
+         * @param doRunLength Whether to merge contiguous matches.
          * @return This builder.
          */
         public Builder doRunLength(boolean doRunLength)
@@ -220,6 +252,25 @@ public class Configuration implements Cloneable
             return this;
         }
 
+        /**
+         * Set the length of the queue of events that {@link GeneratorStream}
+         * and {@link MatcherStream} send to their listeners. If positive,
+         * events are queued for a separate thread that calls the
+         * listeners, and the stream only waits when the queue is full;
+         * listener exceptions are then thrown by a later update, or by
+         * <code>doFinal</code>, which waits for every event to be sent.
+         * The default is zero, which calls listeners directly.
+         *
+         * @param eventQueueLength The queue length, or zero.
+         * @return This builder.
+         */
+        public Builder eventQueueLength(int eventQueueLength)
+        {
+            Preconditions.checkArgument(eventQueueLength >= 0);
+            this.eventQueueLength = eventQueueLength;
+            return this;
+        }
+
         /**
          * Build a configuration object.
          * @return The new configuration.
@@ -230,30 +281,43 @@ public class Configuration implements Cloneable
                 throw new IllegalStateException("must be configured with a strong sum");
             if (strongSumLength.isPresent() && strongSumLength.get() > strongSum.getDigestLength())
                 throw new IllegalStateException("explicit strong sum length must be less than or equal to the digest length");
-            return new Configuration(strongSum, weakSum, blockLength, strongSumLength.or(strongSum.getDigestLength()),
-                                     doRunLength, checksumSeed, chunkSize, isSeedPrefix);
+            return new Configuration(strongSum, weakSum, blockLength, blockSizePolicy,
+                                     strongSumLength.or(strongSum.getDigestLength()),
+                                     doRunLength, checksumSeed, chunkSize, isSeedPrefix,
+                                     eventQueueLength);
         }
     }
 
     // Constructors.
     // ------------------------------------------------------------------------
 
-    private Configuration(MessageDigest strongSum, RollingChecksum weakSum, int blockLength, int strongSumLength, boolean doRunLength, byte[] checksumSeed, int chunkSize, boolean isSeedPrefix)
+    private Configuration(MessageDigest strongSum, RollingChecksum weakSum, int blockLength, BlockSizePolicy blockSizePolicy, int strongSumLength, boolean doRunLength, byte[] checksumSeed, int chunkSize, boolean isSeedPrefix, int eventQueueLength)
     {
         this.strongSum = strongSum;
         this.weakSum = weakSum;
         this.blockLength = blockLength;
+        this.blockSizePolicy = blockSizePolicy;
         this.strongSumLength = strongSumLength;
         this.doRunLength = doRunLength;
         this.checksumSeed = checksumSeed;
         this.chunkSize = chunkSize;
         this.isSeedPrefix = isSeedPrefix;
+        this.eventQueueLength = eventQueueLength;
     }
 
     /**
      * Private copying constructor.
      */
     private Configuration(Configuration that)
+    {
+        this(that, that.blockLength, that.chunkSize);
+    }
+
+    /**
+     * Private copying constructor, with a new block length and chunk
+     * size.
+     */
+    private Configuration(Configuration that, int blockLength, int chunkSize)
     {
         MessageDigest strong;
         try
@@ -277,14 +341,16 @@ public class Configuration implements Cloneable
         this.weakSum = (RollingChecksum) (that.weakSum != null
                 ? that.weakSum.clone()
                 : null);
-        this.blockLength = that.blockLength;
+        this.blockLength = blockLength;
+        this.blockSizePolicy = that.blockSizePolicy;
         this.doRunLength = that.doRunLength;
         this.strongSumLength = that.strongSumLength;
         this.checksumSeed = (byte[]) (that.checksumSeed != null
                 ? that.checksumSeed.clone()
                 : null);
-        this.chunkSize = that.chunkSize;
+        this.chunkSize = chunkSize;
         this.isSeedPrefix = that.isSeedPrefix;
+        this.eventQueueLength = that.eventQueueLength;
     }
 
     // Instance methods.
@@ -295,4 +361,27 @@ public class Configuration implements Cloneable
         return new Configuration(this);
     }
 
+    /**
+     * Return the configuration to use for a file of the given length.
+     * If there is a {@link #blockSizePolicy} that chooses a different
+     * block length for this file, this is a copy of this configuration
+     * with that block length, and a chunk size of at least four blocks;
+     * otherwise it is this configuration. Sums generated with the result
+     * must be matched with a configuration of the same block length.
+     *
+     * @param length The length of the file.
+     * @return The configuration for the file.
+     */
+    public Configuration forLength(long length)
+    {
+        if (blockSizePolicy == null)
+            return this;
+        int newBlockLength = blockSizePolicy.blockLength(length);
+        if (newBlockLength == blockLength)
+            return this;
+        int newChunkSize = (int) Math.min(Math.max((long) chunkSize, 4L * newBlockLength),
+                Integer.MAX_VALUE);
+        return new Configuration(this, newBlockLength, newChunkSize);
+    }
+
 }
@@ -86,7 +86,7 @@ public class DataBlock implements Delta, java.io.Serializable
         } else
         {
             this.data = new byte[len];
-            System.arraycopy(data, 0, this.data, off, len);
+            System.arraycopy(data, off, this.data, 0, len);
         }
     }
 
@@ -0,0 +1,174 @@
+/* DeltaComposer: composes two deltas into one.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.List;
+
+/**
+ * Composes deltas. Given the deltas that rebuild version B from version
+ * A, and those that rebuild version C from B, this class computes the
+ * deltas that rebuild C from A directly, by arithmetic on the offsets
+ * alone: version B is never built, and no data of A is read.
+ *
+ * <p>Each literal of the second delta is kept. Each copy of the second
+ * delta names a range of B; that range is split where the deltas of the
+ * first delta that wrote it begin and end, and each piece becomes a copy
+ * from A, if the first delta copied it, or a literal, if it was literal
+ * data there. Contiguous copies and adjacent literals in the result are
+ * merged.</p>
+ *
+ * <p>A chain of deltas between successive versions may thus be composed
+ * into one delta from the oldest version to the newest, so that
+ * restoring a version takes one patch.</p>
+ */
+public final class DeltaComposer
+{
+
+    // Constructor.
+    // -------------------------------------------------------------------------
+
+    private DeltaComposer()
+    {
+    }
+
+    // Class methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Compose two deltas.
+     *
+     * @param first  The deltas that rebuild B from A.
+     * @param second The deltas that rebuild C from B.
+     * @return The deltas that rebuild C from A, in order of write offset.
+     * @throws IllegalArgumentException If the first deltas overlap, or a
+     *                                  copy in the second reads a part of
+     *                                  B that the first does not write.
+     */
+    public static DeltaList compose(List<Delta> first, List<Delta> second)
+    {
+        DeltaList ab = sorted(first);
+        DeltaList bc = sorted(second);
+        for (int i = 0, last = -1; i < ab.size(); i++)
+        {
+            if (ab.getLength(i) == 0)
+                continue;
+            if (last >= 0 && ab.getWriteOffset(last) + ab.getLength(last) > ab.getWriteOffset(i))
+                throw new IllegalArgumentException("overlapping deltas: " + ab.get(last)
+                        + ", " + ab.get(i));
+            last = i;
+        }
+        DeltaList ac = new DeltaList(bc.size());
+        for (int i = 0; i < bc.size(); i++)
+        {
+            long newOffset = bc.getWriteOffset(i);
+            int len = bc.getLength(i);
+            if (!bc.isCopy(i))
+            {
+                DeltaOptimizer.appendLiteral(ac, bc.literalArray(i), bc.literalOffset(i), len, newOffset);
+                continue;
+            }
+            long pos = bc.getOldOffset(i);
+            long end = pos + len;
+            int j = find(ab, pos);
+            while (pos < end)
+            {
+                if (j < 0 || j >= ab.size()
+                        || ab.getWriteOffset(j) + ab.getLength(j) <= pos)
+                    throw new IllegalArgumentException("no delta writes offset " + pos
+                            + " of the intermediate data");
+                long skip = pos - ab.getWriteOffset(j);
+                int n = (int) Math.min(end - pos, ab.getLength(j) - skip);
+                long to = newOffset + (pos - bc.getOldOffset(i));
+                if (ab.isCopy(j))
+                    DeltaOptimizer.appendCopy(ac, ab.getOldOffset(j) + skip, to, n, Integer.MAX_VALUE);
+                else
+                    DeltaOptimizer.appendLiteral(ac, ab.literalArray(j),
+                            ab.literalOffset(j) + (int) skip, n, to);
+                pos += n;
+                do
+                    j++;
+                while (j < ab.size() && ab.getLength(j) == 0);
+            }
+        }
+        return ac;
+    }
+
+    /**
+     * Compose a chain of deltas, each of which rebuilds the version that
+     * the next one is applied to.
+     *
+     * @param chain The deltas, oldest first.
+     * @return The deltas that rebuild the newest version from the oldest.
+     * @throws IllegalArgumentException If the chain is empty, or any two
+     *                                  successive deltas cannot be composed.
+     */
+    public static DeltaList compose(List<? extends List<Delta>> chain)
+    {
+        if (chain.isEmpty())
+            throw new IllegalArgumentException("empty chain");
+        DeltaList result = new DeltaList(chain.get(0));
+        result.sortByWriteOffset();
+        for (int i = 1; i < chain.size(); i++)
+            result = compose(result, chain.get(i));
+        return result;
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Return deltas as a {@link DeltaList} in order of write offset,
+     * copying them only if needed.
+     */
+    private static DeltaList sorted(List<Delta> deltas)
+    {
+        if (deltas instanceof DeltaList && ((DeltaList) deltas).isSortedByWriteOffset())
+            return (DeltaList) deltas;
+        DeltaList list = new DeltaList(deltas);
+        list.sortByWriteOffset();
+        return list;
+    }
+
+    /**
+     * Find the last non-empty delta written at or before an offset, or
+     * -1 if there is none.
+     */
+    private static int find(DeltaList deltas, long offset)
+    {
+        int lo = 0, hi = deltas.size() - 1, found = -1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (deltas.getWriteOffset(mid) <= offset)
+            {
+                found = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        while (found > 0 && deltas.getLength(found) == 0)
+            found--;
+        return found;
+    }
+}
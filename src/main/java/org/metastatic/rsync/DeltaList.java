@@ -0,0 +1,590 @@
+/* DeltaList: a packed list of deltas.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * A list of deltas stored in parallel primitive arrays: the kind of
+ * each delta in a <code>byte[]</code>, its old and new offsets in
+ * <code>long[]</code>s and its length in an <code>int[]</code>. The data
+ * of every literal is appended to the <em>arena</em>, a list of byte
+ * arrays of {@link #ARENA_SEGMENT} bytes each, and a literal's old offset
+ * encodes its segment and its position there. A literal is never split
+ * between segments; one longer than a segment has a segment of its own,
+ * so the literal data of a list is not limited by the largest array
+ * that can be allocated. A delta thus costs 21 bytes plus the bytes of
+ * its literal, instead of the several objects an {@link Offsets} or
+ * {@link DataBlock} needs.
+ *
+ * <p>{@link #get(int)} returns a new {@link Offsets} or {@link DataBlock}
+ * each time, so this class may be used wherever a <code>List</code> of
+ * deltas is expected; changing the returned objects does not change this
+ * list. As a {@link DeltaSink} it collects deltas from a {@link
+ * MatcherStream}, and {@link #sendTo(DeltaSink)} replays them without
+ * creating any objects.</p>
+ */
+public class DeltaList extends AbstractList<Delta> implements RandomAccess, DeltaSink
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The kind of a copy from the old data.
+     */
+    private static final byte COPY = 0;
+
+    /**
+     * The kind of a literal.
+     */
+    private static final byte LITERAL = 1;
+
+    /**
+     * The initial number of deltas to make room for.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The largest array this class will try to allocate.
+     */
+    static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+
+    /**
+     * The length of each arena segment, which only the first grows to.
+     */
+    static final int ARENA_SEGMENT = 1 << 20;
+
+    /**
+     * The kind of each delta.
+     */
+    byte[] kinds;
+
+    /**
+     * The old offset of each copy, or for each literal, its arena
+     * segment in the upper 32 bits and its offset there in the lower.
+     */
+    long[] oldOffsets;
+
+    /**
+     * The write offset of each delta.
+     */
+    long[] newOffsets;
+
+    /**
+     * The length of each delta.
+     */
+    int[] lengths;
+
+    /**
+     * The number of deltas.
+     */
+    private int size;
+
+    /**
+     * The data of the literals, by segment.
+     */
+    private byte[][] arena;
+
+    /**
+     * The number of segments in {@link #arena}.
+     */
+    private int segments;
+
+    /**
+     * The number of bytes used in the last segment.
+     */
+    private int arenaOffset;
+
+    /**
+     * The number of bytes of literal data.
+     */
+    private long literalLength;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new, empty list.
+     */
+    public DeltaList()
+    {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create a new, empty list with room for some deltas.
+     *
+     * @param capacity The number of deltas to make room for.
+     */
+    public DeltaList(int capacity)
+    {
+        if (capacity < 0)
+            throw new IllegalArgumentException("negative capacity");
+        kinds = new byte[capacity];
+        oldOffsets = new long[capacity];
+        newOffsets = new long[capacity];
+        lengths = new int[capacity];
+        arena = new byte[][]{new byte[0]};
+        segments = 1;
+    }
+
+    /**
+     * Create a new list holding the given deltas, in order. Another
+     * <code>DeltaList</code> is copied without creating its elements.
+     *
+     * @param deltas The deltas.
+     */
+    public DeltaList(Collection<? extends Delta> deltas)
+    {
+        this(deltas.size());
+        if (deltas instanceof DeltaList)
+        {
+            DeltaList that = (DeltaList) deltas;
+            System.arraycopy(that.kinds, 0, kinds, 0, that.size);
+            System.arraycopy(that.oldOffsets, 0, oldOffsets, 0, that.size);
+            System.arraycopy(that.newOffsets, 0, newOffsets, 0, that.size);
+            System.arraycopy(that.lengths, 0, lengths, 0, that.size);
+            arena = new byte[that.segments][];
+            for (int k = 0; k < that.segments; k++)
+                arena[k] = that.arena[k].clone();
+            segments = that.segments;
+            arenaOffset = that.arenaOffset;
+            literalLength = that.literalLength;
+            size = that.size;
+        } else
+            addAll(deltas);
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Add a copy from the old data to the end of this list.
+     *
+     * @param oldOffset The offset of the copy in the old data.
+     * @param newOffset The offset of the copy in the new data.
+     * @param length    The length of the copy.
+     */
+    public void addCopy(long oldOffset, long newOffset, int length)
+    {
+        append(COPY, oldOffset, newOffset, length);
+    }
+
+    /**
+     * Add a literal to the end of this list. The data is copied.
+     *
+     * @param buf       The array holding the data.
+     * @param off       The offset of the data in <code>buf</code>.
+     * @param len       The length of the data.
+     * @param newOffset The offset of the data in the new data.
+     */
+    public void addLiteral(byte[] buf, int off, int len, long newOffset)
+    {
+        reserve(len, 0);
+        System.arraycopy(buf, off, arena[segments - 1], arenaOffset, len);
+        append(LITERAL, (long) (segments - 1) << 32 | arenaOffset, newOffset, len);
+        arenaOffset += len;
+        literalLength += len;
+    }
+
+    public void onCopy(long oldOffset, long newOffset, int length)
+    {
+        addCopy(oldOffset, newOffset, length);
+    }
+
+    public void onLiteral(byte[] buf, int off, int len, long newOffset)
+    {
+        addLiteral(buf, off, len, newOffset);
+    }
+
+    /**
+     * Add a delta to the end of this list. Only appending is supported.
+     *
+     * @param index The index, which must be {@link #size()}.
+     * @param delta The delta to add.
+     * @throws UnsupportedOperationException If <code>index</code> is not
+     *                                       the end of this list.
+     * @throws IllegalArgumentException      If <code>delta</code> is
+     *                                       neither an {@link Offsets} nor
+     *                                       a {@link DataBlock}.
+     */
+    public void add(int index, Delta delta)
+    {
+        if (index != size)
+            throw new UnsupportedOperationException("deltas may only be appended");
+        if (delta instanceof Offsets)
+        {
+            Offsets o = (Offsets) delta;
+            addCopy(o.getOldOffset(), o.getNewOffset(), o.getBlockLength());
+        } else if (delta instanceof DataBlock)
+        {
+            DataBlock d = (DataBlock) delta;
+            addLiteral(d.getData(), 0, d.getBlockLength(), d.getOffset());
+        } else
+            throw new IllegalArgumentException("unknown delta type: " + delta);
+        modCount++;
+    }
+
+    /**
+     * Return a new {@link Offsets} or {@link DataBlock} for a delta.
+     *
+     * @param index The index of the delta.
+     * @return The delta.
+     */
+    public Delta get(int index)
+    {
+        checkIndex(index);
+        if (kinds[index] == COPY)
+            return new Offsets(oldOffsets[index], newOffsets[index], lengths[index]);
+        return new DataBlock(newOffsets[index], literalArray(index), literalOffset(index),
+                lengths[index]);
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public void clear()
+    {
+        size = 0;
+        Arrays.fill(arena, 1, segments, null);
+        segments = 1;
+        arenaOffset = 0;
+        literalLength = 0;
+        modCount++;
+    }
+
+    /**
+     * Test if a delta is a copy from the old data.
+     *
+     * @param index The index of the delta.
+     * @return True for a copy; false for a literal.
+     */
+    public boolean isCopy(int index)
+    {
+        checkIndex(index);
+        return kinds[index] == COPY;
+    }
+
+    /**
+     * Return the old offset of a copy.
+     *
+     * @param index The index of the delta.
+     * @return The offset of the copy in the old data.
+     * @throws IllegalArgumentException If the delta is a literal.
+     */
+    public long getOldOffset(int index)
+    {
+        if (!isCopy(index))
+            throw new IllegalArgumentException("not a copy: " + index);
+        return oldOffsets[index];
+    }
+
+    /**
+     * Return the write offset of a delta.
+     *
+     * @param index The index of the delta.
+     * @return The offset of the delta in the new data.
+     */
+    public long getWriteOffset(int index)
+    {
+        checkIndex(index);
+        return newOffsets[index];
+    }
+
+    /**
+     * Return the length of a delta.
+     *
+     * @param index The index of the delta.
+     * @return The length.
+     */
+    public int getLength(int index)
+    {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    /**
+     * Copy the data of a literal into an array.
+     *
+     * @param index The index of the delta.
+     * @param buf   The array to copy to.
+     * @param off   The offset in <code>buf</code> to copy to.
+     * @throws IllegalArgumentException If the delta is a copy.
+     */
+    public void getLiteral(int index, byte[] buf, int off)
+    {
+        if (isCopy(index))
+            throw new IllegalArgumentException("not a literal: " + index);
+        System.arraycopy(literalArray(index), literalOffset(index), buf, off, lengths[index]);
+    }
+
+    /**
+     * Send every delta to a sink, in list order. Literals are passed as
+     * slices of this list's own storage, which the sink must not modify.
+     *
+     * @param sink The sink.
+     * @throws ListenerException If the sink throws an exception.
+     */
+    public void sendTo(DeltaSink sink) throws ListenerException
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (kinds[i] == COPY)
+                sink.onCopy(oldOffsets[i], newOffsets[i], lengths[i]);
+            else
+                sink.onLiteral(literalArray(i), literalOffset(i), lengths[i], newOffsets[i]);
+        }
+    }
+
+    /**
+     * Test if the deltas are in order of their write offsets.
+     *
+     * @return True if every delta is written before the next one.
+     */
+    public boolean isSortedByWriteOffset()
+    {
+        for (int i = 1; i < size; i++)
+        {
+            if (newOffsets[i - 1] > newOffsets[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sort the deltas by their write offsets. The sort is stable, and
+     * takes linear time if the list is already sorted, as it is when
+     * it was filled by a {@link MatcherStream}.
+     */
+    public void sortByWriteOffset()
+    {
+        if (isSortedByWriteOffset())
+            return;
+        sortBy(newOffsets);
+    }
+
+    /**
+     * Reorder the deltas, stably, by a key for each delta.
+     *
+     * @param keys The key of each delta, indexed like this list.
+     */
+    void sortBy(long[] keys)
+    {
+        int[] order = sortOrder(keys);
+        byte[] k = new byte[kinds.length];
+        long[] o = new long[oldOffsets.length];
+        long[] n = new long[newOffsets.length];
+        int[] l = new int[lengths.length];
+        for (int i = 0; i < size; i++)
+        {
+            k[i] = kinds[order[i]];
+            o[i] = oldOffsets[order[i]];
+            n[i] = newOffsets[order[i]];
+            l[i] = lengths[order[i]];
+        }
+        kinds = k;
+        oldOffsets = o;
+        newOffsets = n;
+        lengths = l;
+        modCount++;
+    }
+
+    /**
+     * Return the indices of the deltas in a stable order of a key for
+     * each delta, without reordering them.
+     *
+     * @param keys The key of each delta, indexed like this list.
+     * @return The indices, in order of their keys.
+     */
+    int[] sortOrder(long[] keys)
+    {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        mergeSort(keys, order, new int[size], 0, size);
+        return order;
+    }
+
+    /**
+     * Lengthen the last delta, which must be a copy.
+     *
+     * @param len The number of bytes to add to the copy.
+     */
+    void extendCopy(int len)
+    {
+        if (size == 0 || kinds[size - 1] != COPY)
+            throw new IllegalStateException("last delta is not a copy");
+        lengths[size - 1] += len;
+        modCount++;
+    }
+
+    /**
+     * Append data to the last delta, which must be a literal.
+     *
+     * @param buf The array holding the data.
+     * @param off The offset of the data in <code>buf</code>.
+     * @param len The length of the data.
+     */
+    void extendLiteral(byte[] buf, int off, int len)
+    {
+        if (size == 0 || kinds[size - 1] != LITERAL)
+            throw new IllegalStateException("last delta is not a literal");
+        if (len > MAX_ARRAY_LENGTH - lengths[size - 1])
+            throw new IllegalStateException("literal too long");
+        // The last literal ends the last segment; it moves if that is full.
+        if (reserve(len, lengths[size - 1]))
+            oldOffsets[size - 1] = (long) (segments - 1) << 32;
+        System.arraycopy(buf, off, arena[segments - 1], arenaOffset, len);
+        arenaOffset += len;
+        literalLength += len;
+        lengths[size - 1] += len;
+        modCount++;
+    }
+
+    /**
+     * Return the number of bytes of literal data in this list.
+     *
+     * @return The literal byte count.
+     */
+    public long getLiteralLength()
+    {
+        return literalLength;
+    }
+
+    /**
+     * Return the array holding the data of a literal.
+     *
+     * @param index The index of the literal.
+     * @return The arena segment holding it.
+     */
+    byte[] literalArray(int index)
+    {
+        return arena[(int) (oldOffsets[index] >>> 32)];
+    }
+
+    /**
+     * Return the offset of the data of a literal in {@link
+     * #literalArray(int)}.
+     *
+     * @param index The index of the literal.
+     * @return The offset.
+     */
+    int literalOffset(int index)
+    {
+        return (int) oldOffsets[index];
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Make room for <code>len</code> more bytes at the end of the last
+     * arena segment, following the last <code>carry</code> bytes there.
+     * The segment grows while it is no longer than {@link
+     * #ARENA_SEGMENT}, or while <code>carry</code> is all of it;
+     * otherwise a new segment is started, and the carried bytes are
+     * moved to its start.
+     *
+     * @return True if the carried bytes were moved.
+     */
+    private boolean reserve(int len, int carry)
+    {
+        byte[] last = arena[segments - 1];
+        if (len <= last.length - arenaOffset)
+            return false;
+        long need = (long) arenaOffset + len;
+        if (need <= ARENA_SEGMENT || carry == arenaOffset)
+        {
+            if (need > MAX_ARRAY_LENGTH)
+                throw new IllegalStateException("literal too long");
+            long capacity = Math.max(Math.max(last.length * 2L, need), 64);
+            capacity = Math.min(capacity, need <= ARENA_SEGMENT ? ARENA_SEGMENT : MAX_ARRAY_LENGTH);
+            arena[segments - 1] = Arrays.copyOf(last, (int) capacity);
+            return false;
+        }
+        byte[] next = new byte[Math.max(ARENA_SEGMENT, carry + len)];
+        System.arraycopy(last, arenaOffset - carry, next, 0, carry);
+        if (segments == arena.length)
+            arena = Arrays.copyOf(arena, segments * 2);
+        arena[segments++] = next;
+        arenaOffset = carry;
+        return carry > 0;
+    }
+
+    private void append(byte kind, long oldOffset, long newOffset, int length)
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("negative length");
+        if (size == kinds.length)
+        {
+            if (size == MAX_ARRAY_LENGTH)
+                throw new IllegalStateException("too many deltas");
+            int capacity = (int) Math.min(Math.max(size * 2L, INITIAL_CAPACITY), MAX_ARRAY_LENGTH);
+            kinds = Arrays.copyOf(kinds, capacity);
+            oldOffsets = Arrays.copyOf(oldOffsets, capacity);
+            newOffsets = Arrays.copyOf(newOffsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        kinds[size] = kind;
+        oldOffsets[size] = oldOffset;
+        newOffsets[size] = newOffset;
+        lengths[size] = length;
+        size++;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+
+    /**
+     * Sort a range of delta indices by their keys, stably.
+     */
+    private static void mergeSort(long[] keys, int[] order, int[] scratch, int from, int to)
+    {
+        if (to - from < 2)
+            return;
+        int mid = (from + to) >>> 1;
+        mergeSort(keys, order, scratch, from, mid);
+        mergeSort(keys, order, scratch, mid, to);
+        if (keys[order[mid - 1]] <= keys[order[mid]])
+            return;
+        System.arraycopy(order, from, scratch, from, to - from);
+        int i = from, j = mid;
+        for (int k = from; k < to; k++)
+        {
+            if (j >= to || (i < mid && keys[scratch[i]] <= keys[scratch[j]]))
+                order[k] = scratch[i++];
+            else
+                order[k] = scratch[j++];
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/* DeltaOptimizer: merges and reorders deltas.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.List;
+
+/**
+ * A pass over the deltas made by a {@link MatcherStream}, between
+ * matching and encoding or rebuilding. Deltas are put in order of their
+ * write offsets, and then
+ *
+ * <ul>
+ * <li>copies that are contiguous in both the old and the new data are
+ * merged into one copy, up to a maximum length;</li>
+ * <li>adjacent literals are merged into one literal; and</li>
+ * <li>if the new data is given, copies shorter than a threshold that
+ * border a literal are turned into literal data, so that the literals
+ * around them merge. A copy of a few bytes costs more to encode, and to
+ * seek to when patching, than the bytes themselves.</li>
+ * </ul>
+ *
+ * <p>A {@link MatcherStream} turns short copies into literals itself
+ * when given {@link MatcherStream#setMinCopyLength(int)}, taking their
+ * data from its buffer as it goes; {@link Rdiff} does this, and then
+ * merges the deltas with {@link #optimize(List)}. {@link
+ * #optimize(List, byte[])} is for deltas made without it, and needs the
+ * whole of the new data.</p>
+ *
+ * <p>{@link #readPlan(List)} orders deltas for patching into a separate
+ * file, so that the old file is read from start to end.</p>
+ */
+public class DeltaOptimizer
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The default threshold below which copies are turned into literals.
+     * A copy in the rdiff format takes nine bytes.
+     */
+    public static final int MIN_COPY_LENGTH = 16;
+
+    /**
+     * The shortest copy that is kept as a copy.
+     */
+    protected final int minCopyLength;
+
+    /**
+     * The longest copy that contiguous copies are merged into.
+     */
+    protected final int maxCopyLength;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create an optimizer with the default thresholds: copies shorter than
+     * {@link #MIN_COPY_LENGTH} are absorbed, and merged copies are at most
+     * {@link MatcherStream#MAX_RUN_LENGTH} long.
+     */
+    public DeltaOptimizer()
+    {
+        this(MIN_COPY_LENGTH, MatcherStream.MAX_RUN_LENGTH);
+    }
+
+    /**
+     * Create an optimizer with the given thresholds.
+     *
+     * @param minCopyLength The shortest copy kept as a copy; zero to keep
+     *                      all copies.
+     * @param maxCopyLength The longest copy to merge copies into.
+     */
+    public DeltaOptimizer(int minCopyLength, int maxCopyLength)
+    {
+        if (minCopyLength < 0)
+            throw new IllegalArgumentException("negative minimum copy length");
+        if (maxCopyLength <= 0)
+            throw new IllegalArgumentException("maximum copy length must be positive");
+        this.minCopyLength = minCopyLength;
+        this.maxCopyLength = maxCopyLength;
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Merge contiguous copies and adjacent literals. Short copies are
+     * kept, since their data is not known.
+     *
+     * @param deltas The deltas.
+     * @return The optimized deltas, in order of write offset.
+     */
+    public DeltaList optimize(List<Delta> deltas)
+    {
+        return optimize(deltas, null);
+    }
+
+    /**
+     * Merge contiguous copies and adjacent literals, and turn short
+     * copies that border literals into literal data.
+     *
+     * @param deltas  The deltas.
+     * @param newData The new data that the deltas rebuild, or null to
+     *                keep short copies.
+     * @return The optimized deltas, in order of write offset.
+     * @throws IllegalArgumentException If a copy to be absorbed lies
+     *                                  outside <code>newData</code>.
+     */
+    public DeltaList optimize(List<Delta> deltas, byte[] newData)
+    {
+        DeltaList in = sortedCopy(deltas);
+        int n = in.size();
+        DeltaList out = new DeltaList(n);
+        for (int i = 0; i < n; i++)
+        {
+            int len = in.getLength(i);
+            long newOffset = in.getWriteOffset(i);
+            int last = out.size() - 1;
+            if (in.isCopy(i))
+            {
+                long oldOffset = in.getOldOffset(i);
+                if (newData != null && len < minCopyLength
+                        && ((last >= 0 && !out.isCopy(last))
+                            || (i + 1 < n && !in.isCopy(i + 1))))
+                {
+                    if (newOffset < 0 || newOffset + len > newData.length)
+                        throw new IllegalArgumentException("copy outside the new data: " + in.get(i));
+                    appendLiteral(out, newData, (int) newOffset, len, newOffset);
+                } else
+                    appendCopy(out, oldOffset, newOffset, len, maxCopyLength);
+            } else
+                appendLiteral(out, in.literalArray(i), in.literalOffset(i), len, newOffset);
+        }
+        return out;
+    }
+
+    // Class methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Order deltas for rebuilding into a separate file: the literals
+     * first, in order of write offset, then the copies in order of their
+     * offsets in the old file, so that the old file is read sequentially.
+     * Every delta says where it is written, so any order rebuilds the
+     * same file, except when rebuilding in place.
+     *
+     * @param deltas The deltas.
+     * @return The deltas in reading order.
+     */
+    public static DeltaList readPlan(List<Delta> deltas)
+    {
+        DeltaList plan = sortedCopy(deltas);
+        long[] keys = new long[plan.size()];
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = plan.isCopy(i) ? plan.getOldOffset(i) : -1;
+        plan.sortBy(keys);
+        return plan;
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Add a copy to a list, merging it into the last delta if that is a
+     * copy that ends where this one begins in both the old and new data,
+     * and the merged copy is at most <code>maxCopyLength</code> long.
+     */
+    static void appendCopy(DeltaList out, long oldOffset, long newOffset, int len,
+                           int maxCopyLength)
+    {
+        int last = out.size() - 1;
+        if (last >= 0 && out.isCopy(last)
+                && out.getOldOffset(last) + out.getLength(last) == oldOffset
+                && out.getWriteOffset(last) + out.getLength(last) == newOffset
+                && out.getLength(last) <= maxCopyLength - len)
+            out.extendCopy(len);
+        else
+            out.addCopy(oldOffset, newOffset, len);
+    }
+
+    /**
+     * Add literal data to a list, merging it into the last delta if that
+     * is a literal that ends where this one begins.
+     */
+    static void appendLiteral(DeltaList out, byte[] buf, int off, int len, long newOffset)
+    {
+        int last = out.size() - 1;
+        if (last >= 0 && !out.isCopy(last)
+                && out.getWriteOffset(last) + out.getLength(last) == newOffset
+                && out.getLength(last) <= DeltaList.MAX_ARRAY_LENGTH - len)
+            out.extendLiteral(buf, off, len);
+        else
+            out.addLiteral(buf, off, len, newOffset);
+    }
+
+    /**
+     * Return a copy of some deltas as a {@link DeltaList}, in order of
+     * write offset.
+     */
+    private static DeltaList sortedCopy(List<Delta> deltas)
+    {
+        DeltaList list = new DeltaList(deltas);
+        list.sortByWriteOffset();
+        return list;
+    }
+}
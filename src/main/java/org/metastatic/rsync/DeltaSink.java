@@ -0,0 +1,64 @@
+/* DeltaSink: a callback for deltas as primitive values.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+/**
+ * A callback for the deltas found by {@link MatcherStream} and {@link
+ * Matcher}, passed as primitive values. Unlike a {@link
+ * MatcherListener}, a sink is sent no {@link Delta} or {@link
+ * MatcherEvent} objects, and literal data is not copied out of the
+ * matcher's buffer, so emitting a delta allocates nothing.
+ *
+ * <p>A {@link MatcherListener} is driven through a {@link
+ * MatcherListenerSink}, which builds the objects a listener expects.</p>
+ */
+public interface DeltaSink
+{
+
+    // Methods.
+    // -----------------------------------------------------------------------
+
+    /**
+     * A run of the new data that is a copy of the old data.
+     *
+     * @param oldOffset The offset of the run in the old data.
+     * @param newOffset The offset of the run in the new data.
+     * @param length    The length of the run.
+     * @throws ListenerException If this sink fails.
+     */
+    void onCopy(long oldOffset, long newOffset, int length) throws ListenerException;
+
+    /**
+     * A run of the new data that was not found in the old data. The
+     * array belongs to the caller and may be overwritten as soon as this
+     * method returns, so the bytes must be copied if they are kept.
+     *
+     * @param buf       The array holding the data.
+     * @param off       The offset of the data in <code>buf</code>.
+     * @param len       The length of the data.
+     * @param newOffset The offset of the data in the new data.
+     * @throws ListenerException If this sink fails.
+     */
+    void onLiteral(byte[] buf, int off, int len, long newOffset) throws ListenerException;
+}
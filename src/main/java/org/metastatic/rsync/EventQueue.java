@@ -0,0 +1,321 @@
+/* EventQueue: a bounded queue of events for a listener thread.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded ring buffer of events, drained by a thread of its own. The
+ * streams use this when {@link Configuration#eventQueueLength} is set,
+ * so that summing and matching on the calling thread overlaps with the
+ * listeners' I/O instead of alternating with it.
+ *
+ * <p>{@link #put(Object)} blocks while the queue is full. Exceptions
+ * thrown by the dispatcher are chained together in the order they
+ * happen, as the streams chain the exceptions of their listeners, and
+ * thrown by the next call to {@link #put(Object)} or {@link #flush()}.
+ * Runtime exceptions and errors are wrapped in a {@link
+ * ListenerException}. The thread exits once the queue has been empty
+ * for a second, and a new one is started when it is needed again.</p>
+ *
+ * @param <E> The event type.
+ */
+final class EventQueue<E>
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * How long the listener thread waits for events before it exits.
+     */
+    private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The object that sends each event to the listeners.
+     */
+    private final Dispatcher<E> dispatcher;
+
+    /**
+     * The ring buffer.
+     */
+    private final Object[] ring;
+
+    /**
+     * The index in {@link #ring} of the oldest event.
+     */
+    private int head;
+
+    /**
+     * The number of events in {@link #ring}.
+     */
+    private int count;
+
+    /**
+     * Whether the listener thread is dispatching events it has taken
+     * from the ring.
+     */
+    private boolean busy;
+
+    /**
+     * The listener thread, or null if it is not running.
+     */
+    private Thread consumer;
+
+    /**
+     * The first and last exceptions not yet thrown to the producer.
+     */
+    private ListenerException failure, lastFailure;
+
+    private final ReentrantLock lock;
+    private final Condition notFull;
+    private final Condition notEmpty;
+    private final Condition idle;
+
+    // Constructor.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new, empty queue.
+     *
+     * @param capacity   The number of events the queue can hold.
+     * @param dispatcher The object that sends each event to the listeners.
+     */
+    EventQueue(int capacity, Dispatcher<E> dispatcher)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        if (dispatcher == null)
+            throw new NullPointerException();
+        this.dispatcher = dispatcher;
+        ring = new Object[capacity];
+        lock = new ReentrantLock();
+        notFull = lock.newCondition();
+        notEmpty = lock.newCondition();
+        idle = lock.newCondition();
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Add an event to the queue, waiting for room if it is full. The
+     * event is queued even if an earlier event failed; that failure is
+     * thrown afterwards.
+     *
+     * @param event The event.
+     * @throws ListenerException If dispatching an earlier event failed,
+     *                           or this thread was interrupted while
+     *                           waiting.
+     */
+    void put(E event) throws ListenerException
+    {
+        lock.lock();
+        try
+        {
+            while (count == ring.length)
+                notFull.await();
+            ring[(head + count) % ring.length] = event;
+            count++;
+            if (consumer == null)
+            {
+                consumer = new Thread(new Consumer(), "jarsync-events");
+                consumer.setDaemon(true);
+                consumer.start();
+            } else
+                notEmpty.signal();
+            throwFailure();
+        } catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new ListenerException(ie, "interrupted while queueing an event");
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait until every queued event has been dispatched.
+     *
+     * @throws ListenerException If dispatching any event failed, or this
+     *                           thread was interrupted while waiting.
+     */
+    void flush() throws ListenerException
+    {
+        lock.lock();
+        try
+        {
+            while (count > 0 || busy)
+                idle.await();
+            throwFailure();
+        } catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new ListenerException(ie, "interrupted while flushing events");
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Throw, and forget, the pending exceptions. Called with the lock
+     * held.
+     */
+    private void throwFailure() throws ListenerException
+    {
+        if (failure != null)
+        {
+            ListenerException le = failure;
+            failure = lastFailure = null;
+            throw le;
+        }
+    }
+
+    /**
+     * Add an exception to the end of the pending chain.
+     */
+    private void fail(ListenerException le)
+    {
+        lock.lock();
+        try
+        {
+            if (failure == null)
+                failure = le;
+            else
+                lastFailure.setNext(le);
+            lastFailure = le;
+            while (lastFailure.getNext() != null)
+                lastFailure = lastFailure.getNext();
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move every queued event into <code>batch</code>, waiting for at
+     * least one. Returns the number of events taken, or zero if the
+     * listener thread should exit.
+     */
+    private int take(Object[] batch)
+    {
+        lock.lock();
+        try
+        {
+            busy = false;
+            if (count == 0)
+                idle.signalAll();
+            long nanos = IDLE_NANOS;
+            while (count == 0)
+            {
+                if (nanos <= 0)
+                {
+                    consumer = null;
+                    return 0;
+                }
+                try
+                {
+                    nanos = notEmpty.awaitNanos(nanos);
+                } catch (InterruptedException ie)
+                {
+                    // Nothing else owns this thread; keep waiting.
+                }
+            }
+            int n = count;
+            for (int i = 0; i < n; i++)
+            {
+                int j = (head + i) % ring.length;
+                batch[i] = ring[j];
+                ring[j] = null;
+            }
+            head = (head + n) % ring.length;
+            count = 0;
+            busy = true;
+            notFull.signalAll();
+            return n;
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Inner classes.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Sends a single event to the listeners of a stream.
+     *
+     * @param <E> The event type.
+     */
+    interface Dispatcher<E>
+    {
+        /**
+         * Send an event to every listener.
+         *
+         * @param event The event.
+         * @throws ListenerException If any listener throws an exception.
+         */
+        void dispatch(E event) throws ListenerException;
+    }
+
+    /**
+     * The body of the listener thread.
+     */
+    private class Consumer implements Runnable
+    {
+        @SuppressWarnings("unchecked")
+        public void run()
+        {
+            Object[] batch = new Object[ring.length];
+            int n;
+            while ((n = take(batch)) > 0)
+            {
+                for (int i = 0; i < n; i++)
+                {
+                    try
+                    {
+                        dispatcher.dispatch((E) batch[i]);
+                    } catch (ListenerException le)
+                    {
+                        fail(le);
+                    } catch (RuntimeException re)
+                    {
+                        fail(new ListenerException(re, String.valueOf(re)));
+                    } catch (Error e)
+                    {
+                        fail(new ListenerException(e, String.valueOf(e)));
+                    }
+                    batch[i] = null;
+                }
+            }
+        }
+    }
+}
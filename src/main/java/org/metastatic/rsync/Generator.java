@@ -24,17 +24,24 @@ THE SOFTWARE. */
 package org.metastatic.rsync;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.security.DigestException;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A checksum generator. This class can take a byte array or an input stream,
  * and will generate a list of {@link org.metastatic.rsync.ChecksumPair} objects
- * for that data.
+ * for that data, packed into a {@link SignatureTable}.
  */
 public class Generator
 {
@@ -42,18 +49,29 @@ public class Generator
     // Constants and variables.
     // ------------------------------------------------------------------------
 
+    /**
+     * The size of the buffer that a file is read into.
+     */
+    private static final int COPY_SIZE = 1 << 20;
+
     /**
      * Our configuration. Contains such things as our rolling checksum
      * and message digest.
      */
     protected final Configuration config;
 
+    /**
+     * Scratch space for the strong sum, reused for every block.
+     */
+    private final byte[] digest;
+
     // Constructors.
     // ------------------------------------------------------------------------
 
     public Generator(Configuration config)
     {
         this.config = config;
+        this.digest = new byte[config.strongSum.getDigestLength()];
     }
 
     // Instance methods.
@@ -64,11 +82,11 @@ public class Generator
      * of 0.
      *
      * @param buf The byte buffer to checksum.
-     * @return A {@link java.util.List} of {@link ChecksumPair}s
-     * generated from the array.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the array.
      * @see #generateSums(byte[], int, int, long)
      */
-    public List<ChecksumLocation> generateSums(byte[] buf)
+    public SignatureTable generateSums(byte[] buf)
     {
         return generateSums(buf, 0, buf.length, 0);
     }
@@ -80,11 +98,11 @@ public class Generator
      * @param buf The byte array to checksum.
      * @param off The offset in <code>buf</code> to begin.
      * @param len The number of bytes to checksum.
-     * @return A {@link java.util.List} of {@link ChecksumPair}s
-     * generated from the array.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the array.
      * @see #generateSums(byte[], int, int, long)
      */
-    public List<ChecksumLocation> generateSums(byte[] buf, int off, int len)
+    public SignatureTable generateSums(byte[] buf, int off, int len)
     {
         return generateSums(buf, off, len, 0);
     }
@@ -96,11 +114,11 @@ public class Generator
      *
      * @param buf        The byte array to checksum.
      * @param baseOffset The offset from whence this byte array came.
-     * @return A {@link java.util.List} of {@link ChecksumPair}s
-     * generated from the array.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the array.
      * @see #generateSums(byte[], int, int, long)
      */
-    public List<ChecksumLocation> generateSums(byte[] buf, long baseOffset)
+    public SignatureTable generateSums(byte[] buf, long baseOffset)
     {
         return generateSums(buf, 0, buf.length, baseOffset);
     }
@@ -115,26 +133,15 @@ public class Generator
      * @param len        The number of bytes to check in
      *                   <code>buf</code>.
      * @param baseOffset The offset from whence this byte array came.
-     * @return A {@link java.util.List} of {@link ChecksumPair}s
-     * generated from the array.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the array.
      */
-    public List<ChecksumLocation> generateSums(byte[] buf, int off, int len, long baseOffset)
+    public SignatureTable generateSums(byte[] buf, int off, int len, long baseOffset)
     {
-        int count = (len + (config.blockLength - 1)) / config.blockLength;
-        int remainder = len % config.blockLength;
-        int offset = off;
-        List<ChecksumLocation> sums = new ArrayList<ChecksumLocation>(count);
-
-        for (int i = 0; i < count; i++)
-        {
-            int n = Math.min(len, config.blockLength);
-            ChecksumLocation location = generateSum(buf, offset, n, offset + baseOffset, i);
-
-            sums.add(location);
-            len -= n;
-            offset += n;
-        }
-
+        // The offset of the first block is off + baseOffset.
+        SignatureTable sums = newTable(off + baseOffset);
+        sums.ensureCapacity((len + config.blockLength - 1) / config.blockLength);
+        generateSums(buf, off, len, sums);
         return sums;
     }
 
@@ -142,64 +149,194 @@ public class Generator
      * Generate checksums for an entire file.
      *
      * @param f The {@link java.io.File} to checksum.
-     * @return A {@link java.util.List} of {@link org.metastatic.rsync.ChecksumLocation}s
-     * generated from the file.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the file.
      * @throws java.io.IOException if <code>f</code> cannot be read from.
+     * @see #generateSums(java.nio.channels.FileChannel)
      */
-    public List<ChecksumLocation> generateSums(File f) throws IOException
+    public SignatureTable generateSums(File f) throws IOException
     {
-        long len = f.length();
-        int count = (int) ((len + (config.blockLength + 1)) / config.blockLength);
-        long offset = 0;
-        FileInputStream fin = new FileInputStream(f);
-        List<ChecksumLocation> sums = new ArrayList<ChecksumLocation>(count);
-        int n = (int) Math.min(len, config.blockLength);
-        byte[] buf = new byte[n];
+        return generateSums(f.toPath());
+    }
 
-        for (int i = 0; i < count; i++)
+    /**
+     * Generate checksums for an entire file.
+     *
+     * @param path The path of the file to checksum.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the file.
+     * @throws java.io.IOException if the file cannot be read from.
+     * @see #generateSums(java.nio.channels.FileChannel)
+     */
+    public SignatureTable generateSums(Path path) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
         {
-            int l = fin.read(buf, 0, n);
-            if (l == -1) break;
-            ChecksumLocation location = generateSum(buf, 0, Math.min(l, n), offset, i);
-
-            sums.add(location);
-            len -= n;
-            offset += n;
-            n = (int) Math.min(len, config.blockLength);
+            return generateSums(channel);
+        } finally
+        {
+            channel.close();
         }
+    }
+
+    /**
+     * Generate checksums for the entire contents of a file channel. The
+     * file is read with positional reads into one buffer of a whole
+     * number of blocks, so the file may be of any size, no system call is
+     * made per block, and no mappings are left for the garbage collector
+     * to release. The channel's position is not changed.
+     *
+     * <p>If the configuration has a {@link BlockSizePolicy}, the block
+     * length is the one it chooses for the length of the file, and may
+     * be read from the table returned.</p>
+     *
+     * @param channel The channel to checksum.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the file.
+     * @throws java.io.IOException if the channel cannot be read from.
+     */
+    public SignatureTable generateSums(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        Configuration forFile = config.forLength(size);
+        if (forFile != config)
+            return new Generator(forFile).generateSums(channel);
+        long count = (size + config.blockLength - 1) / config.blockLength;
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many blocks: " + count);
+        SignatureTable sums = newTable(0);
+        sums.ensureCapacity((int) count);
+        byte[] buf = new byte[Math.max(1, COPY_SIZE / config.blockLength) * config.blockLength];
+        ByteBuffer b = ByteBuffer.wrap(buf);
 
-        fin.close();
+        for (long pos = 0; pos < size; pos += b.position())
+        {
+            b.clear();
+            b.limit((int) Math.min(buf.length, size - pos));
+            while (b.hasRemaining())
+            {
+                if (channel.read(b, pos + b.position()) < 0)
+                    throw new IOException("file truncated while reading");
+            }
+            generateSums(buf, 0, b.position(), sums);
+        }
         return sums;
     }
 
     /**
-     * Generate checksums for an InputStream.
+     * Generate checksums for an InputStream. The stream is read a
+     * chunk at a time, each chunk filled to a whole number of blocks
+     * before it is checksummed.
      *
      * @param in The {@link java.io.InputStream} to checksum.
-     * @return A {@link java.util.List} of {@link org.metastatic.rsync.ChecksumLocation}s
-     * generated from the bytes read.
+     * @return A {@link SignatureTable} of the checksums generated from
+     * the bytes read, which is empty if the stream is.
      * @throws java.io.IOException if reading fails.
      */
-    public List<ChecksumLocation> generateSums(InputStream in) throws IOException
+    public SignatureTable generateSums(InputStream in) throws IOException
     {
-        List<ChecksumLocation> sums = null;
-        byte[] buf = new byte[config.blockLength * config.blockLength];
-        long offset = 0;
-        int len = 0;
+        SignatureTable sums = newTable(0);
+        byte[] buf = newChunk();
+        int len;
 
-        while ((len = in.read(buf)) != -1)
+        do
+        {
+            len = fill(in, buf);
+            generateSums(buf, 0, len, sums);
+        } while (len == buf.length);
+
+        return sums;
+    }
+
+    /**
+     * Generate checksums for an InputStream, sending each to a listener
+     * as soon as it is computed. Only one chunk of the stream is held in
+     * memory at a time.
+     *
+     * @param in       The {@link java.io.InputStream} to checksum.
+     * @param listener The listener to send checksums to.
+     * @throws java.io.IOException if reading fails.
+     * @throws ListenerException   if the listener throws an exception.
+     */
+    public void generateSums(InputStream in, GeneratorListener listener)
+            throws IOException, ListenerException
+    {
+        Iterator<ChecksumLocation> it = iterateSums(in);
+        try
+        {
+            while (it.hasNext())
+                listener.update(new GeneratorEvent(it.next()));
+        } catch (IOError ioe)
+        {
+            throw (IOException) ioe.getCause();
+        }
+    }
+
+    /**
+     * Return an iterator over the checksums of an InputStream. The
+     * stream is only read, a chunk at a time, as the iterator is
+     * advanced, so the checksums may be sent on while the stream is
+     * still being read, and memory use does not grow with the length of
+     * the stream.
+     *
+     * <p>The iterator uses this generator's checksum and message digest,
+     * so this generator must not be used for anything else until the
+     * iteration is done. Since an iterator cannot throw checked
+     * exceptions, an {@link IOException} thrown by the stream is thrown
+     * from {@link Iterator#hasNext()} or {@link Iterator#next()} wrapped
+     * in an {@link IOError}.</p>
+     *
+     * @param in The {@link java.io.InputStream} to checksum.
+     * @return An iterator over the checksums of the stream, in order.
+     */
+    public Iterator<ChecksumLocation> iterateSums(final InputStream in)
+    {
+        return new Iterator<ChecksumLocation>()
         {
-            if (sums == null)
+            private final byte[] buf = newChunk();
+            private int len = 0;
+            private int pos = 0;
+            private long offset = 0;
+            private int seq = 0;
+            private boolean eof = false;
+
+            public boolean hasNext()
             {
-                sums = generateSums(buf, 0, len, offset);
-            } else
+                if (pos < len)
+                    return true;
+                if (eof)
+                    return false;
+                offset += len;
+                pos = 0;
+                try
+                {
+                    len = fill(in, buf);
+                } catch (IOException ioe)
+                {
+                    len = 0;
+                    eof = true;
+                    throw new IOError(ioe);
+                }
+                eof = len < buf.length;
+                return len > 0;
+            }
+
+            public ChecksumLocation next()
             {
-                sums.addAll(generateSums(buf, 0, len, offset));
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int n = Math.min(len - pos, config.blockLength);
+                ChecksumLocation location = generateSum(buf, pos, n, offset + pos, seq++);
+                pos += n;
+                return location;
             }
-            offset += len;
-        }
 
-        return sums;
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
@@ -232,15 +369,98 @@ public class Generator
      */
     public ChecksumLocation generateSum(byte[] buf, int off, int len, long fileOffset, int seq)
     {
-        config.weakSum.check(buf, off, len);
+        int weak = sum(buf, off, len);
+        return new ChecksumLocation(new ChecksumPair(weak, digest, 0, config.strongSumLength), fileOffset, len, seq);
+    }
+
+    /**
+     * Generate the sums of a block into a table made with a fixed
+     * length.
+     *
+     * @param buf   The byte array to checksum.
+     * @param off   Where in <code>buf</code> to start.
+     * @param len   How many bytes to checksum.
+     * @param sums  The table.
+     * @param index The index of the block in <code>sums</code>.
+     */
+    void generateSum(byte[] buf, int off, int len, SignatureTable sums, int index)
+    {
+        int weak = sum(buf, off, len);
+        sums.set(index, weak, digest, 0);
+    }
+
+    // Own methods.
+    // ------------------------------------------------------------------------
+
+    /**
+     * Compute the sums of a block, returning the weak sum and leaving
+     * the strong sum in {@link #digest}.
+     */
+    private int sum(byte[] buf, int off, int len)
+    {
+        if (config.weakSum instanceof WindowChecksum)
+            ((WindowChecksum) config.weakSum).checkNoCopy(buf, off, len);
+        else
+            config.weakSum.check(buf, off, len);
         if (config.checksumSeed != null && config.isSeedPrefix)
             config.strongSum.update(config.checksumSeed);
         config.strongSum.update(buf, off, len);
         if (config.checksumSeed != null && !config.isSeedPrefix)
             config.strongSum.update(config.checksumSeed);
         int weak = config.weakSum.getValue();
-        byte[] strong = new byte[config.strongSumLength];
-        System.arraycopy(config.strongSum.digest(), 0, strong, 0, config.strongSumLength);
-        return new ChecksumLocation(new ChecksumPair(weak, strong), fileOffset, len, seq);
+        try
+        {
+            config.strongSum.digest(digest, 0, digest.length);
+        } catch (DigestException de)
+        {
+            throw new Error(de);
+        }
+        return weak;
+    }
+
+    /**
+     * Create a buffer for reading a chunk of a stream, holding a whole
+     * number of blocks.
+     */
+    private byte[] newChunk()
+    {
+        return new byte[Math.max(1, config.chunkSize / config.blockLength)
+                * config.blockLength];
+    }
+
+    /**
+     * Read from a stream until the buffer is full or the stream ends.
+     *
+     * @return The number of bytes read.
+     */
+    private static int fill(InputStream in, byte[] buf) throws IOException
+    {
+        int len = 0;
+        int n;
+        while (len < buf.length && (n = in.read(buf, len, buf.length - len)) != -1)
+            len += n;
+        return len;
+    }
+
+    /**
+     * Create an empty table for this generator's sums.
+     */
+    private SignatureTable newTable(long baseOffset)
+    {
+        return new SignatureTable(config.blockLength, config.strongSumLength, baseOffset);
+    }
+
+    /**
+     * Checksum <code>len</code> bytes of <code>buf</code>, starting on a
+     * block boundary, appending the sums to <code>sums</code>.
+     */
+    private void generateSums(byte[] buf, int off, int len, SignatureTable sums)
+    {
+        for (int i = 0; i < len; i += config.blockLength)
+        {
+            int n = Math.min(len - i, config.blockLength);
+            int weak = sum(buf, off + i, n);
+            sums.add(weak, digest, 0, n);
+        }
     }
 }
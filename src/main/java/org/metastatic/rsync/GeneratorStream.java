@@ -23,8 +23,10 @@ THE SOFTWARE.  */
 
 package org.metastatic.rsync;
 
-import java.util.LinkedList;
+import java.security.DigestException;
+
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * A "streaming" API for generating checksums. This class accepts incremental
@@ -38,6 +40,13 @@ generator.addListener(your_listener);
 for (byte[] part : parts)
    generator.update(part);
 generator.doFinal();</pre>
+ *
+ * <p>To collect the checksums, add a {@link SignatureTable} as a
+ * listener.</p>
+ *
+ * <p>If {@link Configuration#eventQueueLength} is set, listeners are
+ * called on a separate thread, and {@link #doFinal()} waits until they
+ * have seen every event.</p>
  */
 public class GeneratorStream
 {
@@ -72,14 +81,38 @@ public class GeneratorStream
 
     protected int seq;
 
+    /**
+     * Scratch space for the strong sum, reused for every block.
+     */
+    private final byte[] digest;
+
+    /**
+     * The queue of events for the listener thread, or null if listeners
+     * are called directly.
+     */
+    private final EventQueue<ChecksumLocation> queue;
+
     // Constructor.
     // -----------------------------------------------------------------------
 
     public GeneratorStream(Configuration config)
     {
         this.config = config;
-        this.listeners = new LinkedList<GeneratorListener>();
+        this.listeners = new CopyOnWriteArrayList<GeneratorListener>();
         buffer = new byte[config.blockLength];
+        digest = new byte[config.strongSum.getDigestLength()];
+        if (config.eventQueueLength > 0)
+        {
+            queue = new EventQueue<ChecksumLocation>(config.eventQueueLength,
+                    new EventQueue.Dispatcher<ChecksumLocation>()
+                    {
+                        public void dispatch(ChecksumLocation location) throws ListenerException
+                        {
+                            dispatchUpdate(location);
+                        }
+                    });
+        } else
+            queue = null;
         reset();
     }
 
@@ -127,32 +160,12 @@ public class GeneratorStream
      */
     public void update(byte b) throws ListenerException
     {
-        ListenerException exception = null, current = null;
         buffer[ndx++] = b;
         if (ndx == buffer.length)
         {
             ChecksumLocation p = generateSum(buffer, 0, buffer.length);
-            for (GeneratorListener listener : listeners)
-            {
-                try
-                {
-                    listener.update(new GeneratorEvent(p));
-                } catch (ListenerException le)
-                {
-                    if (exception != null)
-                    {
-                        current.setNext(le);
-                        current = le;
-                    } else
-                    {
-                        exception = le;
-                        current = le;
-                    }
-                }
-            }
-            if (exception != null)
-                throw exception;
             ndx = 0;
+            fireUpdate(p);
         }
     }
 
@@ -165,7 +178,6 @@ public class GeneratorStream
      */
     public void update(byte[] buf, int off, int len) throws ListenerException
     {
-        ListenerException exception = null, current = null;
         int i = off;
         do
         {
@@ -176,27 +188,8 @@ public class GeneratorStream
             if (ndx == buffer.length)
             {
                 ChecksumLocation p = generateSum(buffer, 0, buffer.length);
-                for (GeneratorListener listener : listeners)
-                {
-                    try
-                    {
-                        listener.update(new GeneratorEvent(p));
-                    } catch (ListenerException le)
-                    {
-                        if (exception != null)
-                        {
-                            current.setNext(le);
-                            current = le;
-                        } else
-                        {
-                            exception = le;
-                            current = le;
-                        }
-                    }
-                }
-                if (exception != null)
-                    throw exception;
                 ndx = 0;
+                fireUpdate(p);
             }
         } while (i < off + len);
     }
@@ -217,37 +210,67 @@ public class GeneratorStream
      */
     public void doFinal() throws ListenerException
     {
-        ListenerException exception = null, current = null;
         if (ndx > 0)
         {
             ChecksumLocation p = generateSum(buffer, 0, ndx);
-            for (GeneratorListener listener : listeners)
+            fireUpdate(p);
+        }
+        if (queue != null)
+            queue.flush();
+        reset();
+    }
+
+    // Own methods.
+    // -----------------------------------------------------------------------
+
+    /**
+     * Send a checksum to the listeners, or queue it for the listener
+     * thread.
+     *
+     * @param location The checksum and its location.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void fireUpdate(ChecksumLocation location) throws ListenerException
+    {
+        if (queue != null)
+            queue.put(location);
+        else
+            dispatchUpdate(location);
+    }
+
+    /**
+     * Send a checksum to every listener. If any listeners throw an
+     * exception, the rest are still notified, and the exceptions are
+     * chained together and thrown once all listeners have been called.
+     *
+     * @param location The checksum and its location.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void dispatchUpdate(ChecksumLocation location) throws ListenerException
+    {
+        ListenerException exception = null, current = null;
+        for (GeneratorListener listener : listeners)
+        {
+            try
             {
-                try
+                listener.update(new GeneratorEvent(location));
+            } catch (ListenerException le)
+            {
+                if (exception != null)
                 {
-                    listener.update(new GeneratorEvent(p));
-                } catch (ListenerException le)
+                    current.setNext(le);
+                    current = le;
+                } else
                 {
-                    if (exception != null)
-                    {
-                        current.setNext(le);
-                        current = le;
-                    } else
-                    {
-                        exception = le;
-                        current = le;
-                    }
+                    exception = le;
+                    current = le;
                 }
             }
-            if (exception != null)
-                throw exception;
         }
-        reset();
+        if (exception != null)
+            throw exception;
     }
 
-    // Own methods.
-    // -----------------------------------------------------------------------
-
     /**
      * Generate a sum pair for a portion of a byte array.
      *
@@ -258,16 +281,24 @@ public class GeneratorStream
      */
     protected ChecksumLocation generateSum(byte[] buf, int off, int len)
     {
-        config.weakSum.check(buf, off, len);
+        if (config.weakSum instanceof WindowChecksum)
+            ((WindowChecksum) config.weakSum).checkNoCopy(buf, off, len);
+        else
+            config.weakSum.check(buf, off, len);
         if (config.checksumSeed != null && config.isSeedPrefix)
             config.strongSum.update(config.checksumSeed);
         config.strongSum.update(buf, off, len);
         if (config.checksumSeed != null && !config.isSeedPrefix)
             config.strongSum.update(config.checksumSeed);
         int weak = config.weakSum.getValue();
-        byte[] strong = new byte[config.strongSumLength];
-        System.arraycopy(config.strongSum.digest(), 0, strong, 0, config.strongSumLength);
-        ChecksumLocation loc = new ChecksumLocation(new ChecksumPair(weak, strong), count, len, seq);
+        try
+        {
+            config.strongSum.digest(digest, 0, digest.length);
+        } catch (DigestException de)
+        {
+            throw new Error(de);
+        }
+        ChecksumLocation loc = new ChecksumLocation(new ChecksumPair(weak, digest, 0, config.strongSumLength), count, len, seq);
         count += len;
         seq++;
         return loc;
@@ -0,0 +1,281 @@
+/* InPlacePlanner: orders copies for rebuilding a file in place.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.Arrays;
+
+/**
+ * Orders the copies of a delta so that a file can be rebuilt in place.
+ * A copy must not run after another copy has overwritten the data it
+ * reads, so there is an edge from copy <i>u</i> to copy <i>v</i> when
+ * the range <i>u</i> writes overlaps the range <i>v</i> reads, and
+ * <i>v</i> must run first. The copies are sorted topologically by a
+ * depth-first search; a copy with an edge back to a copy still being
+ * searched closes a cycle, and is removed from the order. The data of
+ * removed copies must be read before any copy runs.
+ *
+ * <p>The copies are given in order of their read offsets. The copies
+ * that read a given range are then found with an implicit interval
+ * tree: a binary tree over that order, in which each node holds the
+ * greatest end of the read ranges below it. A search visits only the
+ * subtrees that hold an overlapping range, so finding the edges of a
+ * copy takes <i>O</i>(log <i>n</i>) time plus the number of edges,
+ * instead of a comparison with every other copy. Edges are never
+ * stored beyond the copies on the search path, and the search keeps its
+ * own stack, so long chains of dependent copies do not overflow the
+ * thread's stack.</p>
+ */
+final class InPlacePlanner
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    private static final byte WHITE = 0;
+    private static final byte GRAY = 1;
+    private static final byte BLACK = 2;
+
+    /**
+     * The number of copies.
+     */
+    private final int n;
+
+    /**
+     * The read offset of each copy, in increasing order.
+     */
+    private final long[] readOffsets;
+
+    /**
+     * The write offset of each copy.
+     */
+    private final long[] writeOffsets;
+
+    /**
+     * The length of each copy.
+     */
+    private final int[] lengths;
+
+    /**
+     * The interval tree: node <i>k</i> has children 2<i>k</i> and
+     * 2<i>k</i>+1, and leaf <code>leaves + i</code> is copy <i>i</i>.
+     * Each node holds the greatest read end below it.
+     */
+    private final long[] maxEnd;
+
+    /**
+     * The number of leaves in {@link #maxEnd}, a power of two.
+     */
+    private final int leaves;
+
+    /**
+     * The neighbors of the copies on the search stack.
+     */
+    private int[] edges;
+
+    /**
+     * The number of entries used in {@link #edges}.
+     */
+    private int edgeCount;
+
+    /**
+     * The copies in the order they may run.
+     */
+    private int[] order;
+
+    private int orderCount;
+
+    /**
+     * The copies removed to break cycles.
+     */
+    private int[] cycles;
+
+    private int cycleCount;
+
+    // Constructor.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a planner for some copies.
+     *
+     * @param readOffsets  The read offset of each copy, in increasing order.
+     * @param writeOffsets The write offset of each copy.
+     * @param lengths      The length of each copy.
+     * @param n            The number of copies.
+     */
+    InPlacePlanner(long[] readOffsets, long[] writeOffsets, int[] lengths, int n)
+    {
+        this.n = n;
+        this.readOffsets = readOffsets;
+        this.writeOffsets = writeOffsets;
+        this.lengths = lengths;
+        int l = 1;
+        while (l < n)
+            l <<= 1;
+        leaves = l;
+        maxEnd = new long[2 * l];
+        Arrays.fill(maxEnd, Long.MIN_VALUE);
+        for (int i = 0; i < n; i++)
+        {
+            if (i > 0 && readOffsets[i - 1] > readOffsets[i])
+                throw new IllegalArgumentException("copies not in order of read offset");
+            maxEnd[l + i] = readOffsets[i] + lengths[i];
+        }
+        for (int k = l - 1; k > 0; k--)
+            maxEnd[k] = Math.max(maxEnd[2 * k], maxEnd[2 * k + 1]);
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Sort the copies. Afterwards, {@link #getOrder()} and {@link
+     * #getCycles()} are available.
+     */
+    void plan()
+    {
+        byte[] colors = new byte[n];
+        boolean[] removed = new boolean[n];
+        int[] stackNode = new int[Math.max(n, 1)];
+        int[] stackNext = new int[Math.max(n, 1)];
+        int[] stackEnd = new int[Math.max(n, 1)];
+        edges = new int[16];
+        order = new int[n];
+        cycles = new int[16];
+        orderCount = cycleCount = 0;
+
+        for (int s = 0; s < n; s++)
+        {
+            if (colors[s] != WHITE)
+                continue;
+            int top = 0;
+            colors[s] = GRAY;
+            stackNode[0] = s;
+            stackNext[0] = edgeCount;
+            collect(s);
+            stackEnd[0] = edgeCount;
+            while (top >= 0)
+            {
+                int u = stackNode[top];
+                if (stackNext[top] < stackEnd[top])
+                {
+                    int v = edges[stackNext[top]++];
+                    if (colors[v] == WHITE)
+                    {
+                        top++;
+                        colors[v] = GRAY;
+                        stackNode[top] = v;
+                        stackNext[top] = edgeCount;
+                        collect(v);
+                        stackEnd[top] = edgeCount;
+                    } else if (colors[v] == GRAY)
+                        removed[u] = true;
+                    continue;
+                }
+                colors[u] = BLACK;
+                // Each copy's edges follow those of the copy below it.
+                edgeCount = top > 0 ? stackEnd[top - 1] : 0;
+                if (removed[u])
+                {
+                    if (cycleCount == cycles.length)
+                        cycles = Arrays.copyOf(cycles, cycleCount * 2);
+                    cycles[cycleCount++] = u;
+                } else
+                    order[orderCount++] = u;
+                top--;
+            }
+        }
+        edges = null;
+    }
+
+    /**
+     * Return the copies that may run, in the order they must run.
+     *
+     * @return The indices of the copies.
+     */
+    int[] getOrder()
+    {
+        return Arrays.copyOf(order, orderCount);
+    }
+
+    /**
+     * Return the copies removed to break cycles, whose data must be read
+     * before any copy in {@link #getOrder()} runs.
+     *
+     * @return The indices of the copies.
+     */
+    int[] getCycles()
+    {
+        return Arrays.copyOf(cycles, cycleCount);
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Append to {@link #edges} every other copy whose read range overlaps
+     * the write range of copy <code>u</code>.
+     */
+    private void collect(int u)
+    {
+        if (lengths[u] == 0)
+            return;
+        long start = writeOffsets[u];
+        long end = start + lengths[u];
+        // The copies that begin reading before the write ends.
+        int lo = 0, hi = n;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (readOffsets[mid] < end)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        collect(1, 0, leaves, lo, start, u);
+    }
+
+    /**
+     * Search the subtree at <code>node</code>, covering copies
+     * <code>l</code> to <code>r</code>, for copies before
+     * <code>limit</code> that read past <code>start</code>.
+     */
+    private void collect(int node, int l, int r, int limit, long start, int u)
+    {
+        if (l >= limit || maxEnd[node] <= start)
+            return;
+        if (r - l == 1)
+        {
+            if (l != u && lengths[l] > 0)
+            {
+                if (edgeCount == edges.length)
+                    edges = Arrays.copyOf(edges, edgeCount * 2);
+                edges[edgeCount++] = l;
+            }
+            return;
+        }
+        int mid = (l + r) >>> 1;
+        collect(2 * node, l, mid, limit, start, u);
+        collect(2 * node + 1, mid, r, limit, start, u);
+    }
+}
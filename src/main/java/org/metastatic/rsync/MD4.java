@@ -102,6 +102,11 @@ public class MD4 extends MessageDigestSpi implements Cloneable
      */
     private final int[] X = new int[16];
 
+    /**
+     * Scratch space for the padding, which is at most 72 bytes.
+     */
+    private final byte[] pad = new byte[BLOCK_LENGTH + 8];
+
     // Constructors.
     // -----------------------------------------------------------------
 
@@ -185,29 +190,24 @@ public class MD4 extends MessageDigestSpi implements Cloneable
      */
     protected byte[] engineDigest()
     {
-        byte[] tail = padBuffer();
-        engineUpdate(tail, 0, tail.length);
-        byte[] digest = {
-                (byte) a, (byte) (a >>> 8), (byte) (a >>> 16), (byte) (a >>> 24),
-                (byte) b, (byte) (b >>> 8), (byte) (b >>> 16), (byte) (b >>> 24),
-                (byte) c, (byte) (c >>> 8), (byte) (c >>> 16), (byte) (c >>> 24),
-                (byte) d, (byte) (d >>> 8), (byte) (d >>> 16), (byte) (d >>> 24)
-        };
-
-        engineReset();
-
+        byte[] digest = new byte[DIGEST_LENGTH];
+        finish(digest, 0, DIGEST_LENGTH);
         return digest;
     }
 
+    /**
+     * Pack the four chaining variables straight into <code>out</code>,
+     * writing at most <code>len</code> bytes. Nothing is allocated.
+     */
     protected int engineDigest(byte[] out, int off, int len) throws DigestException
     {
-        if (off < 0 || off + len >= out.length)
+        if (off < 0 || off + len > out.length)
         {
             throw new DigestException();
         }
-        System.arraycopy(engineDigest(), 0, out, off,
-                Math.min(len, DIGEST_LENGTH));
-        return Math.min(len, DIGEST_LENGTH);
+        len = Math.min(len, DIGEST_LENGTH);
+        finish(out, off, len);
+        return len;
     }
 
     /**
@@ -228,23 +228,49 @@ public class MD4 extends MessageDigestSpi implements Cloneable
      * append the length of the buffer, in bits, before padding.
      */
     protected byte[] padBuffer()
+    {
+        byte[] tail = new byte[BLOCK_LENGTH + 8];
+        int len = pad(tail);
+        byte[] result = new byte[len];
+        System.arraycopy(tail, 0, result, 0, len);
+        return result;
+    }
+
+    /**
+     * Write the padding described in {@link #padBuffer()} into
+     * <code>dest</code> and return its length.
+     */
+    private int pad(byte[] dest)
     {
         int n = (int) (count % BLOCK_LENGTH);
         int padding = (n < 56) ? (56 - n) : (120 - n);
-        byte[] pad = new byte[padding + 8];
 
-        pad[0] = (byte) 0x80;
+        dest[0] = (byte) 0x80;
+        for (int i = 1; i < padding; i++)
+        {
+            dest[i] = 0;
+        }
         long bits = count << 3;
-        pad[padding++] = (byte) bits;
-        pad[padding++] = (byte) (bits >>> 8);
-        pad[padding++] = (byte) (bits >>> 16);
-        pad[padding++] = (byte) (bits >>> 24);
-        pad[padding++] = (byte) (bits >>> 32);
-        pad[padding++] = (byte) (bits >>> 40);
-        pad[padding++] = (byte) (bits >>> 48);
-        pad[padding] = (byte) (bits >>> 56);
-
-        return pad;
+        for (int i = 0; i < 8; i++)
+        {
+            dest[padding + i] = (byte) (bits >>> (i * 8));
+        }
+        return padding + 8;
+    }
+
+    /**
+     * Pad the message, write the first <code>len</code> bytes of the
+     * digest into <code>out</code> at <code>off</code>, and reset.
+     */
+    private void finish(byte[] out, int off, int len)
+    {
+        engineUpdate(pad, 0, pad(pad));
+        for (int i = 0; i < len; i++)
+        {
+            int word = i < 4 ? a : i < 8 ? b : i < 12 ? c : d;
+            out[off + i] = (byte) (word >>> ((i & 3) * 8));
+        }
+        engineReset();
     }
 
     /**
@@ -25,15 +25,26 @@ package org.metastatic.rsync;
 import java.io.File;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * A version of {@link RebuilderStream} that maps large files to memory
  * using the NIO API. Small files are not mapped and automatically use
  * the superclass's implementation.
+ *
+ * <p>The file is mapped in segments of a fixed size, aligned to
+ * multiples of that size, so files of any length can be read. The most
+ * recently used segments are kept mapped, and the least recently used
+ * is dropped when another must be mapped, so deltas that jump around
+ * the file do not remap it for each copy. Copies are sent to listeners
+ * as slices of the mapped segments, without copying them into arrays;
+ * a copy that straddles the end of a segment is sent as one event for
+ * each segment it reads from.</p>
  */
 public class MappedRebuilderStream extends RebuilderStream
 {
@@ -47,7 +58,17 @@ public class MappedRebuilderStream extends RebuilderStream
     public static final int MAP_LIMIT = 32768;
 
     /**
-     * The size of the map. If not specified, the entire file is mapped.
+     * The default size of each mapped segment.
+     */
+    public static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * The default number of segments kept mapped.
+     */
+    public static final int MAX_SEGMENTS = 16;
+
+    /**
+     * The size of each mapped segment.
      */
     protected long mapSize;
 
@@ -58,50 +79,83 @@ public class MappedRebuilderStream extends RebuilderStream
     protected long mapLimit;
 
     /**
-     * The mapped file, if any.
+     * The most segments to keep mapped at once.
      */
-    protected MappedByteBuffer mappedFile;
+    protected int maxSegments;
 
     /**
-     * The current offset in the file where the region is mapped.
+     * The mapped segments, by index, from least to most recently used.
      */
-    protected long mapOffset;
+    protected final LinkedHashMap<Long, MappedByteBuffer> segments;
+
+    /**
+     * The length of the basis file, or -1 if it is not mapped.
+     */
+    protected long mappedLength;
 
     // Constructors.
     // -----------------------------------------------------------------------
 
     /**
-     * Create a new memory mapped rebuilder, with the default map limit
-     * and a maximum map size of {@link java.lang.Integer#MAX_VALUE}.
+     * Create a new memory mapped rebuilder, with the default map limit,
+     * segment size, and number of segments.
      */
     public MappedRebuilderStream()
     {
-        this(Integer.MAX_VALUE, MAP_LIMIT);
+        this(SEGMENT_SIZE, MAP_LIMIT);
     }
 
     /**
-     * Create a new memory mapped rebuilder with the given map limit and
-     * a maximum map size of {@link java.lang.Integer#MAX_VALUE}.
+     * Create a new memory mapped rebuilder with the given map limit, and
+     * the default segment size and number of segments.
      *
      * @param mapLimit The smallest file size to map.
      */
     public MappedRebuilderStream(long mapLimit)
     {
-        this(Integer.MAX_VALUE, mapLimit);
+        this(SEGMENT_SIZE, mapLimit);
     }
 
     /**
      * Create a new memory mapped rebuilder with the given map limit and
-     * maximum map size.
+     * segment size, and the default number of segments.
      *
-     * @param mapSize  The maximum size of map to create.
+     * @param mapSize  The size of each mapped segment, at most {@link
+     *                 java.lang.Integer#MAX_VALUE}.
      * @param mapLimit The smallest file size to map.
      */
     public MappedRebuilderStream(long mapSize, long mapLimit)
+    {
+        this(mapSize, mapLimit, MAX_SEGMENTS);
+    }
+
+    /**
+     * Create a new memory mapped rebuilder with the given map limit,
+     * segment size, and number of segments.
+     *
+     * @param mapSize     The size of each mapped segment, at most {@link
+     *                    java.lang.Integer#MAX_VALUE}.
+     * @param mapLimit    The smallest file size to map.
+     * @param maxSegments The most segments to keep mapped at once.
+     */
+    public MappedRebuilderStream(long mapSize, long mapLimit, int maxSegments)
     {
         super();
+        if (mapSize <= 0 || mapSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bad segment size: " + mapSize);
+        if (maxSegments <= 0)
+            throw new IllegalArgumentException("need at least one segment");
         this.mapSize = mapSize;
         this.mapLimit = mapLimit;
+        this.maxSegments = maxSegments;
+        segments = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest)
+            {
+                return size() > MappedRebuilderStream.this.maxSegments;
+            }
+        };
+        mappedLength = -1;
     }
 
     // Instance methods.
@@ -110,51 +164,50 @@ public class MappedRebuilderStream extends RebuilderStream
     public void setBasisFile(File file) throws IOException
     {
         super.setBasisFile(file);
-        mappedFile = null;
-        if (file != null && file.length() >= mapLimit)
-        {
-            mappedFile = basisFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
-                    0, Math.min(mapSize, file.length()));
-            mapOffset = 0;
-        }
+        reset();
     }
 
     public void setBasisFile(String filename) throws IOException
     {
         super.setBasisFile(filename);
-        mappedFile = null;
-        if (basisFile != null && basisFile.length() >= mapLimit)
-        {
-            mappedFile = basisFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
-                    0, Math.min(mapSize, basisFile.length()));
-            mapOffset = 0;
-        }
+        reset();
+    }
+
+    public void doFinal() throws IOException, ListenerException
+    {
+        segments.clear();
+        mappedLength = -1;
+        super.doFinal();
     }
 
     public void update(Delta delta) throws IOException, ListenerException
     {
-        if (mappedFile == null)
+        if (mappedLength < 0)
         {
             super.update(delta);
-        } else
+            return;
+        }
+        if (delta instanceof DataBlock)
         {
-            RebuilderEvent event = null;
-            if (delta instanceof DataBlock)
-            {
-                event = new RebuilderEvent(((DataBlock) delta).getData(),
-                        delta.getWriteOffset());
-            } else
-            {
-                long offset = ((Offsets) delta).getOldOffset();
-                if (offset + delta.getBlockLength() > mapOffset + mappedFile.capacity())
-                    remapFile(offset);
-                byte[] buf = new byte[delta.getBlockLength()];
-                mappedFile.position((int) (offset - mapOffset));
-                mappedFile.get(buf);
-                event = new RebuilderEvent(buf, delta.getWriteOffset());
-            }
-            for (Iterator i = listeners.iterator(); i.hasNext(); )
-                ((RebuilderListener) i.next()).update(event);
+            fireUpdate(new RebuilderEvent(((DataBlock) delta).getData(),
+                    delta.getWriteOffset()));
+            return;
+        }
+        long offset = ((Offsets) delta).getOldOffset();
+        long end = Math.min(offset + delta.getBlockLength(), mappedLength);
+        long writeOffset = delta.getWriteOffset();
+        while (offset < end)
+        {
+            long index = offset / mapSize;
+            MappedByteBuffer segment = segment(index);
+            int pos = (int) (offset - index * mapSize);
+            int len = (int) Math.min(end - offset, segment.capacity() - pos);
+            ByteBuffer slice = segment.duplicate();
+            slice.limit(pos + len);
+            slice.position(pos);
+            fireUpdate(new RebuilderEvent(slice, writeOffset));
+            offset += len;
+            writeOffset += len;
         }
     }
 
@@ -162,18 +215,32 @@ public class MappedRebuilderStream extends RebuilderStream
     // -----------------------------------------------------------------------
 
     /**
-     * Remap the file, if the read offset is not currently mapped.
+     * Drop the mapped segments of the previous basis file, and decide
+     * whether to map the new one.
+     */
+    private void reset() throws IOException
+    {
+        segments.clear();
+        mappedLength = -1;
+        if (basisFile != null && basisLength >= mapLimit)
+            mappedLength = basisLength;
+    }
+
+    /**
+     * Return a mapped segment, mapping it if it is not already.
      *
-     * @param newOffset The new offset that needs to be read. The mapped
-     *                  region will have this offset in the middle of the buffer.
+     * @param index The index of the segment.
      */
-    private void remapFile(long newOffset) throws IOException
+    private MappedByteBuffer segment(long index) throws IOException
     {
-        long newLen = Math.min(mapSize, 2 * (basisFile.length() - newOffset));
-        mapOffset = newOffset - (newLen / 2);
-        if (mapOffset < 0)
-            mapOffset = 0;
-        mappedFile = basisFile.getChannel().map(
-                FileChannel.MapMode.READ_ONLY, mapOffset, newLen);
+        MappedByteBuffer segment = segments.get(index);
+        if (segment == null)
+        {
+            long start = index * mapSize;
+            segment = basisFile.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    start, Math.min(mapSize, mappedLength - start));
+            segments.put(index, segment);
+        }
+        return segment;
     }
 }
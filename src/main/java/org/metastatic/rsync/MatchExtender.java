@@ -0,0 +1,265 @@
+/* MatchExtender: grow matched blocks into neighbouring literals.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Extends matched blocks byte by byte into the literal data around
+ * them. A {@link MatcherStream} only finds whole blocks, so the bytes
+ * between an edit and the nearest block boundaries on either side of
+ * it are sent as literal data, even though most of them are usually
+ * unchanged. Given the original data, this class compares the end of
+ * each {@link DataBlock} that precedes an {@link Offsets} with the bytes
+ * before the matched block in the original, and the start of each that
+ * follows one with the bytes after it, and moves every byte that agrees
+ * from the literal into the match.
+ *
+ * <p>This pass needs the original data, so it is only useful where
+ * both versions are at hand, such as a local sync, or when checking
+ * deltas before they are applied. The deltas it returns rebuild exactly
+ * the same data as the deltas it is given.</p>
+ *
+ * @version $Revision$
+ */
+public final class MatchExtender
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The number of bytes of original data compared at a time.
+     */
+    private static final int STEP = 4096;
+
+    // Constructor.
+    // -------------------------------------------------------------------------
+
+    private MatchExtender()
+    {
+    }
+
+    // Class methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Extend the matches in a list of deltas against the original data.
+     *
+     * @param basis  The original data.
+     * @param deltas The deltas, as produced by a {@link Matcher}.
+     * @return The new deltas, sorted by write offset.
+     */
+    public static List<Delta> extend(final byte[] basis, List<Delta> deltas)
+    {
+        try
+        {
+            return extend(new Basis()
+            {
+                long length()
+                {
+                    return basis.length;
+                }
+
+                void read(long pos, byte[] buf, int off, int len)
+                {
+                    System.arraycopy(basis, (int) pos, buf, off, len);
+                }
+            }, deltas);
+        } catch (IOException shouldNotHappen)
+        {
+            throw new Error(shouldNotHappen);
+        }
+    }
+
+    /**
+     * Extend the matches in a list of deltas against the original file.
+     *
+     * @param basis  The original file.
+     * @param deltas The deltas, as produced by a {@link Matcher}.
+     * @return The new deltas, sorted by write offset.
+     * @throws IOException If the original file cannot be read.
+     */
+    public static List<Delta> extend(File basis, List<Delta> deltas)
+            throws IOException
+    {
+        final RandomAccessFile f = new RandomAccessFile(basis, "r");
+        try
+        {
+            return extend(new Basis()
+            {
+                long length() throws IOException
+                {
+                    return f.length();
+                }
+
+                void read(long pos, byte[] buf, int off, int len)
+                        throws IOException
+                {
+                    f.seek(pos);
+                    f.readFully(buf, off, len);
+                }
+            }, deltas);
+        } finally
+        {
+            f.close();
+        }
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    private static List<Delta> extend(Basis basis, List<Delta> deltas)
+            throws IOException
+    {
+        Delta[] darray = deltas.toArray(new Delta[deltas.size()]);
+        Arrays.sort(darray, new Rebuilder.OffsetComparator());
+        long basisLength = basis.length();
+        byte[] scratch = new byte[STEP];
+
+        // The part of each literal that is left is data[start[i]..end[i]).
+        int[] start = new int[darray.length];
+        int[] end = new int[darray.length];
+        for (int i = 0; i < darray.length; i++)
+            end[i] = darray[i].getBlockLength();
+
+        List<Delta> result = new ArrayList<Delta>(darray.length);
+        for (int i = 0; i < darray.length; i++)
+        {
+            if (!(darray[i] instanceof Offsets))
+                continue;
+            Offsets o = (Offsets) darray[i];
+            long oldOffset = o.getOldOffset();
+            long newOffset = o.getNewOffset();
+            int len = o.getBlockLength();
+            if (i > 0 && darray[i - 1] instanceof DataBlock)
+            {
+                byte[] data = ((DataBlock) darray[i - 1]).getData();
+                int max = (int) Math.min(end[i - 1] - start[i - 1], oldOffset);
+                max = Math.min(max, Integer.MAX_VALUE - len);
+                int n = extendBackward(basis, oldOffset, data, end[i - 1], max, scratch);
+                end[i - 1] -= n;
+                oldOffset -= n;
+                newOffset -= n;
+                len += n;
+            }
+            if (i + 1 < darray.length && darray[i + 1] instanceof DataBlock)
+            {
+                byte[] data = ((DataBlock) darray[i + 1]).getData();
+                long oldEnd = oldOffset + len;
+                int max = (int) Math.min(end[i + 1] - start[i + 1],
+                        Math.max(0, basisLength - oldEnd));
+                max = Math.min(max, Integer.MAX_VALUE - len);
+                int n = extendForward(basis, oldEnd, data, start[i + 1], max, scratch);
+                start[i + 1] += n;
+                len += n;
+            }
+            darray[i] = new Offsets(oldOffset, newOffset, len);
+        }
+
+        for (int i = 0; i < darray.length; i++)
+        {
+            if (darray[i] instanceof DataBlock)
+            {
+                DataBlock d = (DataBlock) darray[i];
+                if (start[i] == 0 && end[i] == d.getBlockLength())
+                    result.add(d);
+                else if (start[i] < end[i])
+                    result.add(new DataBlock(d.getOffset() + start[i], d.getData(),
+                            start[i], end[i] - start[i]));
+            } else
+            {
+                result.add(darray[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Count how many of the bytes before <code>data[end]</code> equal
+     * those before <code>oldOffset</code> in the original, up to
+     * <code>max</code>.
+     */
+    private static int extendBackward(Basis basis, long oldOffset, byte[] data,
+                                      int end, int max, byte[] scratch)
+            throws IOException
+    {
+        int n = 0;
+        while (n < max)
+        {
+            int step = Math.min(scratch.length, max - n);
+            basis.read(oldOffset - n - step, scratch, 0, step);
+            for (int k = 0; k < step; k++)
+            {
+                if (scratch[step - 1 - k] != data[end - 1 - n - k])
+                    return n + k;
+            }
+            n += step;
+        }
+        return n;
+    }
+
+    /**
+     * Count how many of the bytes from <code>data[start]</code> on equal
+     * those from <code>oldOffset</code> on in the original, up to
+     * <code>max</code>.
+     */
+    private static int extendForward(Basis basis, long oldOffset, byte[] data,
+                                     int start, int max, byte[] scratch)
+            throws IOException
+    {
+        int n = 0;
+        while (n < max)
+        {
+            int step = Math.min(scratch.length, max - n);
+            basis.read(oldOffset + n, scratch, 0, step);
+            for (int k = 0; k < step; k++)
+            {
+                if (scratch[k] != data[start + n + k])
+                    return n + k;
+            }
+            n += step;
+        }
+        return n;
+    }
+
+    // Inner classes.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Random access to the original data.
+     */
+    private static abstract class Basis
+    {
+        abstract long length() throws IOException;
+
+        abstract void read(long pos, byte[] buf, int off, int len)
+                throws IOException;
+    }
+}
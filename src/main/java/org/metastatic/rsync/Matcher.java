@@ -24,12 +24,11 @@ package org.metastatic.rsync;
 
 import java.io.*;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
  * <p>Methods for performing the checksum search. The result of a search
- * is a {@link java.util.List} of {@link Delta} objects that, when
+ * is a {@link DeltaList} of {@link Delta} objects that, when
  * applied to a method in {@link Rebuilder}, will reconstruct the new
  * version of the data.</p>
  *
@@ -41,7 +40,7 @@ public final class Matcher {
    // -----------------------------------------------------------------
 
    /** The list of deltas being built. */
-   protected final List<Delta> deltas;
+   protected DeltaList deltas;
 
    /** The underlying matcher stream. */
    protected final MatcherStream matcher;
@@ -49,6 +48,9 @@ public final class Matcher {
    /** The size of allocated byte arrays. */
    protected final int chunkSize;
 
+   /** The sink that adds to {@link #deltas}. */
+   private final Callback callback;
+
    // Constructors.
    // -----------------------------------------------------------------
 
@@ -58,9 +60,9 @@ public final class Matcher {
     * @param config The {@link Configuration} for this Matcher.
     */
    public Matcher(Configuration config) {
-      deltas = new LinkedList<Delta>();
       matcher = new MatcherStream(config);
-      matcher.addListener(new Callback(deltas));
+      callback = new Callback();
+      matcher.addSink(callback);
       chunkSize = config.chunkSize;
    }
 
@@ -74,7 +76,7 @@ public final class Matcher {
     * @param buf  The data buffer to search.
     * @return A collection of {@link Delta}s derived from this search.
     */
-   public List<Delta> hashSearch(List<ChecksumLocation> sums, byte[] buf) {
+   public DeltaList hashSearch(List<ChecksumLocation> sums, byte[] buf) {
       return hashSearch(sums, buf, 0, buf.length);
    }
 
@@ -87,9 +89,9 @@ public final class Matcher {
     * @param len  The number of bytes to search from <code>buf</code>.
     * @return A collection of {@link Delta}s derived from this search.
     */
-   public List<Delta> hashSearch(List<ChecksumLocation> sums, byte[] buf, int off, int len)
+   public DeltaList hashSearch(List<ChecksumLocation> sums, byte[] buf, int off, int len)
    {
-      deltas.clear();
+      deltas = new DeltaList();
       matcher.reset();
       matcher.setChecksums(sums);
       try {
@@ -97,7 +99,7 @@ public final class Matcher {
          matcher.doFinal();
       } catch (ListenerException shouldNotHappen) {
       }
-      return new LinkedList<Delta>(deltas);
+      return deltas;
    }
 
    /**
@@ -108,7 +110,7 @@ public final class Matcher {
     * @return A list of deltas derived from this search.
     * @throws IOException If <i>filename</i> cannot be read.
     */
-   public List<Delta> hashSearch(List<ChecksumLocation> sums, String filename) throws IOException {
+   public DeltaList hashSearch(List<ChecksumLocation> sums, String filename) throws IOException {
       return hashSearch(sums, new FileInputStream(filename));
    }
 
@@ -120,7 +122,7 @@ public final class Matcher {
     * @return A list of {@link Delta}s derived from this search.
     * @throws IOException If <i>f</i> cannot be read.
     */
-   public List<Delta> hashSearch(List<ChecksumLocation> sums, File f) throws IOException {
+   public DeltaList hashSearch(List<ChecksumLocation> sums, File f) throws IOException {
       return hashSearch(sums, new FileInputStream(f));
    }
 
@@ -132,8 +134,8 @@ public final class Matcher {
     * @return A collection of {@link Delta}s derived from this search.
     * @throws IOException If an exception occurs while reading.
     */
-   public List<Delta> hashSearch(List<ChecksumLocation> sums, InputStream in) throws IOException {
-      deltas.clear();
+   public DeltaList hashSearch(List<ChecksumLocation> sums, InputStream in) throws IOException {
+      deltas = new DeltaList();
       matcher.reset();
       matcher.setChecksums(sums);
       byte[] buffer = new byte[chunkSize];
@@ -144,35 +146,78 @@ public final class Matcher {
          matcher.doFinal();
       } catch (ListenerException shouldNeverHappen) {
       }
-      return new LinkedList<Delta>(deltas);
+      return deltas;
    }
 
-   // Inner classes.
-   // -----------------------------------------------------------------------
-
    /**
-    * Trivial implementation of a MatcherListener that simply adds
-    * incoming deltas to a List.
+    * Search a portion of a byte buffer, sending each delta to a sink
+    * as it is found instead of collecting them in a list.
+    *
+    * @param sums The checksums to search for.
+    * @param buf  The data buffer to search.
+    * @param off  The offset in <code>buf</code> to begin.
+    * @param len  The number of bytes to search from <code>buf</code>.
+    * @param sink The sink to send deltas to.
+    * @throws ListenerException If the sink throws an exception.
     */
-   private class Callback implements MatcherListener {
+   public void hashSearch(List<ChecksumLocation> sums, byte[] buf, int off, int len,
+                          DeltaSink sink) throws ListenerException {
+      matcher.removeSink(callback);
+      matcher.addSink(sink);
+      try {
+         matcher.reset();
+         matcher.setChecksums(sums);
+         matcher.update(buf, off, len);
+         matcher.doFinal();
+      } finally {
+         matcher.removeSink(sink);
+         matcher.addSink(callback);
+      }
+   }
 
-      // Fields.
-      // --------------------------------------------------------------------
+   /**
+    * Search an input stream, sending each delta to a sink as it is
+    * found instead of collecting them in a list.
+    *
+    * @param sums The checksums to search.
+    * @param in   The input stream to search.
+    * @param sink The sink to send deltas to.
+    * @throws IOException If an exception occurs while reading.
+    * @throws ListenerException If the sink throws an exception.
+    */
+   public void hashSearch(List<ChecksumLocation> sums, InputStream in, DeltaSink sink)
+         throws IOException, ListenerException {
+      matcher.removeSink(callback);
+      matcher.addSink(sink);
+      try {
+         matcher.reset();
+         matcher.setChecksums(sums);
+         byte[] buffer = new byte[chunkSize];
+         int len = 0;
+         while ((len = in.read(buffer)) != -1)
+            matcher.update(buffer, 0, len);
+         matcher.doFinal();
+      } finally {
+         matcher.removeSink(sink);
+         matcher.addSink(callback);
+      }
+   }
 
-      private final List<Delta> deltas;
+   // Inner classes.
+   // -----------------------------------------------------------------------
 
-      // Constructors.
-      // --------------------------------------------------------------------
+   /**
+    * Trivial implementation of a DeltaSink that simply adds incoming
+    * deltas to the current {@link DeltaList}.
+    */
+   private class Callback implements DeltaSink {
 
-      Callback(List<Delta> deltas) {
-         this.deltas = deltas;
+      public void onCopy(long oldOffset, long newOffset, int length) {
+         deltas.addCopy(oldOffset, newOffset, length);
       }
 
-      // Instance methods.
-      // --------------------------------------------------------------------
-
-      public void update(MatcherEvent event) {
-         deltas.add(event.getDelta());
+      public void onLiteral(byte[] buf, int off, int len, long newOffset) {
+         deltas.addLiteral(buf, off, len, newOffset);
       }
    }
 }
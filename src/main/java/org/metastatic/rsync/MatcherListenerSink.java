@@ -0,0 +1,79 @@
+/* MatcherListenerSink: drives a MatcherListener as a DeltaSink.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+/**
+ * A {@link DeltaSink} that turns each delta into an {@link Offsets} or
+ * {@link DataBlock}, and sends it to a {@link MatcherListener} in a
+ * {@link MatcherEvent}. The literal data is copied.
+ */
+public class MatcherListenerSink implements DeltaSink
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The listener.
+     */
+    protected final MatcherListener listener;
+
+    // Constructor.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new sink for a listener.
+     *
+     * @param listener The listener.
+     */
+    public MatcherListenerSink(MatcherListener listener)
+    {
+        if (listener == null)
+            throw new NullPointerException();
+        this.listener = listener;
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    public void onCopy(long oldOffset, long newOffset, int length) throws ListenerException
+    {
+        listener.update(new MatcherEvent(new Offsets(oldOffset, newOffset, length)));
+    }
+
+    public void onLiteral(byte[] buf, int off, int len, long newOffset) throws ListenerException
+    {
+        listener.update(new MatcherEvent(new DataBlock(newOffset, buf, off, len)));
+    }
+
+    /**
+     * Return the listener.
+     *
+     * @return The listener.
+     */
+    public MatcherListener getListener()
+    {
+        return listener;
+    }
+}
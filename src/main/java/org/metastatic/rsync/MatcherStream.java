@@ -23,9 +23,10 @@ THE SOFTWARE.  */
 
 package org.metastatic.rsync;
 
-import java.util.LinkedList;
+import java.security.DigestException;
+
 import java.util.List;
-import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,6 +46,19 @@ import java.util.logging.Logger;
  * <code>update</code> methods. Once the data have been passed to these
  * methods, call {@link #doFinal()} to finish the process.
  *
+ * <p>A {@link DeltaSink}, added with {@link #addSink(DeltaSink)}, is
+ * called with the offsets and the literal bytes themselves, read
+ * straight from the matcher's buffer, so no objects are created for
+ * each delta.</p>
+ *
+ * <p>If {@link Configuration#eventQueueLength} is set, listeners are
+ * called on a separate thread, so that matching continues while they
+ * write; {@link #doFinal()} waits until they have seen every delta.</p>
+ *
+ * <p>With {@link #setMinCopyLength(int)}, short copies next to literals
+ * are sent as literal data, as {@link DeltaOptimizer} does for a list of
+ * deltas.</p>
+ *
  * @version $Revision$
  */
 public class MatcherStream
@@ -55,36 +69,138 @@ public class MatcherStream
 
     private static final Logger logger = Logger.getLogger(MatcherStream.class.getName());
 
+    /**
+     * The longest copy that adjacent matches are merged into when
+     * {@link Configuration#doRunLength} is set. Rebuilders read each copy
+     * into memory whole, so runs are kept to a modest size.
+     */
+    public static final int MAX_RUN_LENGTH = 1 << 24;
+
     /**
      * The configuration.
      */
     protected final Configuration config;
 
     /**
-     * The list of {@link MatcherListener}s.
+     * The list of {@link DeltaSink}s. Listeners are kept here wrapped in
+     * a {@link MatcherListenerSink}.
+     */
+    protected final List<DeltaSink> sinks;
+
+    /**
+     * The index of the checksums being searched for.
+     */
+    protected final SignatureIndex index;
+
+    /**
+     * The weak sums in {@link #index}, as a prefilter.
+     */
+    protected final TagTable tags;
+
+    /**
+     * The number of weak sums that passed the tag table.
+     */
+    protected long tagHits;
+
+    /**
+     * The number of weak sums that passed the tag table, but matched no
+     * checksum in the index.
+     */
+    protected long tagFalsePositives;
+
+    /**
+     * The index entry of the last block matched, or -1. The entry after
+     * it, which is usually the next block of the old data, is tried
+     * before any other.
+     */
+    protected int lastEntry;
+
+    /**
+     * The number of matches found at the predicted entry.
      */
-    protected final List<MatcherListener> listeners;
+    protected long predictedMatches;
 
     /**
-     * The current hashtable.
+     * The original offset of the pending run of matches.
      */
-    protected final TwoKeyMap<Long> hashtable;
+    protected long runOldOffset;
+
+    /**
+     * The new offset of the pending run of matches.
+     */
+    protected long runNewOffset;
+
+    /**
+     * The length of the pending run of matches, or zero if there is
+     * none.
+     */
+    protected int runLength;
+
+    /**
+     * Copies shorter than this that border a literal are sent as literal
+     * data instead, or zero to keep every copy.
+     */
+    private int minCopyLength;
+
+    /**
+     * The new data of the pending run, kept while the run is shorter
+     * than {@link #minCopyLength}.
+     */
+    private byte[] runData;
+
+    /**
+     * Whether the last delta emitted was a literal.
+     */
+    private boolean afterLiteral;
 
     /**
      * The intermediate byte buffer.
      */
     protected final byte[] buffer;
 
+    /**
+     * The weak sums of the window positions being scanned.
+     */
+    protected final int[] sums;
+
+    /**
+     * The weak sum, if it can be summed in place, or null.
+     */
+    private final WindowChecksum inPlace;
+
+    /**
+     * Scratch space for the strong sum of a candidate block.
+     */
+    private final byte[] digest;
+
     /**
      * The current index in {@link #buffer}.
      */
     protected int ndx;
 
+    /**
+     * The index in {@link #buffer} of the first byte not yet emitted in
+     * a delta. Windows are only searched from here on.
+     */
+    protected int pos;
+
+    /**
+     * The end index in {@link #buffer} of the window whose sum the
+     * rolling checksum holds, or -1 if it holds none.
+     */
+    private int rollEnd;
+
     /**
      * The number of bytes summed thusfar.
      */
     protected long count;
 
+    /**
+     * The queue of deltas for the listener thread, or null if listeners
+     * are called directly.
+     */
+    private final EventQueue<Delta> queue;
+
     // Constructor.
     // -------------------------------------------------------------------------
 
@@ -96,9 +212,26 @@ public class MatcherStream
     public MatcherStream(Configuration config)
     {
         this.config = config;
-        this.listeners = new LinkedList<MatcherListener>();
-        this.hashtable = new TwoKeyMap<Long>();
+        this.sinks = new CopyOnWriteArrayList<DeltaSink>();
+        this.index = new SignatureIndex(config.strongSumLength);
+        this.tags = new TagTable();
         buffer = new byte[config.chunkSize];
+        sums = new int[config.chunkSize];
+        digest = new byte[config.strongSum.getDigestLength()];
+        inPlace = config.weakSum instanceof WindowChecksum
+                ? (WindowChecksum) config.weakSum : null;
+        if (config.eventQueueLength > 0)
+        {
+            queue = new EventQueue<Delta>(config.eventQueueLength,
+                    new EventQueue.Dispatcher<Delta>()
+                    {
+                        public void dispatch(Delta delta) throws ListenerException
+                        {
+                            dispatchUpdate(delta);
+                        }
+                    });
+        } else
+            queue = null;
         reset();
     }
 
@@ -112,7 +245,7 @@ public class MatcherStream
      */
     public void addListener(MatcherListener listener)
     {
-        listeners.add(listener);
+        sinks.add(new MatcherListenerSink(listener));
     }
 
     /**
@@ -124,25 +257,124 @@ public class MatcherStream
      */
     public boolean removeListener(MatcherListener listener)
     {
-        return listeners.remove(listener);
+        for (DeltaSink sink : sinks)
+        {
+            if (sink instanceof MatcherListenerSink
+                    && ((MatcherListenerSink) sink).getListener().equals(listener))
+                return sinks.remove(sink);
+        }
+        return false;
+    }
+
+    /**
+     * Add a {@link DeltaSink} to the list of sinks. Sinks and listeners
+     * are sent each delta in the order they were added.
+     *
+     * @param sink The sink to add.
+     */
+    public void addSink(DeltaSink sink)
+    {
+        if (sink == null)
+            throw new IllegalArgumentException();
+        sinks.add(sink);
+    }
+
+    /**
+     * Remove a {@link DeltaSink} from the list of sinks.
+     *
+     * @param sink The sink to remove.
+     * @return True if the sink was in the list.
+     */
+    public boolean removeSink(DeltaSink sink)
+    {
+        return sinks.remove(sink);
     }
 
     /**
      * Set the list of checksums that will be searched by this matcher.
      * This method must be called at least once before calling update.
+     * The tag table statistics are reset.
      *
      * @param sums The checksums.
+     * @throws IllegalArgumentException If <code>sums</code> is a {@link
+     *                                  SignatureTable} of a different block length.
      */
     public void setChecksums(List<ChecksumLocation> sums)
     {
-        hashtable.clear();
+        if (sums instanceof SignatureTable
+                && ((SignatureTable) sums).getBlockLength() != config.blockLength)
+            throw new IllegalArgumentException("signatures have block length "
+                    + ((SignatureTable) sums).getBlockLength() + ", not " + config.blockLength);
+        index.clear();
+        tags.clear(sums != null ? sums.size() : 0);
         if (sums != null)
         {
-            for (ChecksumLocation p : sums)
-            {
-                hashtable.put(p.getChecksumPair(), p.getOffset());
-            }
+            index.addAll(sums);
+            for (int i = 0; i < index.size(); i++)
+                tags.add(index.getWeak(i));
         }
+        tagHits = 0;
+        tagFalsePositives = 0;
+        predictedMatches = 0;
+        lastEntry = -1;
+    }
+
+    /**
+     * Return the number of window positions whose weak sum passed the
+     * tag table since the checksums were last set. Every other position
+     * was rejected without a lookup in the index.
+     *
+     * @return The number of tag table hits.
+     */
+    public long getTagHits()
+    {
+        return tagHits;
+    }
+
+    /**
+     * Return the number of tag table hits, since the checksums were last
+     * set, for which no checksum in the index had the same weak sum.
+     *
+     * @return The number of tag table false positives.
+     */
+    public long getTagFalsePositives()
+    {
+        return tagFalsePositives;
+    }
+
+    /**
+     * Return the number of matches, since the checksums were last set,
+     * that were found at the entry following the previous match, without
+     * a lookup in the index.
+     *
+     * @return The number of predicted matches.
+     */
+    public long getPredictedMatches()
+    {
+        return predictedMatches;
+    }
+
+    /**
+     * Set the length below which a copy that borders a literal is sent
+     * as literal data instead: a copy of a few bytes costs more to encode,
+     * and to seek to when patching, than the bytes themselves. The data
+     * is taken from this matcher's buffer as the copy is found, so the
+     * new data need not be held in memory as {@link
+     * DeltaOptimizer#optimize(List, byte[])} needs it. Adjacent matches
+     * are merged first, and only a run that stays short is sent as a
+     * literal, so this has no effect unless {@link
+     * Configuration#doRunLength} is set; otherwise every block of a run
+     * would count as a short copy.
+     *
+     * @param minCopyLength The shortest copy kept next to a literal; zero,
+     *                      the default, keeps every copy.
+     */
+    public void setMinCopyLength(int minCopyLength)
+    {
+        if (minCopyLength < 0)
+            throw new IllegalArgumentException("negative minimum copy length");
+        this.minCopyLength = minCopyLength;
+        runData = new byte[minCopyLength];
     }
 
     /**
@@ -151,8 +383,14 @@ public class MatcherStream
     public void reset()
     {
         ndx = 0;
+        pos = 0;
+        rollEnd = -1;
         count = 0L;
-        hashtable.clear();
+        index.clear();
+        tags.clear(0);
+        lastEntry = -1;
+        runLength = 0;
+        afterLiteral = false;
     }
 
     /**
@@ -162,362 +400,500 @@ public class MatcherStream
      */
     public void update(byte b) throws ListenerException
     {
-        ListenerException exception = null, current = null;
         buffer[ndx++] = b;
         count++;
-        if (ndx < config.blockLength)
+        // Search only once a full block has been seen since the last match.
+        if (ndx - pos >= config.blockLength)
         {
-            // We have not seen a full block since the last match.
-            return;
-        } else if (ndx == config.blockLength)
-        {
-            config.weakSum.check(buffer, 0, config.blockLength);
-        } else
-        {
-            config.weakSum.roll(b);
-        }
-        Long oldOffset = hashSearch(buffer, ndx - config.blockLength,
-                config.blockLength);
-        if (oldOffset != null)
-        {
-            if (ndx > config.blockLength)
+            if (rollEnd == ndx - 1 && ndx - pos > config.blockLength)
             {
-                DataBlock d = new DataBlock(count - ndx, buffer, 0,
-                        ndx - config.blockLength);
-                Offsets o = new Offsets(oldOffset,
-                        count - config.blockLength, config.blockLength);
-                for (Iterator it = listeners.listIterator(); it.hasNext(); )
-                {
-                    try
-                    {
-                        MatcherListener l = (MatcherListener) it.next();
-                        l.update(new MatcherEvent(d));
-                        l.update(new MatcherEvent(o));
-                    } catch (ListenerException le)
-                    {
-                        if (exception != null)
-                        {
-                            current.setNext(le);
-                            current = le;
-                        } else
-                        {
-                            exception = le;
-                            current = le;
-                        }
-                    }
-                }
-                if (exception != null)
-                    throw exception;
+                // The window is still in the buffer, one byte behind.
+                if (inPlace != null)
+                    inPlace.roll(buffer[ndx - 1 - config.blockLength], b);
+                else
+                    config.weakSum.roll(b);
             } else
-            {
-                Offsets o = new Offsets(oldOffset,
-                        count - config.blockLength, config.blockLength);
-                for (Iterator it = listeners.listIterator(); it.hasNext(); )
-                {
-                    try
-                    {
-                        MatcherListener l = (MatcherListener) it.next();
-                        l.update(new MatcherEvent(o));
-                    } catch (ListenerException le)
-                    {
-                        if (exception != null)
-                        {
-                            current.setNext(le);
-                            current = le;
-                        } else
-                        {
-                            exception = le;
-                            current = le;
-                        }
-                    }
-                }
-                if (exception != null)
-                    throw exception;
-            }
-            ndx = 0;
-        } else if (ndx == buffer.length)
-        {
-            DataBlock d = new DataBlock(count - ndx, buffer, 0,
-                    buffer.length - (config.blockLength - 1));
-            for (MatcherListener listener : listeners)
-            {
-                try
-                {
-                    MatcherListener l = listener;
-                    l.update(new MatcherEvent(d));
-                } catch (ListenerException le)
-                {
-                    if (exception != null)
-                    {
-                        current.setNext(le);
-                        current = le;
-                    } else
-                    {
-                        exception = le;
-                        current = le;
-                    }
-                }
-            }
-            if (exception != null)
-                throw exception;
-            System.arraycopy(buffer, buffer.length - (config.blockLength - 1),
-                    buffer, 0, config.blockLength - 1);
-            ndx = config.blockLength - 1;
+                checkNoCopy(buffer, ndx - config.blockLength, config.blockLength);
+            rollEnd = ndx;
+            long oldOffset = hashSearch(buffer, ndx - config.blockLength,
+                    config.blockLength);
+            if (oldOffset >= 0)
+                match(ndx - config.blockLength, oldOffset);
         }
+        if (ndx == buffer.length)
+            flushLiteral();
     }
 
     /**
      * Update this matcher with a portion of a byte array.
      *
+     * <p>Input is copied into the internal buffer a chunk at a time, and
+     * the weak sums of the new window positions are computed by {@link
+     * WindowChecksum#checkWindows(byte[], int, int, int, int[])} and
+     * {@link WindowChecksum#rollWindows(byte[], int, int, int[])} in
+     * batches of at most one block's worth of windows, before the
+     * lookups for that batch are made. A match thus wastes at most one
+     * batch of sums, and matched data is not moved within the buffer.
+     *
      * @param buf The next bytes.
      * @param off The offset to begin at.
      * @param len The number of bytes to update.
      */
     public void update(byte[] buf, int off, int len) throws ListenerException
     {
-        ListenerException exception = null, current = null;
-        int n = Math.min(len, config.blockLength);
-        Long oldOffset;
         int i = off;
+        while (i < off + len)
+        {
+            int n = Math.min(off + len - i, buffer.length - ndx);
+            System.arraycopy(buf, i, buffer, ndx, n);
+            i += n;
+            count += n;
+            int scanned = ndx;
+            ndx += n;
+            scan(scanned);
+            if (ndx == buffer.length)
+                flushLiteral();
+        }
+    }
 
-        while (i < len + off)
+    /**
+     * Update this matcher with a byte array.
+     *
+     * @param buf The next bytes.
+     */
+    public void update(byte[] buf) throws ListenerException
+    {
+        update(buf, 0, buf.length);
+    }
+
+    /**
+     * Flush any buffered data and reset this instance.
+     */
+    public void doFinal() throws ListenerException
+    {
+        if (ndx > pos)
         {
-            byte bt = buffer[ndx++] = buf[i++];
-            count++;
-            if (ndx < config.blockLength)
-            {
-                continue;
-            } else if (ndx == config.blockLength)
+            long base = count - ndx;
+            int len = Math.min(ndx - pos, config.blockLength);
+            int off = ndx - len;
+            checkNoCopy(buffer, off, len);
+            long oldOff = hashSearch(buffer, off, len);
+            if (oldOff >= 0)
             {
-                config.weakSum.check(buffer, 0, config.blockLength);
+                if (off > pos)
+                    fireLiteral(buffer, pos, off - pos, base + pos);
+                fireCopy(oldOff, base + off, len, buffer, off);
             } else
             {
-                config.weakSum.roll(bt);
+                fireLiteral(buffer, pos, ndx - pos, base + pos);
             }
-            oldOffset = hashSearch(buffer, ndx - config.blockLength,
-                    config.blockLength);
-            if (oldOffset != null)
+        }
+        flushRun(false);
+        if (queue != null)
+            queue.flush();
+        logger.log(Level.FINE, "tag table: {0} hits, {1} false positives; {2} predicted matches",
+                new Object[]{tagHits, tagFalsePositives, predictedMatches});
+        reset();
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Search the buffered windows that end past <code>scanned</code>
+     * for a match, emitting deltas for each match found. Weak sums are
+     * computed a batch of at most one block's worth of windows at a
+     * time, each batch rolling on from the last window of the one
+     * before; after a match, scanning resumes with a fresh sum of the
+     * first window after it.
+     *
+     * @param scanned The number of bytes at the start of the buffer
+     *                whose windows have already been searched.
+     */
+    private void scan(int scanned) throws ListenerException
+    {
+        final int blockLength = config.blockLength;
+        int start = Math.max(pos, scanned - blockLength + 1);
+        while (start + blockLength <= ndx)
+        {
+            int windows = Math.min(ndx - blockLength - start + 1, blockLength);
+            sumWindows(start, windows);
+            long oldOffset = -1;
+            int j;
+            for (j = 0; j < windows; j++)
             {
-                if (ndx > config.blockLength)
-                {
-                    DataBlock d = new DataBlock(count - ndx, buffer, 0,
-                            ndx - config.blockLength);
-                    Offsets o = new Offsets(oldOffset,
-                            count - config.blockLength, config.blockLength);
-                    for (Iterator it = listeners.listIterator(); it.hasNext(); )
-                    {
-                        try
-                        {
-                            MatcherListener l = (MatcherListener) it.next();
-                            l.update(new MatcherEvent(d));
-                            l.update(new MatcherEvent(o));
-                        } catch (ListenerException le)
-                        {
-                            if (exception != null)
-                            {
-                                current.setNext(le);
-                                current = le;
-                            } else
-                            {
-                                exception = le;
-                                current = le;
-                            }
-                        }
-                    }
-                    if (exception != null)
-                        throw exception;
-                } else
-                {
-                    Offsets o = new Offsets(oldOffset.longValue(),
-                            count - config.blockLength, config.blockLength);
-                    for (Iterator it = listeners.listIterator(); it.hasNext(); )
-                    {
-                        try
-                        {
-                            MatcherListener l = (MatcherListener) it.next();
-                            l.update(new MatcherEvent(o));
-                        } catch (ListenerException le)
-                        {
-                            if (exception != null)
-                            {
-                                current.setNext(le);
-                                current = le;
-                            } else
-                            {
-                                exception = le;
-                                current = le;
-                            }
-                        }
-                    }
-                }
-                if (exception != null)
-                    throw exception;
-                ndx = 0;
-            } else if (ndx == buffer.length)
+                oldOffset = hashSearch(sums[j], buffer, start + j, blockLength);
+                if (oldOffset >= 0)
+                    break;
+            }
+            if (oldOffset >= 0)
             {
-                DataBlock d = new DataBlock(count - ndx, buffer, 0,
-                        buffer.length - (config.blockLength - 1));
-                for (MatcherListener listener : listeners)
-                {
-                    try
-                    {
-                        MatcherListener l = listener;
-                        l.update(new MatcherEvent(d));
-                    } catch (ListenerException le)
-                    {
-                        if (exception != null)
-                        {
-                            current.setNext(le);
-                            current = le;
-                        } else
-                        {
-                            exception = le;
-                            current = le;
-                        }
-                    }
-                }
-                if (exception != null)
-                    throw exception;
-                System.arraycopy(buffer, buffer.length - (config.blockLength - 1),
-                        buffer, 0, config.blockLength - 1);
-                ndx = config.blockLength - 1;
+                match(start + j, oldOffset);
+                start = pos;
+                rollEnd = -1;
+            } else
+                start += windows;
+        }
+    }
+
+    /**
+     * Put the weak sums of the <code>windows</code> windows beginning at
+     * <code>start</code> in {@link #sums}. If the checksum holds the
+     * window just before <code>start</code>, it is rolled on from there;
+     * otherwise the first window is summed afresh.
+     */
+    private void sumWindows(int start, int windows)
+    {
+        final int blockLength = config.blockLength;
+        if (inPlace != null)
+        {
+            if (rollEnd == start + blockLength - 1)
+                inPlace.rollWindows(buffer, start + blockLength - 1, windows, sums);
+            else
+                inPlace.checkWindows(buffer, start, windows + blockLength - 1,
+                        blockLength, sums);
+        } else
+        {
+            for (int j = 0; j < windows; j++)
+            {
+                if (rollEnd == start + j + blockLength - 1)
+                    config.weakSum.roll(buffer[start + j + blockLength - 1]);
+                else
+                    config.weakSum.check(buffer, start + j, blockLength);
+                rollEnd = start + j + blockLength;
+                sums[j] = config.weakSum.getValue();
             }
         }
+        rollEnd = start + windows + blockLength - 1;
     }
 
     /**
-     * Update this matcher with a byte array.
+     * Sum a window of the buffer, in place if the weak sum allows it.
+     */
+    private void checkNoCopy(byte[] buf, int off, int len)
+    {
+        if (inPlace != null)
+            inPlace.checkNoCopy(buf, off, len);
+        else
+            config.weakSum.check(buf, off, len);
+    }
+
+    /**
+     * Emit the deltas for a block matched at <code>at</code> in the
+     * buffer: a literal for any unmatched bytes before it, and the
+     * offsets of the match. The read cursor then moves past the match.
      *
-     * @param buf The next bytes.
+     * @param at        The index in the buffer where the match begins.
+     * @param oldOffset The offset of the matching block in the old data.
      */
-    public void update(byte[] buf) throws ListenerException
+    private void match(int at, long oldOffset) throws ListenerException
     {
-        update(buf, 0, buf.length);
+        long base = count - ndx;
+        if (at > pos)
+            fireLiteral(buffer, pos, at - pos, base + pos);
+        fireCopy(oldOffset, base + at, config.blockLength, buffer, at);
+        pos = at + config.blockLength;
     }
 
     /**
-     * Flush any buffered data and reset this instance.
+     * Make room in a full buffer. If some of it has been emitted, the
+     * rest is moved to the front. Otherwise all but the last
+     * <code>blockLength - 1</code> bytes are emitted as a literal, and
+     * those are moved to the front as the start of the next window.
      */
-    public void doFinal() throws ListenerException
+    private void flushLiteral() throws ListenerException
+    {
+        int keepFrom = pos;
+        if (pos == 0)
+        {
+            keepFrom = ndx - (config.blockLength - 1);
+            fireLiteral(buffer, 0, keepFrom, count - ndx);
+        }
+        int keep = ndx - keepFrom;
+        System.arraycopy(buffer, keepFrom, buffer, 0, keep);
+        ndx = keep;
+        pos = 0;
+        rollEnd = -1;
+    }
+
+    /**
+     * Emit a copy of a matched block. If {@link Configuration#doRunLength}
+     * is set, a block that continues the pending run in both the original
+     * and new data is merged into it, and the run is only emitted when it
+     * is broken, grows too long, or the data ends.
+     *
+     * @param oldOffset The offset of the block in the original data.
+     * @param newOffset The offset of the block in the new data.
+     * @param len       The length of the block.
+     * @param buf       The array holding the block's new data.
+     * @param off       The offset of the block in <code>buf</code>.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void fireCopy(long oldOffset, long newOffset, int len, byte[] buf, int off)
+            throws ListenerException
+    {
+        if (!config.doRunLength)
+        {
+            emitCopy(oldOffset, newOffset, len);
+            return;
+        }
+        if (runLength > 0 && runOldOffset + runLength == oldOffset
+                && runNewOffset + runLength == newOffset
+                && runLength <= MAX_RUN_LENGTH - len)
+        {
+            if (runLength + len < minCopyLength)
+                System.arraycopy(buf, off, runData, runLength, len);
+            runLength += len;
+            return;
+        }
+        flushRun(false);
+        runOldOffset = oldOffset;
+        runNewOffset = newOffset;
+        runLength = len;
+        if (len < minCopyLength)
+            System.arraycopy(buf, off, runData, 0, len);
+    }
+
+    /**
+     * Emit a literal, after any pending run of matches. The bytes are
+     * only copied if the literal is queued for the listener thread.
+     *
+     * @param buf       The array holding the literal data.
+     * @param off       The offset of the data in <code>buf</code>.
+     * @param len       The length of the data.
+     * @param newOffset The offset of the data in the new data.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void fireLiteral(byte[] buf, int off, int len, long newOffset)
+            throws ListenerException
+    {
+        flushRun(true);
+        emitLiteral(buf, off, len, newOffset);
+    }
+
+    /**
+     * Emit the pending run of matches, if there is one. A run shorter
+     * than {@link #minCopyLength} that follows or precedes a literal is
+     * emitted as literal data.
+     *
+     * @param beforeLiteral Whether a literal is emitted next.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void flushRun(boolean beforeLiteral) throws ListenerException
+    {
+        if (runLength > 0)
+        {
+            int len = runLength;
+            runLength = 0;
+            if (len < minCopyLength && (afterLiteral || beforeLiteral))
+                emitLiteral(runData, 0, len, runNewOffset);
+            else
+                emitCopy(runOldOffset, runNewOffset, len);
+        }
+    }
+
+    /**
+     * Emit a literal, or queue it for the listener thread. The bytes are
+     * only copied if the literal is queued.
+     *
+     * @param buf       The array holding the literal data.
+     * @param off       The offset of the data in <code>buf</code>.
+     * @param len       The length of the data.
+     * @param newOffset The offset of the data in the new data.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void emitLiteral(byte[] buf, int off, int len, long newOffset)
+            throws ListenerException
+    {
+        afterLiteral = true;
+        if (queue != null)
+            queue.put(new DataBlock(newOffset, buf, off, len));
+        else
+            dispatchLiteral(buf, off, len, newOffset);
+    }
+
+    /**
+     * Emit a copy, or queue it for the listener thread.
+     *
+     * @param oldOffset The offset of the copy in the original data.
+     * @param newOffset The offset of the copy in the new data.
+     * @param len       The length of the copy.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void emitCopy(long oldOffset, long newOffset, int len)
+            throws ListenerException
+    {
+        afterLiteral = false;
+        if (queue != null)
+            queue.put(new Offsets(oldOffset, newOffset, len));
+        else
+            dispatchCopy(oldOffset, newOffset, len);
+    }
+
+    /**
+     * Send a delta to every sink, on the calling thread.
+     *
+     * @param delta The delta to send.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    private void dispatchUpdate(Delta delta) throws ListenerException
+    {
+        if (delta instanceof Offsets)
+        {
+            Offsets offsets = (Offsets) delta;
+            dispatchCopy(offsets.getOldOffset(), offsets.getNewOffset(),
+                    offsets.getBlockLength());
+        } else
+        {
+            DataBlock block = (DataBlock) delta;
+            dispatchLiteral(block.getData(), 0, block.getBlockLength(), block.getOffset());
+        }
+    }
+
+    /**
+     * Send a copy to every sink. If any sinks throw an exception, the
+     * rest are still called, and the exceptions are chained together and
+     * thrown once all sinks have been called.
+     */
+    private void dispatchCopy(long oldOffset, long newOffset, int len)
+            throws ListenerException
     {
         ListenerException exception = null, current = null;
-        if (ndx > 0)
+        for (DeltaSink sink : sinks)
         {
-            int off = Math.max(0, ndx - config.blockLength);
-            int len = Math.min(ndx, config.blockLength);
-            config.weakSum.check(buffer, off, len);
-            Long oldOff = hashSearch(buffer, off, len);
-            if (oldOff != null)
+            try
+            {
+                sink.onCopy(oldOffset, newOffset, len);
+            } catch (ListenerException le)
             {
-                if (off > 0)
+                if (exception != null)
                 {
-                    DataBlock d = new DataBlock(count - ndx, buffer, 0, off);
-                    for (Iterator it = listeners.listIterator(); it.hasNext(); )
-                    {
-                        try
-                        {
-                            MatcherListener l = (MatcherListener) it.next();
-                            l.update(new MatcherEvent(d));
-                        } catch (ListenerException le)
-                        {
-                            if (exception != null)
-                            {
-                                current.setNext(le);
-                                current = le;
-                            } else
-                            {
-                                exception = le;
-                                current = le;
-                            }
-                        }
-                    }
-                    if (exception != null)
-                        throw exception;
-                }
-                Offsets o = new Offsets(oldOff, count - len, len);
-                for (Iterator it = listeners.listIterator(); it.hasNext(); )
+                    current.setNext(le);
+                    current = le;
+                } else
                 {
-                    try
-                    {
-                        MatcherListener l = (MatcherListener) it.next();
-                        l.update(new MatcherEvent(o));
-                    } catch (ListenerException le)
-                    {
-                        if (exception != null)
-                        {
-                            current.setNext(le);
-                            current = le;
-                        } else
-                        {
-                            exception = le;
-                            current = le;
-                        }
-                    }
+                    exception = le;
+                    current = le;
                 }
-                if (exception != null)
-                    throw exception;
-            } else
+            }
+        }
+        if (exception != null)
+            throw exception;
+    }
+
+    /**
+     * Send a literal to every sink, chaining exceptions as {@link
+     * #dispatchCopy(long, long, int)} does.
+     */
+    private void dispatchLiteral(byte[] buf, int off, int len, long newOffset)
+            throws ListenerException
+    {
+        ListenerException exception = null, current = null;
+        for (DeltaSink sink : sinks)
+        {
+            try
             {
-                DataBlock d = new DataBlock(count - ndx, buffer, 0, ndx);
-                for (Iterator it = listeners.listIterator(); it.hasNext(); )
+                sink.onLiteral(buf, off, len, newOffset);
+            } catch (ListenerException le)
+            {
+                if (exception != null)
                 {
-                    try
-                    {
-                        MatcherListener l = (MatcherListener) it.next();
-                        l.update(new MatcherEvent(d));
-                    } catch (ListenerException le)
-                    {
-                        if (exception != null)
-                        {
-                            current.setNext(le);
-                            current = le;
-                        } else
-                        {
-                            exception = le;
-                            current = le;
-                        }
-                    }
+                    current.setNext(le);
+                    current = le;
+                } else
+                {
+                    exception = le;
+                    current = le;
                 }
-                if (exception != null)
-                    throw exception;
             }
         }
-        reset();
+        if (exception != null)
+            throw exception;
     }
 
-    // Own methods.
-    // -------------------------------------------------------------------------
-
     /**
-     * Search if a portion of the given byte array is in the map,
-     * returning its original offset if it is.
+     * Search if a portion of the given byte array is in the index,
+     * returning its original offset if it is. The weak sum is taken
+     * from the current state of the configured rolling checksum.
      *
      * @param block The block of bytes to search for.
      * @param off   The offset in the block to begin.
      * @param len   The number of bytes to read from the block.
      * @return The original offset of the given block if it was found in
-     * the map. null if it was not found.
+     * the index, or -1 if it was not found.
      */
-    protected Long hashSearch(byte[] block, int off, int len)
+    protected long hashSearch(byte[] block, int off, int len)
     {
-        Integer weakSum = config.weakSum.getValue();
-        if (hashtable.containsKey(weakSum.intValue()))
+        return hashSearch(config.weakSum.getValue(), block, off, len);
+    }
+
+    /**
+     * Search if a portion of the given byte array is in the index,
+     * returning its original offset if it is.
+     *
+     * <p>Since matching blocks tend to come in runs, the entry after the
+     * last one matched is tried first: if its weak sum is equal, the
+     * strong sum is computed and compared against it directly, and it is
+     * preferred over any other entry with the same sums. Otherwise the
+     * weak sum is tested against the tag table, then the index, and the
+     * strong sum is only computed if some checksum has the same weak
+     * sum.</p>
+     *
+     * @param weakSum The weak sum of the block.
+     * @param block   The block of bytes to search for.
+     * @param off     The offset in the block to begin.
+     * @param len     The number of bytes to read from the block.
+     * @return The original offset of the given block if it was found in
+     * the index, or -1 if it was not found.
+     */
+    protected long hashSearch(int weakSum, byte[] block, int off, int len)
+    {
+        int predicted = lastEntry + 1;
+        boolean predict = lastEntry >= 0 && predicted < index.size()
+                && index.getWeak(predicted) == weakSum;
+        if (!predict)
         {
+            if (!tags.mightContain(weakSum))
+                return -1;
+            tagHits++;
+            if (!index.containsWeak(weakSum))
+            {
+                tagFalsePositives++;
+                return -1;
+            }
+        }
+        if (logger.isLoggable(Level.FINE))
             logger.log(Level.FINE, "hash hit on weak key: {0}", String.format("%08x", weakSum));
-            config.strongSum.reset();
-            if (config.checksumSeed != null && config.isSeedPrefix)
-                config.strongSum.update(config.checksumSeed);
-            config.strongSum.update(block, off, len);
-            if (config.checksumSeed != null && !config.isSeedPrefix)
-                config.strongSum.update(config.checksumSeed);
-            byte[] digest = new byte[config.strongSumLength];
-            System.arraycopy(config.strongSum.digest(), 0, digest, 0, digest.length);
-            logger.log(Level.FINE, "looking up strong key: {0}", Util.toHexString(digest));
-            logger.log(Level.FINE, "hash: {0}", hashtable);
-            Long ret = hashtable.get(new ChecksumPair(weakSum, digest));
-            logger.log(Level.FINE, "looked up {0}", ret);
-            return ret;
+        config.strongSum.reset();
+        if (config.checksumSeed != null && config.isSeedPrefix)
+            config.strongSum.update(config.checksumSeed);
+        config.strongSum.update(block, off, len);
+        if (config.checksumSeed != null && !config.isSeedPrefix)
+            config.strongSum.update(config.checksumSeed);
+        try
+        {
+            config.strongSum.digest(digest, 0, digest.length);
+        } catch (DigestException de)
+        {
+            throw new Error(de);
+        }
+        int entry;
+        if (predict && index.matches(predicted, weakSum, digest, 0, config.strongSumLength))
+        {
+            entry = predicted;
+            predictedMatches++;
+        } else
+        {
+            entry = index.find(weakSum, digest, 0, config.strongSumLength);
+        }
+        long ret = entry < 0 ? -1 : index.getOffset(entry);
+        if (entry >= 0)
+            lastEntry = entry;
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.log(Level.FINE, "looked up strong key {0}: {1}", new Object[]{
+                    Util.toHexString(digest, 0, config.strongSumLength), ret});
         }
-        return null;
+        return ret;
     }
 }
@@ -0,0 +1,338 @@
+/* ParallelGenerator: checksum generation on a fork-join pool.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A checksum generator that divides its input into ranges of whole
+ * blocks and checksums the ranges in parallel on a {@link ForkJoinPool}.
+ * Each task takes a {@link Generator}, built from a clone of the
+ * configuration, and a read buffer from a free list kept by this object,
+ * so no checksum or message digest is shared between threads. The list
+ * holds no more of them than there were tasks running at once, and they
+ * are freed with this object, so a generator should be kept for as long
+ * as it is used rather than created for each input. The sums are written
+ * straight into a {@link SignatureTable}, each task filling in its own
+ * blocks, so they are returned in the same order as those of {@link
+ * Generator}.
+ *
+ * <p>The input may be a byte array, a buffer such as a mapped region of
+ * a file, or a file; files are read with positional reads on a single
+ * {@link FileChannel}, so they may be larger than 2 gigabytes.</p>
+ */
+public class ParallelGenerator
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The approximate number of bytes checksummed by each task.
+     */
+    private static final int TASK_SIZE = 1 << 20;
+
+    /**
+     * The configuration, which is cloned for each worker thread.
+     */
+    protected final Configuration config;
+
+    /**
+     * The pool that checksums are computed in.
+     */
+    protected final ForkJoinPool pool;
+
+    /**
+     * The number of blocks checksummed by each task.
+     */
+    private final int blocksPerTask;
+
+    /**
+     * The generators and read buffers not in use by a task.
+     */
+    private final ConcurrentLinkedQueue<Worker> workers;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new parallel generator, that runs in a shared pool with
+     * one thread per processor.
+     *
+     * @param config The configuration.
+     */
+    public ParallelGenerator(Configuration config)
+    {
+        this(config, SharedPool.POOL);
+    }
+
+    /**
+     * Create a new parallel generator, that runs in the given pool.
+     *
+     * @param config The configuration.
+     * @param pool   The pool to run in.
+     */
+    public ParallelGenerator(Configuration config, ForkJoinPool pool)
+    {
+        this.config = config;
+        this.pool = pool;
+        this.blocksPerTask = Math.max(1, TASK_SIZE / config.blockLength);
+        this.workers = new ConcurrentLinkedQueue<Worker>();
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Generate checksums over an entire byte array.
+     *
+     * @param buf The byte array to checksum.
+     * @return The checksums, in order.
+     */
+    public SignatureTable generateSums(byte[] buf)
+    {
+        return generateSums(buf, 0, buf.length, 0);
+    }
+
+    /**
+     * Generate checksums over a portion of a byte array, with a specified
+     * base offset, which is added to the offset of each checksum.
+     *
+     * @param buf        The byte array to checksum.
+     * @param off        From whence in <code>buf</code> to start.
+     * @param len        The number of bytes to checksum.
+     * @param baseOffset The offset from whence this byte array came.
+     * @return The checksums, in order.
+     */
+    public SignatureTable generateSums(final byte[] buf, final int off, int len,
+                                       long baseOffset)
+    {
+        try
+        {
+            return generateSums(new Source(len, off + baseOffset)
+            {
+                void read(long pos, byte[] dst, int n)
+                {
+                    System.arraycopy(buf, off + (int) pos, dst, 0, n);
+                }
+            });
+        } catch (IOException shouldNotHappen)
+        {
+            throw new Error(shouldNotHappen);
+        }
+    }
+
+    /**
+     * Generate checksums over the remaining bytes of a buffer, such as a
+     * mapped region of a file, with a specified base offset. The
+     * position of <code>buf</code> is not changed.
+     *
+     * @param buf        The buffer to checksum.
+     * @param baseOffset The offset from whence the buffer's position came.
+     * @return The checksums, in order.
+     */
+    public SignatureTable generateSums(ByteBuffer buf, long baseOffset)
+    {
+        final ByteBuffer region = buf.slice();
+        try
+        {
+            return generateSums(new Source(region.remaining(), baseOffset)
+            {
+                void read(long pos, byte[] dst, int n)
+                {
+                    ByteBuffer b = region.duplicate();
+                    b.position((int) pos);
+                    b.get(dst, 0, n);
+                }
+            });
+        } catch (IOException shouldNotHappen)
+        {
+            throw new Error(shouldNotHappen);
+        }
+    }
+
+    /**
+     * Generate checksums for an entire file. If the configuration has a
+     * {@link BlockSizePolicy}, the block length is the one it chooses for
+     * the length of the file; if that differs from the configured one,
+     * the generators and buffers made for it are freed on return.
+     *
+     * @param f The file to checksum.
+     * @return The checksums, in order.
+     * @throws IOException If the file cannot be read.
+     */
+    public SignatureTable generateSums(File f) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try
+        {
+            final FileChannel channel = raf.getChannel();
+            Configuration forFile = config.forLength(channel.size());
+            if (forFile != config)
+                return new ParallelGenerator(forFile, pool).generateSums(f);
+            return generateSums(new Source(channel.size(), 0)
+            {
+                void read(long pos, byte[] dst, int n) throws IOException
+                {
+                    ByteBuffer b = ByteBuffer.wrap(dst, 0, n);
+                    while (b.hasRemaining())
+                    {
+                        if (channel.read(b, pos + b.position()) < 0)
+                            throw new IOException("file truncated while reading");
+                    }
+                }
+            });
+        } finally
+        {
+            raf.close();
+        }
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    private SignatureTable generateSums(Source source) throws IOException
+    {
+        SignatureTable sums = new SignatureTable(config.blockLength,
+                config.strongSumLength, source.baseOffset, source.length);
+        pool.invoke(new Task(source, sums, 0, sums.size()));
+        if (source.exception != null)
+            throw source.exception;
+        return sums;
+    }
+
+    // Inner classes.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The data being checksummed.
+     */
+    private static abstract class Source
+    {
+        final long length;
+        final long baseOffset;
+        volatile IOException exception;
+
+        Source(long length, long baseOffset)
+        {
+            this.length = length;
+            this.baseOffset = baseOffset;
+        }
+
+        /**
+         * Read <code>n</code> bytes from <code>pos</code> into the start
+         * of <code>dst</code>.
+         */
+        abstract void read(long pos, byte[] dst, int n) throws IOException;
+    }
+
+    /**
+     * A task's generator, and a buffer that holds its bytes.
+     */
+    private static class Worker
+    {
+        final Generator generator;
+        final byte[] buffer;
+
+        Worker(Configuration config, int bufferSize)
+        {
+            generator = new Generator(config);
+            buffer = new byte[bufferSize];
+        }
+    }
+
+    /**
+     * Checksum the blocks numbered <code>from</code> up to
+     * <code>to</code>, splitting the range in two until it is small
+     * enough.
+     */
+    private class Task extends RecursiveAction
+    {
+        private static final long serialVersionUID = 3391081560250159544L;
+
+        private final Source source;
+        private final SignatureTable sums;
+        private final int from;
+        private final int to;
+
+        Task(Source source, SignatureTable sums, int from, int to)
+        {
+            this.source = source;
+            this.sums = sums;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from > blocksPerTask)
+            {
+                int mid = from + (to - from) / 2;
+                invokeAll(new Task(source, sums, from, mid),
+                        new Task(source, sums, mid, to));
+                return;
+            }
+            if (source.exception != null)
+                return;
+            Worker worker = workers.poll();
+            if (worker == null)
+                worker = new Worker((Configuration) config.clone(),
+                        blocksPerTask * config.blockLength);
+            try
+            {
+                long start = (long) from * config.blockLength;
+                int len = (int) Math.min(source.length - start,
+                        (long) (to - from) * config.blockLength);
+                source.read(start, worker.buffer, len);
+                for (int i = from, off = 0; i < to; i++, off += config.blockLength)
+                {
+                    int n = Math.min(len - off, config.blockLength);
+                    worker.generator.generateSum(worker.buffer, off, n, sums, i);
+                }
+            } catch (IOException ioe)
+            {
+                source.exception = ioe;
+            } finally
+            {
+                workers.offer(worker);
+            }
+        }
+    }
+
+    /**
+     * Holder of the default pool, created on first use. {@link
+     * ParallelRebuilder} runs in it as well.
+     */
+    static class SharedPool
+    {
+        static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+}
@@ -0,0 +1,294 @@
+/* ParallelRebuilder: apply deltas to a file from several threads.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rebuilds a file from deltas in parallel on a {@link ForkJoinPool}.
+ * Every delta carries the absolute offset it writes to, so the deltas
+ * need not be applied in order: the new file is divided into ranges,
+ * and each range is written by a task of its own. A delta that crosses
+ * the edge of a range is split between the two tasks.
+ *
+ * <p>The tasks share one channel to each file, and read and write only
+ * at explicit positions, so they never contend for a file pointer. The
+ * new file is forced to the device once, after every task is done. On
+ * devices that serve many requests at once, such as solid state drives
+ * and striped arrays, this keeps more requests in flight than {@link
+ * Rebuilder#rebuildFile(File, File, List)}.</p>
+ *
+ * <p>A rebuilder keeps the direct copy buffers its tasks have used, at
+ * most one for each task running at once, and reuses them for later
+ * files. They are freed along with the rebuilder.</p>
+ */
+public class ParallelRebuilder
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The approximate number of bytes written by each task.
+     */
+    private static final int TASK_SIZE = 1 << 20;
+
+    /**
+     * The pool that deltas are applied in.
+     */
+    protected final ForkJoinPool pool;
+
+    /**
+     * The copy buffers not in use by a task.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new parallel rebuilder, that runs in the pool shared with
+     * {@link ParallelGenerator}, with one thread per processor. Most
+     * callers should use {@link #getDefault()} instead.
+     */
+    public ParallelRebuilder()
+    {
+        this(ParallelGenerator.SharedPool.POOL);
+    }
+
+    /**
+     * Create a new parallel rebuilder, that runs in the given pool. The
+     * pool's parallelism bounds the number of reads and writes in flight.
+     *
+     * @param pool The pool to run in.
+     */
+    public ParallelRebuilder(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        this.buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    }
+
+    // Class methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Return the rebuilder that runs in the pool shared with {@link
+     * ParallelGenerator}, created on first use.
+     *
+     * @return The shared rebuilder.
+     */
+    public static ParallelRebuilder getDefault()
+    {
+        return Shared.INSTANCE;
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Reconstruct a file into a new file. This returns once the new file
+     * has been written and forced to the device.
+     *
+     * @param oldFile The original file.
+     * @param newFile The file to write the reconstruction to. This must be
+     *                a different file than <code>oldFile</code>.
+     * @param deltas  The {@link Delta}s to apply.
+     * @throws IOException If reading or writing fails.
+     */
+    public void rebuildFile(File oldFile, File newFile, List<Delta> deltas)
+            throws IOException
+    {
+        if (oldFile.equals(newFile))
+        {
+            throw new IOException("cannot read and write to the same file");
+        }
+        DeltaList list = Rebuilder.sorted(deltas);
+        long length = 0;
+        boolean copies = false;
+        for (int i = 0; i < list.size(); i++)
+        {
+            length = Math.max(length, list.getWriteOffset(i) + list.getLength(i));
+            copies |= list.isCopy(i);
+        }
+
+        FileChannel out = FileChannel.open(newFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        FileChannel in = null;
+        try
+        {
+            if (copies)
+            {
+                try
+                {
+                    in = FileChannel.open(oldFile.toPath(), StandardOpenOption.READ);
+                } catch (IOException ioe)
+                {
+                    throw new IOException("original file does not exist or not readable", ioe);
+                }
+            }
+            Job job = new Job(list, in, out);
+            pool.invoke(new Task(job, 0, length));
+            if (job.exception != null)
+                throw job.exception;
+            out.force(true);
+        } finally
+        {
+            if (in != null)
+                in.close();
+            out.close();
+        }
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Write the range from <code>start</code> up to <code>end</code> of
+     * the new file.
+     */
+    private void write(Job job, long start, long end) throws IOException
+    {
+        DeltaList list = job.list;
+        // The first delta that ends past the start of the range.
+        int lo = 0, hi = list.size();
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (list.getWriteOffset(mid) + list.getLength(mid) <= start)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        for (int i = lo; i < list.size() && list.getWriteOffset(i) < end; i++)
+        {
+            long off2 = list.getWriteOffset(i);
+            long from = Math.max(start, off2);
+            int skip = (int) (from - off2);
+            int len = (int) (Math.min(end, off2 + list.getLength(i)) - from);
+            if (len <= 0)
+                continue;
+            if (!list.isCopy(i))
+            {
+                Rebuilder.writeFully(job.out, ByteBuffer.wrap(list.literalArray(i),
+                        list.literalOffset(i) + skip, len), from);
+                continue;
+            }
+            ByteBuffer buf = buffers.poll();
+            if (buf == null)
+                buf = ByteBuffer.allocateDirect(Rebuilder.COPY_BUFFER_SIZE);
+            try
+            {
+                long off1 = list.getOldOffset(i) + skip;
+                for (int done = 0; done < len; )
+                {
+                    buf.clear().limit(Math.min(buf.capacity(), len - done));
+                    Rebuilder.readFully(job.in, buf, off1 + done);
+                    buf.flip();
+                    int n = buf.remaining();
+                    Rebuilder.writeFully(job.out, buf, from + done);
+                    done += n;
+                }
+            } finally
+            {
+                buffers.offer(buf);
+            }
+        }
+    }
+
+    // Inner classes.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The deltas and files of one rebuild.
+     */
+    private static class Job
+    {
+        final DeltaList list;
+        final FileChannel in;
+        final FileChannel out;
+        volatile IOException exception;
+
+        Job(DeltaList list, FileChannel in, FileChannel out)
+        {
+            this.list = list;
+            this.in = in;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Write the range from <code>start</code> up to <code>end</code> of
+     * the new file, splitting the range in two until it is small enough.
+     */
+    private class Task extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1638704815179586199L;
+
+        private final Job job;
+        private final long start;
+        private final long end;
+
+        Task(Job job, long start, long end)
+        {
+            this.job = job;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            if (end - start > TASK_SIZE)
+            {
+                long mid = start + (end - start) / 2;
+                invokeAll(new Task(job, start, mid), new Task(job, mid, end));
+                return;
+            }
+            if (job.exception != null)
+                return;
+            try
+            {
+                write(job, start, end);
+            } catch (IOException ioe)
+            {
+                job.exception = ioe;
+            }
+        }
+    }
+
+    /**
+     * Holder of the shared rebuilder, created on first use.
+     */
+    private static class Shared
+    {
+        static final ParallelRebuilder INSTANCE = new ParallelRebuilder();
+    }
+}
@@ -28,10 +28,12 @@ import gnu.getopt.Getopt;
 import gnu.getopt.LongOpt;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.Security;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -143,6 +145,11 @@ public class Rdiff
      */
     protected int strongSumLength;
 
+    /**
+     * The policy that chooses the block length of a file's signature.
+     */
+    protected BlockSizePolicy blockSizePolicy;
+
     // Constructors.
     // -----------------------------------------------------------------
 
@@ -153,6 +160,8 @@ public class Rdiff
     {
         blockLength = RDIFF_BLOCK_LENGTH;
         strongSumLength = RDIFF_STRONG_LENGTH;
+        blockSizePolicy = new BlockSizePolicy.SquareRoot(RDIFF_BLOCK_LENGTH,
+                BlockSizePolicy.SquareRoot.MAX_BLOCK_LENGTH);
     }
 
     // Main entry point.
@@ -186,6 +195,7 @@ public class Rdiff
                         {
                             throw new NumberFormatException();
                         }
+                        rdiff.blockSizePolicy = new BlockSizePolicy.Fixed(rdiff.blockLength);
                     } catch (NumberFormatException nfe)
                     {
                         System.err.println(PROGNAME + ": bad block size.");
@@ -271,10 +281,12 @@ public class Rdiff
                 try
                 {
                     in = new FileInputStream(argv[g.getOptind() + 1]);
+                    rdiff.blockLength = rdiff.blockSizePolicy.blockLength(
+                            new File(argv[g.getOptind() + 1]).length());
                     if (verbose)
                     {
                         System.err.println("Reading basis from file " +
-                                argv[g.getOptind() + 1]);
+                                argv[g.getOptind() + 1] + "; bs=" + rdiff.blockLength);
                     }
                 } catch (FileNotFoundException fnfe)
                 {
@@ -690,6 +702,17 @@ public class Rdiff
         writeInt(SIG_MAGIC, out);
         writeInt(blockLength, out);
         writeInt(strongSumLength, out);
+        if (sigs instanceof SignatureTable
+                && ((SignatureTable) sigs).getStrongLength() >= strongSumLength)
+        {
+            SignatureTable table = (SignatureTable) sigs;
+            for (int i = 0; i < table.size(); i++)
+            {
+                writeInt(table.getWeak(i), out);
+                out.write(table.strongSegment(i), table.strongOffset(i), strongSumLength);
+            }
+            return;
+        }
         for (ChecksumLocation location : sigs)
         {
             writeInt(location.getChecksumPair().getWeak(), out);
@@ -701,10 +724,10 @@ public class Rdiff
      * Make the signatures from data coming in through the input stream.
      *
      * @param in The input stream to generate signatures for.
-     * @return A List of signatures.
+     * @return A {@link SignatureTable} of the signatures.
      * @throws java.io.IOException If reading fails.
      */
-    public List<ChecksumLocation> makeSignatures(InputStream in)
+    public SignatureTable makeSignatures(InputStream in)
             throws IOException, NoSuchAlgorithmException
     {
         Configuration.Builder builder = Configuration.Builder.create();
@@ -720,21 +743,20 @@ public class Rdiff
      * Read the signatures from the input stream.
      *
      * @param in The InputStream to read the signatures from.
-     * @return A collection of {@link ChecksumPair}s read.
+     * @return A {@link SignatureTable} of the signatures read.
      * @throws java.io.IOException If the input stream is malformed.
      */
-    public List<ChecksumLocation> readSignatures(InputStream in) throws IOException
+    public SignatureTable readSignatures(InputStream in) throws IOException
     {
-        List<ChecksumLocation> sigs = new LinkedList<ChecksumLocation>();
         int header = readInt(in);
         if (header != SIG_MAGIC)
         {
             throw new IOException("Bad signature header: 0x"
                     + Integer.toHexString(header));
         }
-        long off = 0;
         blockLength = readInt(in);
         strongSumLength = readInt(in);
+        SignatureTable sigs = new SignatureTable(blockLength, strongSumLength);
 
         int weak;
         byte[] strong = new byte[strongSumLength];
@@ -747,8 +769,7 @@ public class Rdiff
                 if (len < strongSumLength)
                     break;
 
-                sigs.add(new ChecksumLocation(new ChecksumPair(weak, strong), off));
-                off += blockLength;
+                sigs.add(weak, strong, 0, blockLength);
             } catch (EOFException eof)
             {
                 break;
@@ -765,9 +786,11 @@ public class Rdiff
                 .weakSum(new Checksum32(CHAR_OFFSET))
                 .blockLength(blockLength)
                 .strongSumLength(strongSumLength)
+                .doRunLength(true)
                 .build();
         MatcherStream match = new MatcherStream(c);
         match.setChecksums(sums);
+        match.setMinCopyLength(DeltaOptimizer.MIN_COPY_LENGTH);
         writeInt(DELTA_MAGIC, out);
         match.addListener(new MatcherListener()
         {
@@ -801,6 +824,13 @@ public class Rdiff
                 throw (IOException) le.getCause();
             }
         }
+        try
+        {
+            match.doFinal();
+        } catch (ListenerException le)
+        {
+            throw (IOException) le.getCause();
+        }
         out.write(0);
     }
 
@@ -831,7 +861,8 @@ public class Rdiff
 
     /**
      * Make a collection of {@link Delta}s from the given sums and
-     * InputStream.
+     * InputStream. Short copies next to literals are sent as literal
+     * data, and the deltas are merged by a {@link DeltaOptimizer}.
      *
      * @param sums A collection of {@link ChecksumPair}s generated from
      *             the "old" file.
@@ -849,8 +880,25 @@ public class Rdiff
                 .weakSum(new Checksum32(CHAR_OFFSET))
                 .blockLength(blockLength)
                 .strongSumLength(strongSumLength)
+                .doRunLength(true)
                 .build();
-        return new Matcher(c).hashSearch(sums, in);
+        MatcherStream match = new MatcherStream(c);
+        match.setChecksums(sums);
+        match.setMinCopyLength(DeltaOptimizer.MIN_COPY_LENGTH);
+        DeltaList deltas = new DeltaList();
+        match.addSink(deltas);
+        byte[] buf = new byte[CHUNK_SIZE];
+        int len;
+        try
+        {
+            while ((len = in.read(buf)) != -1)
+                match.update(buf, 0, len);
+            match.doFinal();
+        } catch (ListenerException shouldNotHappen)
+        {
+            throw new Error(shouldNotHappen);
+        }
+        return new DeltaOptimizer().optimize(deltas);
     }
 
     /**
@@ -860,9 +908,10 @@ public class Rdiff
      * @return A collection of {@link Delta}s read.
      * @throws java.io.IOException If the input stream is malformed.
      */
-    public List<Delta> readDeltas(InputStream in) throws IOException
+    public DeltaList readDeltas(InputStream in) throws IOException
     {
-        List<Delta> deltas = new LinkedList<Delta>();
+        DeltaList deltas = new DeltaList();
+        DataInputStream din = new DataInputStream(in);
         int header = readInt(in);
         if (header != DELTA_MAGIC)
         {
@@ -871,8 +920,8 @@ public class Rdiff
         }
         int command;
         long offset = 0;
-        byte[] buf;
-        int count;
+        byte[] buf = new byte[0];
+        int len;
         while ((command = in.read()) != -1)
         {
             switch (command)
@@ -880,30 +929,22 @@ public class Rdiff
                 case OP_END:
                     return deltas;
                 case OP_LITERAL_N1:
-                    buf = new byte[(int) readInt(1, in)];
-                    count = in.read(buf);
-                    assert count == buf.length;
-                    deltas.add(new DataBlock(offset, buf));
-                    offset += buf.length;
-                    break;
                 case OP_LITERAL_N2:
-                    buf = new byte[(int) readInt(2, in)];
-                    count = in.read(buf);
-                    assert count == buf.length;
-                    deltas.add(new DataBlock(offset, buf));
-                    offset += buf.length;
-                    break;
                 case OP_LITERAL_N4:
-                    buf = new byte[(int) readInt(4, in)];
-                    count = in.read(buf);
-                    assert count == buf.length;
-                    deltas.add(new DataBlock(offset, buf));
-                    offset += buf.length;
+                    len = (int) readInt(command == OP_LITERAL_N1 ? 1
+                            : command == OP_LITERAL_N2 ? 2 : 4, in);
+                    if (len < 0)
+                        throw new IOException("Bad literal length: " + len);
+                    if (buf.length < len)
+                        buf = new byte[len];
+                    din.readFully(buf, 0, len);
+                    deltas.addLiteral(buf, 0, len, offset);
+                    offset += len;
                     break;
                 case OP_COPY_N4_N4:
-                    int oldOff = (int) readInt(4, in);
+                    long oldOff = readInt(4, in);
                     int bs = (int) readInt(4, in);
-                    deltas.add(new Offsets(oldOff, offset, bs));
+                    deltas.addCopy(oldOff, offset, bs);
                     offset += bs;
                     break;
                 default:
@@ -914,92 +955,87 @@ public class Rdiff
         throw new IOException("Didn't recieve RS_OP_END.");
     }
 
+    /**
+     * Patch the file <code>basis</code> using the delta read from
+     * <code>deltas</code>, writing the patched file to <code>out</code>.
+     * A delta lists its commands in order of write offset, so the patched
+     * file is written as the delta is read, with no intermediate file:
+     * literal data is passed through from the delta, and copies are
+     * transferred from the basis file's channel. <code>out</code> may
+     * thus be a pipe or a socket.
+     *
+     * <p>A copy that reaches past the end of the basis file is an error,
+     * and throws {@link EOFException}.</p>
+     *
+     * @param basis  The basis file.
+     * @param deltas The stream to read the delta from.
+     * @param out    The OutputStream to write the patched file to.
+     * @throws java.io.EOFException If a copy reaches past the end of the
+     *                              basis file.
+     * @throws java.io.IOException  If reading/writing fails, or if the
+     *                              delta is malformed.
+     */
     public void rebuildFile(File basis, InputStream deltas, OutputStream out)
             throws IOException
     {
-        File temp = File.createTempFile(".rdiff", null);
-        temp.deleteOnExit();
-        final RandomAccessFile f = new RandomAccessFile(temp, "w");
-        RebuilderStream rs = new RebuilderStream();
-        rs.setBasisFile(basis);
-        rs.addListener(new RebuilderListener()
+        FileInputStream basisIn = new FileInputStream(basis);
+        try
         {
-            public void update(RebuilderEvent re) throws ListenerException
+            FileChannel in = basisIn.getChannel();
+            WritableByteChannel channel;
+            if (out instanceof FileOutputStream)
+                channel = ((FileOutputStream) out).getChannel();
+            else
+                channel = Channels.newChannel(out);
+            DataInputStream din = new DataInputStream(deltas);
+            int header = readInt(deltas);
+            if (header != DELTA_MAGIC)
             {
-                try
-                {
-                    f.seek(re.getOffset());
-                    f.write(re.getData());
-                } catch (IOException ioe)
-                {
-                    throw new ListenerException(ioe);
-                }
+                throw new IOException("Bad delta header: 0x" +
+                        Integer.toHexString(header));
             }
-        });
-        int command;
-        long offset = 0;
-        byte[] buf;
-        boolean end = false;
-        int count;
-        read:
-        while ((command = deltas.read()) != -1)
-        {
-            try
+            byte[] buf = new byte[CHUNK_SIZE];
+            int command;
+            while ((command = deltas.read()) != -1)
             {
                 switch (command)
                 {
                     case OP_END:
-                        end = true;
-                        break read;
+                        return;
                     case OP_LITERAL_N1:
-                        buf = new byte[(int) readInt(1, deltas)];
-                        count = deltas.read(buf);
-                        assert count == buf.length;
-                        rs.update(new DataBlock(offset, buf));
-                        offset += buf.length;
-                        break;
                     case OP_LITERAL_N2:
-                        buf = new byte[(int) readInt(2, deltas)];
-                        count = deltas.read(buf);
-                        assert count == buf.length;
-                        rs.update(new DataBlock(offset, buf));
-                        offset += buf.length;
-                        break;
                     case OP_LITERAL_N4:
-                        buf = new byte[(int) readInt(4, deltas)];
-                        count = deltas.read(buf);
-                        assert count == buf.length;
-                        rs.update(new DataBlock(offset, buf));
-                        offset += buf.length;
+                        long len = readInt(command == OP_LITERAL_N1 ? 1
+                                : command == OP_LITERAL_N2 ? 2 : 4, deltas);
+                        while (len > 0)
+                        {
+                            int n = (int) Math.min(buf.length, len);
+                            din.readFully(buf, 0, n);
+                            out.write(buf, 0, n);
+                            len -= n;
+                        }
                         break;
                     case OP_COPY_N4_N4:
-                        int oldOff = (int) readInt(4, deltas);
-                        int bs = (int) readInt(4, deltas);
-                        rs.update(new Offsets(oldOff, offset, bs));
-                        offset += bs;
+                        long oldOff = readInt(4, deltas);
+                        long bs = readInt(4, deltas);
+                        Rebuilder.transfer(in, oldOff, bs, channel);
                         break;
                     default:
                         throw new IOException("Bad delta command: 0x" +
                                 Integer.toHexString(command));
                 }
-            } catch (ListenerException le)
-            {
-                throw (IOException) le.getCause();
             }
-        }
-        if (!end)
             throw new IOException("Didn't receive RS_OP_END.");
-        f.close();
-        FileInputStream fin = new FileInputStream(temp);
-        buf = new byte[CHUNK_SIZE];
-        int len;
-        while ((len = fin.read(buf)) != -1)
-            out.write(buf, 0, len);
+        } finally
+        {
+            basisIn.close();
+        }
     }
 
     /**
      * Patch the file <code>basis</code> using <code>deltas</code>,
-     * writing the patched file to <code>out</code>.
+     * writing the patched file to <code>out</code>. The deltas are
+     * applied in order of write offset, straight to <code>out</code>.
      *
      * @param basis  The basis file.
      * @param deltas The collection of {@link Delta}s to apply.
@@ -1010,15 +1046,7 @@ public class Rdiff
     rebuildFile(File basis, List deltas, OutputStream out)
             throws IOException
     {
-        File temp = Rebuilder.rebuildFile(basis, deltas);
-        temp.deleteOnExit();
-        FileInputStream fin = new FileInputStream(temp);
-        byte[] buf = new byte[CHUNK_SIZE];
-        int len;
-        while ((len = fin.read(buf)) != -1)
-        {
-            out.write(buf, 0, len);
-        }
+        Rebuilder.rebuild(out, basis, deltas);
     }
 
     // Own methods.
@@ -1042,7 +1070,7 @@ public class Rdiff
         out.println("  -p, --pipe                Keep less intermediate data in memory");
         out.println("  -s, --statistics          Show performance statistics");
         out.println("Delta-encoding options:");
-        out.println("  -b, --block-size=BYTES    Signature block size");
+        out.println("  -b, --block-size=BYTES    Signature block size (default: from file size)");
         out.println("  -S, --sum-size=BYTES      Set signature strength");
         out.println("*     --paranoia            Verify all rolling checksums");
         out.println("IO options:");
@@ -1152,7 +1180,7 @@ public class Rdiff
         {
             int k = in.read();
             if (k == -1) throw new EOFException();
-            i |= (k & 0xff) << 8 * j;
+            i |= (long) (k & 0xff) << 8 * j;
         }
         return i;
     }
@@ -23,10 +23,17 @@ THE SOFTWARE. */
 package org.metastatic.rsync;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 
 import java.util.*;
 
@@ -51,6 +58,18 @@ public class Rebuilder
      */
     private static final String TMP_SUFFIX = ".temp";
 
+    /**
+     * The size of the buffer that copies are read through when they
+     * cannot be transferred between channels directly.
+     */
+    public static final int COPY_BUFFER_SIZE = 65536;
+
+    /**
+     * The most bytes that {@link #rebuildFileInPlace(File, List)} holds in
+     * memory to break cycles between copies.
+     */
+    public static final long IN_PLACE_MEMORY = 64L << 20;
+
     // Class methods.
     // -----------------------------------------------------------------------
 
@@ -83,6 +102,18 @@ public class Rebuilder
     public static void rebuild(OutputStream out, byte[] buf, List<Delta> deltas)
             throws IOException
     {
+        if (deltas instanceof DeltaList)
+        {
+            DeltaList list = sorted(deltas);
+            for (int i = 0; i < list.size(); i++)
+            {
+                if (list.isCopy(i))
+                    out.write(buf, (int) list.getOldOffset(i), list.getLength(i));
+                else
+                    out.write(list.literalArray(i), list.literalOffset(i), list.getLength(i));
+            }
+            return;
+        }
         Delta[] darray = deltas.toArray(new Delta[0]);
         Arrays.sort(darray, new OffsetComparator());
 
@@ -100,37 +131,124 @@ public class Rebuilder
     }
 
     /**
-     * Reconstruct a file into an output stream.
+     * Reconstruct a file into an output stream. If <code>out</code> is a
+     * {@link FileOutputStream}, its channel is written to directly.
      *
      * @param out     The sink for reconstructed data.
      * @param oldFile The original file.
      * @param deltas  The deltas to apply.
+     * @see #rebuild(WritableByteChannel, FileChannel, List)
      */
     public static void
     rebuild(OutputStream out, File oldFile, List<Delta> deltas)
             throws IOException
     {
-        RandomAccessFile f = new RandomAccessFile(oldFile, "r");
-        Delta[] darray = deltas.toArray(new Delta[0]);
-        Arrays.sort(darray, new OffsetComparator());
-        byte[] buf = new byte[1024];
+        FileChannel basis = FileChannel.open(oldFile.toPath(), StandardOpenOption.READ);
+        try
+        {
+            if (out instanceof FileOutputStream)
+                rebuild(((FileOutputStream) out).getChannel(), basis, deltas);
+            else
+                rebuild(Channels.newChannel(out), basis, deltas);
+        } finally
+        {
+            basis.close();
+        }
+    }
 
-        for (int i = 0; i < darray.length; i++)
+    /**
+     * Reconstruct a file into a channel, writing the new data from start
+     * to end. Copies are moved with {@link FileChannel#transferTo(long,
+     * long, WritableByteChannel)}, so when <code>out</code> is a file or
+     * socket channel the original data need not pass through the Java
+     * heap. Runs of literals are written with a single gathering write
+     * when <code>out</code> is a {@link GatheringByteChannel}. The
+     * channel must be in blocking mode.
+     *
+     * @param out    The sink for reconstructed data.
+     * @param basis  The original file.
+     * @param deltas The deltas to apply.
+     * @throws EOFException If a copy reads past the end of the original
+     *                      file.
+     */
+    public static void rebuild(WritableByteChannel out, FileChannel basis, List<Delta> deltas)
+            throws IOException
+    {
+        DeltaList list = sorted(deltas);
+        ByteBuffer[] literals = new ByteBuffer[64];
+        int n = list.size();
+        for (int i = 0; i < n; )
         {
-            if (darray[i] instanceof DataBlock)
+            if (list.isCopy(i))
             {
-                out.write(((DataBlock) darray[i]).getData());
-            } else
+                transfer(basis, list.getOldOffset(i), list.getLength(i), out);
+                i++;
+                continue;
+            }
+            int count = 0;
+            for (; i < n && !list.isCopy(i) && count < literals.length; i++)
+                literals[count++] = ByteBuffer.wrap(list.literalArray(i), list.literalOffset(i),
+                        list.getLength(i));
+            if (out instanceof GatheringByteChannel)
             {
-                f.seek(((Offsets) darray[i]).getOldOffset());
-                int len = 0, total = 0;
-                do
+                for (int j = 0; j < count; )
                 {
-                    len = f.read(buf);
-                    total += len;
-                    out.write(buf, 0, len);
-                } while (total < darray[i].getBlockLength());
+                    ((GatheringByteChannel) out).write(literals, j, count - j);
+                    while (j < count && !literals[j].hasRemaining())
+                        j++;
+                }
+            } else
+            {
+                for (int j = 0; j < count; j++)
+                    writeFully(out, literals[j], -1);
             }
+            Arrays.fill(literals, 0, count, null);
+        }
+    }
+
+    /**
+     * Return deltas in order of write offsets: the list itself if it is
+     * a sorted {@link DeltaList}, or else a sorted copy.
+     */
+    static DeltaList sorted(List<Delta> deltas)
+    {
+        if (deltas instanceof DeltaList && ((DeltaList) deltas).isSortedByWriteOffset())
+            return (DeltaList) deltas;
+        DeltaList copy = new DeltaList(deltas);
+        copy.sortByWriteOffset();
+        return copy;
+    }
+
+    /**
+     * Move <code>count</code> bytes of the original file, starting at
+     * <code>position</code>, into a channel.
+     */
+    static void transfer(FileChannel basis, long position, long count,
+                         WritableByteChannel out) throws IOException
+    {
+        while (count > 0)
+        {
+            long n = basis.transferTo(position, count, out);
+            if (n <= 0 && position >= basis.size())
+                throw new EOFException("copy past the end of the original file");
+            position += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Write all of a buffer to a channel; at <code>position</code> if it
+     * is not negative, or else at the channel's own position.
+     */
+    static void writeFully(WritableByteChannel out, ByteBuffer buf, long position)
+            throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            if (position < 0)
+                out.write(buf);
+            else
+                position += ((FileChannel) out).write(buf, position);
         }
     }
 
@@ -163,52 +281,114 @@ public class Rebuilder
      */
     public static void rebuildFile(File oldFile, File newFile, List<Delta> deltas)
             throws IOException
+    {
+        try
+        {
+            rebuildFile(oldFile, newFile, deltas, null);
+        } catch (ListenerException shouldNotHappen)
+        {
+            throw new Error(shouldNotHappen);
+        }
+    }
+
+    /**
+     * Reconstruct a file into <code>newFile</code>, sending everything
+     * written to a listener as well.
+     *
+     * <p>Without a listener, the deltas are applied in the order of
+     * {@link DeltaOptimizer#readPlan(List)}, so the original file is read
+     * from start to end, and copies are moved with {@link
+     * FileChannel#transferTo(long, long, WritableByteChannel)} without
+     * entering the Java heap.</p>
+     *
+     * <p>With a listener, the deltas are applied in order of their write
+     * offsets, so the listener sees the new file from start to end; a
+     * {@link SigningRebuilderListener}, for example, can sign the new file
+     * without reading it again. Copies are then read through a buffer
+     * that is reused for every copy, and sent in events of at most
+     * {@link #COPY_BUFFER_SIZE} bytes.</p>
+     *
+     * @param oldFile  The original file.
+     * @param newFile  The file to write the reconstruction to. This must be a
+     *                 different file than <code>oldFile</code>
+     * @param deltas   The {@link Delta}s to apply.
+     * @param listener The listener to send the written data to, or null.
+     * @throws ListenerException If the listener throws an exception.
+     */
+    public static void rebuildFile(File oldFile, File newFile, List<Delta> deltas,
+                                   RebuilderListener listener)
+            throws IOException, ListenerException
     {
         if (oldFile.equals(newFile))
         {
             throw new IOException("cannot read and write to the same file");
         }
-        RandomAccessFile out = new RandomAccessFile(newFile, "rw");
-        RandomAccessFile in = null;
+        DeltaList list;
+        if (listener == null)
+            list = DeltaOptimizer.readPlan(deltas);
+        else
+            list = sorted(deltas);
+        FileChannel out = FileChannel.open(newFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+        FileChannel in = null;
         try
         {
-            in = new RandomAccessFile(oldFile, "r");
+            in = FileChannel.open(oldFile.toPath(), StandardOpenOption.READ);
         } catch (IOException ignore)
         {
         }
 
-        for (Delta o : deltas)
+        try
         {
-            if (o instanceof DataBlock)
-            {
-                long off = ((DataBlock) o).getOffset();
-                out.seek(off);
-                out.write(((DataBlock) o).getData());
-            } else if (o instanceof Offsets)
+            ByteBuffer buf = null;
+            for (int i = 0; i < list.size(); i++)
             {
+                int len = list.getLength(i);
+                long off2 = list.getWriteOffset(i);
+                if (!list.isCopy(i))
+                {
+                    int off = list.literalOffset(i);
+                    writeFully(out, ByteBuffer.wrap(list.literalArray(i), off, len), off2);
+                    if (listener != null)
+                        listener.update(new RebuilderEvent(list.literalArray(i), off, len, off2));
+                    continue;
+                }
                 if (in == null)
                 {
                     throw new IOException("original file does not exist or not readable");
                 }
-                int len = ((Offsets) o).getBlockLength();
-                long off1 = ((Offsets) o).getOldOffset();
-                long off2 = ((Offsets) o).getNewOffset();
-                byte[] buf = new byte[len];
-                in.seek(off1);
-                in.read(buf);
-                out.seek(off2);
-                out.write(buf);
+                long off1 = list.getOldOffset(i);
+                if (listener == null)
+                {
+                    transfer(in, off1, len, out.position(off2));
+                    continue;
+                }
+                if (buf == null)
+                    buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                for (int done = 0; done < len; )
+                {
+                    buf.clear().limit(Math.min(buf.capacity(), len - done));
+                    readFully(in, buf, off1 + done);
+                    buf.flip();
+                    int n = buf.remaining();
+                    writeFully(out, buf, off2 + done);
+                    listener.update(new RebuilderEvent(buf.array(), 0, n, off2 + done));
+                    done += n;
+                }
             }
+        } finally
+        {
+            if (in != null)
+                in.close();
+            out.close();
         }
-
-        if (in != null)
-            in.close();
-        out.close();
     }
 
     /**
      * Reconstruct a file in-place. The contents of <code>file</code> will be
-     * overwritten with the contents of the reconstructed file.
+     * overwritten with the contents of the reconstructed file. At most
+     * {@link #IN_PLACE_MEMORY} bytes are held in memory to break cycles
+     * between copies.
      *
      * @param file   The file to reconstruct.
      * @param deltas The {@link Delta}s to apply.
@@ -216,294 +396,175 @@ public class Rebuilder
     public static void rebuildFileInPlace(File file, List<Delta> deltas)
             throws IOException
     {
+        rebuildFileInPlace(file, deltas, IN_PLACE_MEMORY);
+    }
+
+    /**
+     * Reconstruct a file in-place. The contents of <code>file</code> will be
+     * overwritten with the contents of the reconstructed file.
+     *
+     * <p>A copy must run before any other copy overwrites the data it
+     * reads. The copies are ordered by an {@link InPlacePlanner}, which
+     * finds these conflicts in <i>O</i>(<i>n</i> log <i>n</i>) time. Where
+     * copies depend on each other in a cycle, the data of one copy in the
+     * cycle is read before any copy runs, and written after the others.
+     * This data is held in memory up to <code>memoryBudget</code> bytes;
+     * the rest is spilled to a temporary file beside <code>file</code>.
+     * Literal data is written last.</p>
+     *
+     * @param file         The file to reconstruct.
+     * @param deltas       The {@link Delta}s to apply.
+     * @param memoryBudget The most bytes of copied data to hold in memory.
+     */
+    public static void rebuildFileInPlace(File file, List<Delta> deltas, long memoryBudget)
+            throws IOException
+    {
+        if (memoryBudget < 0)
+            throw new IllegalArgumentException("memory budget must not be negative");
         final boolean copyOnly = !file.exists();
-        RandomAccessFile f = new RandomAccessFile(file, "rw");
-        List<Offsets> offsets = new LinkedList<Offsets>();
-        List<DataBlock> dataBlocks = new LinkedList<DataBlock>();
-        TreeMap<Offsets, Set<Offsets>> digraph = new TreeMap<Offsets, Set<Offsets>>(new OffsetComparator());
+        // Literals first, then copies in order of their read offsets.
+        DeltaList plan = DeltaOptimizer.readPlan(deltas);
+        int first = 0;
         long newFileLength = 0;
-
-        for (Delta o : deltas)
+        for (int i = 0; i < plan.size(); i++)
         {
-            if (o instanceof Offsets)
-            {
-                if (copyOnly)
-                    throw new IOException("original file does not exist.");
-                offsets.add((Offsets) o);
-                digraph.put((Offsets) o, new HashSet());
-                newFileLength = Math.max(newFileLength,
-                        ((Offsets) o).getNewOffset() + ((Offsets) o).getBlockLength());
-            } else if (o instanceof DataBlock)
-            {
-                dataBlocks.add((DataBlock) o);
-                newFileLength = Math.max(newFileLength,
-                        ((DataBlock) o).getOffset() + ((DataBlock) o).getBlockLength());
-            }
+            if (!plan.isCopy(i))
+                first = i + 1;
+            newFileLength = Math.max(newFileLength, plan.getWriteOffset(i) + plan.getLength(i));
         }
-
-        if (copyOnly)
+        int n = plan.size() - first;
+        if (copyOnly && n > 0)
+            throw new IOException("original file does not exist.");
+
+        long[] readOffsets = new long[n];
+        long[] writeOffsets = new long[n];
+        int[] lengths = new int[n];
+        for (int k = 0; k < n; k++)
         {
-            for (Iterator i = dataBlocks.iterator(); i.hasNext(); )
-            {
-                DataBlock d = (DataBlock) i.next();
-                f.seek(d.getWriteOffset());
-                f.write(d.getData());
-            }
-            if (f.length() < newFileLength)
-            {
-                f.setLength(newFileLength);
-            }
-            f.close();
-            return;
+            readOffsets[k] = plan.getOldOffset(first + k);
+            writeOffsets[k] = plan.getWriteOffset(first + k);
+            lengths[k] = plan.getLength(first + k);
         }
+        InPlacePlanner planner = new InPlacePlanner(readOffsets, writeOffsets, lengths, n);
+        planner.plan();
 
-        // build the digraph
-        for (Iterator i = offsets.iterator(); i.hasNext(); )
+        FileChannel f = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        File spillFile = null;
+        FileChannel spill = null;
+        try
         {
-            Offsets o1 = (Offsets) i.next();
-            Set<Offsets> adj = digraph.get(o1);
-            for (Iterator j = offsets.iterator(); j.hasNext(); )
+            ByteBuffer buf = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+
+            // Save the data of the copies that were removed from cycles.
+            DeltaList saved = new DeltaList();
+            DeltaList spilled = new DeltaList();
+            long held = 0;
+            for (int u : planner.getCycles())
             {
-                Offsets o2 = (Offsets) j.next();
-                if (o1 == o2) continue;
-                if (conflict(o1, o2))
+                if (held + lengths[u] <= memoryBudget)
+                {
+                    for (int done = 0; done < lengths[u]; )
+                    {
+                        buf.clear().limit(Math.min(buf.capacity(), lengths[u] - done));
+                        readFully(f, buf, readOffsets[u] + done);
+                        saved.addLiteral(buf.array(), 0, buf.position(), writeOffsets[u] + done);
+                        done += buf.position();
+                    }
+                    held += lengths[u];
+                    continue;
+                }
+                if (spill == null)
                 {
-                    adj.add(o2);
+                    spillFile = File.createTempFile(TMP_PREFIX, TMP_SUFFIX,
+                            file.getAbsoluteFile().getParentFile());
+                    spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ,
+                            StandardOpenOption.WRITE);
                 }
+                spilled.addCopy(spill.position(), writeOffsets[u], lengths[u]);
+                transfer(f, readOffsets[u], lengths[u], spill);
             }
-        }
-
-        // Sort the digraph topologically, removing nodes that cause cycles.
-        TopologicalSorter ts = new TopologicalSorter(digraph);
-        ts.sort();
-
-        for (Object o1 : ts.getCycleNodes())
-        {
-            Offsets o = (Offsets) o1;
-            byte[] buf = new byte[o.getBlockLength()];
-            f.seek(o.getOldOffset());
-            f.read(buf);
-            dataBlocks.add(new DataBlock(o.getNewOffset(), buf));
-        }
 
-        for (Object o1 : ts.getFinished())
-        {
-            Offsets o = (Offsets) o1;
-            byte[] buf = new byte[o.getBlockLength()];
-            f.seek(o.getOldOffset());
-            f.read(buf);
-            f.seek(o.getNewOffset());
-            f.write(buf);
-        }
-
-        for (DataBlock db : dataBlocks)
-        {
-            f.seek(db.getOffset());
-            f.write(db.getData());
-        }
-        if (f.length() > newFileLength)
+            for (int u : planner.getOrder())
+                move(f, readOffsets[u], writeOffsets[u], lengths[u], buf);
+            for (int i = 0; i < spilled.size(); i++)
+                transfer(spill, spilled.getOldOffset(i), spilled.getLength(i),
+                        f.position(spilled.getWriteOffset(i)));
+            writeLiterals(saved, 0, saved.size(), f);
+            writeLiterals(plan, 0, first, f);
+            if (f.size() > newFileLength)
+            {
+                f.truncate(newFileLength);
+            }
+        } finally
         {
-            // Doesn't exist everywhere.
-            f.setLength(newFileLength);
+            f.close();
+            if (spill != null)
+                spill.close();
+            if (spillFile != null)
+                spillFile.delete();
         }
-
-        f.close();
     }
 
     // Own methods. ----------------------------------------------------------
 
     /**
-     * Test if the first offset will write to the reading area of the second
-     * offset.
+     * Fill a buffer from a file, starting at <code>position</code>.
      */
-    private static boolean conflict(Offsets o1, Offsets o2)
+    static void readFully(FileChannel in, ByteBuffer buf, long position)
+            throws IOException
     {
-        return (o1.getNewOffset() >= o2.getOldOffset()
-                && o1.getNewOffset() <= o2.getOldOffset() + o2.getBlockLength())
-                || (o1.getNewOffset() + o1.getBlockLength() >= o2.getOldOffset()
-                && o1.getNewOffset() + o1.getBlockLength() <= o2.getOldOffset()
-                + o2.getBlockLength());
+        while (buf.hasRemaining())
+        {
+            if (in.read(buf, position + buf.position()) < 0)
+                throw new EOFException("copy past the end of the original file");
+        }
     }
 
-    // Private inner classes.
-    // -----------------------------------------------------------------------
-
     /**
-     * <p>This class topologically sorts a directed graph encoded as a mapping
-     * from vertices to sets of adjacent vertices. It is used when
-     * reconstructing a file in-place, where it is possible that Offsets
-     * objects overlap.</p>
-     * <p/>
-     * <p>Since a topological ordering of a directed graph is only possible in
-     * acyclic graphs, this sorter will remove any nodes that cause cycles,
-     * leaving the rest of the graph acyclic. After the graph is sorted the
-     * ordering can be obtained with {@link #getFinished()}, which is a {@link
-     * java.util.List} of nodes in their sorted order. Nodes that were part of
-     * cycles but have been removed can be retrieved with {@link
-     * #getCycleNodes()}, which returns a {@link java.util.Set} of nodes that
-     * were removed.</p>
-     * <p/>
-     * <p>Despite the terminology of "removed" nodes, the graph passed to the
-     * constructor is not modified.</p>
-     *
-     * @version 1.1
+     * Copy <code>length</code> bytes within a file through a buffer. If
+     * the ranges overlap, the copy runs in the direction that reads each
+     * byte before it is overwritten.
      */
-    private static class TopologicalSorter
+    private static void move(FileChannel f, long from, long to, int length, ByteBuffer buf)
+            throws IOException
     {
-        private static enum Color
-        {
-            White,
-            Gray,
-            Black
-        }
-
-        // Constants and variables.
-        // --------------------------------------------------------------------
-
-        /**
-         * The color for unvisited nodes.
-         */
-        private static final String WHITE = "white";
-
-        /**
-         * The color for visited nodes.
-         */
-        private static final String GRAY = "gray";
-
-        /**
-         * The color for finished nodes.
-         */
-        private static final String BLACK = "black";
-
-        /**
-         * The graph, encoded as a mapping between nodes and {@link
-         * java.util.Set}s of adjacent nodes.
-         */
-        private Map<Offsets, Set<Offsets>> graph;
-
-        /**
-         * A mapping between nodes and their color.
-         */
-        private Map<Offsets, Color> colors;
-
-        /**
-         * The ordered list of finished nodes.
-         */
-        private List<Offsets> finished;
-
-        /**
-         * The set of nodes that had to be removed from cycles.
-         */
-        private Set<Offsets> cycleNodes;
-
-        // Constructor.
-        // --------------------------------------------------------------------
-
-        /**
-         * Create a new topological sorter for the given graph.
-         *
-         * @param graph The graph to sort.
-         */
-        TopologicalSorter(Map<Offsets, Set<Offsets>> graph)
-        {
-            this.graph = graph;
-            colors = new HashMap<Offsets, Color>();
-            finished = new LinkedList<Offsets>();
-            cycleNodes = new HashSet<Offsets>();
-        }
-
-        // Instance methods.
-        // --------------------------------------------------------------------
-
-        /**
-         * Sort the graph. After this method returns the finished and removed
-         * nodes are available.
-         */
-        void sort()
-        {
-            DFS();
-        }
-
-        /**
-         * Return the ordered list of nodes.
-         *
-         * @return The ordered nodes.
-         */
-        List<Offsets> getFinished()
-        {
-            return finished;
-        }
-
-        /**
-         * Get the nodes that caused cycles.
-         *
-         * @return The removed nodes.
-         */
-        Set<Offsets> getCycleNodes()
-        {
-            return cycleNodes;
-        }
-
-        // Own methods.
-
-        /**
-         * <p>Depth-first search with removing nodes with back edges. As this
-         * method runs it places nodes into a list, which is a topological
-         * sorting of this graph. Any node encountered with a back-edge is
-         * put into the cycle-nodes list.</p>
-         * <p/>
-         * <p>References:</p>
-         * <ol>
-         * <li>T. Cormen, C. Leiserson, and R. Rivest: <i>Introduction to
-         * Algorithms</i>, pp. 477-487 (1990 The Massachusetts Institute of
-         * Technology).</li>
-         * </ol>
-         */
-        private void DFS()
+        if (from == to)
+            return;
+        boolean backward = to > from && to < from + length;
+        for (int done = 0; done < length; )
         {
-            for (Offsets offsets : graph.keySet())
-            {
-                colors.put(offsets, Color.White);
-            }
-            for (Offsets u : graph.keySet())
-            {
-                if (colors.get(u) == Color.White)
-                {
-                    DFSVisit(u);
-                }
-            }
+            int n = Math.min(buf.capacity(), length - done);
+            long off = backward ? length - done - n : done;
+            buf.clear().limit(n);
+            readFully(f, buf, from + off);
+            buf.flip();
+            writeFully(f, buf, to + off);
+            done += n;
         }
+    }
 
-        /**
-         * DFS_VISIT. Visit a single node in a depth-first search.
-         *
-         * @param u The node to visit.
-         */
-        private void DFSVisit(Offsets u)
+    /**
+     * Write the literals of a delta list, from index <code>from</code> up
+     * to <code>to</code>, to their offsets in a file.
+     */
+    private static void writeLiterals(DeltaList list, int from, int to, FileChannel out)
+            throws IOException
+    {
+        for (int i = from; i < to; i++)
         {
-            colors.put(u, Color.Gray);
-            for (Offsets v : graph.get(u))
-            {
-                if (colors.get(v) == Color.White)
-                {
-                    DFSVisit(v);
-                } else if (colors.get(v) == Color.Gray)
-                {
-                    cycleNodes.add(u);
-                }
-            }
-            colors.put(u, Color.Black);
-            if (!cycleNodes.contains(u))
-            {
-                finished.add(u);
-            }
+            writeFully(out, ByteBuffer.wrap(list.literalArray(i), list.literalOffset(i),
+                    list.getLength(i)), list.getWriteOffset(i));
         }
     }
 
+    // Private inner classes.
+    // -----------------------------------------------------------------------
+
     /**
      * Sort Offsets and DataBlocks objects by increasing write offset.
      */
-    private static class OffsetComparator implements Comparator<Delta>
+    static class OffsetComparator implements Comparator<Delta>
     {
         public OffsetComparator()
         {
@@ -515,7 +576,7 @@ public class Rebuilder
             long offset2 = 0;
             offset1 = o1.getWriteOffset();
             offset2 = o2.getWriteOffset();
-            return (int) (offset1 - offset2);
+            return offset1 < offset2 ? -1 : (offset1 == offset2 ? 0 : 1);
         }
 
         public boolean equals(Object o)
@@ -23,11 +23,19 @@ THE SOFTWARE.  */
 
 package org.metastatic.rsync;
 
+import java.nio.ByteBuffer;
+
 /**
  * a rebuilder event. Rebuilder events are emitted by a {@link
  * RebuilderStream} each time a new {@link Delta} is applied. The stream
  * will send this event to each of its {@link RebuilderListener}s.
  *
+ * <p>The data may be held in a byte array, or in a buffer such as a
+ * slice of a mapped file. Listeners that can take a buffer should read
+ * it with {@link #getBuffer()}, which does not copy it; {@link
+ * #getData()} copies buffer data into a new array the first time it is
+ * called.</p>
+ *
  * @see RebuilderStream
  * @see RebuilderListener
  */
@@ -63,6 +71,20 @@ public class RebuilderEvent extends java.util.EventObject
         this.offset = offset;
     }
 
+    /**
+     * Create a new rebuilder event from the remaining bytes of a buffer.
+     * The buffer is not copied, so its contents must not change while
+     * the event is in use.
+     *
+     * @param data   The data.
+     * @param offset The destination offset.
+     */
+    public RebuilderEvent(ByteBuffer data, long offset)
+    {
+        super(data.slice().asReadOnlyBuffer());
+        this.offset = offset;
+    }
+
     // Instance methods.
     // -------------------------------------------------------------------------
 
@@ -75,9 +97,41 @@ public class RebuilderEvent extends java.util.EventObject
      */
     public byte[] getData()
     {
+        if (source instanceof ByteBuffer)
+        {
+            ByteBuffer buf = ((ByteBuffer) source).duplicate();
+            byte[] data = new byte[buf.remaining()];
+            buf.get(data);
+            source = data;
+        }
         return (byte[]) source;
     }
 
+    /**
+     * Get the data as a read-only buffer, without copying it. Each call
+     * returns a new buffer, positioned at the start of the data.
+     *
+     * @return The data buffer.
+     */
+    public ByteBuffer getBuffer()
+    {
+        if (source instanceof ByteBuffer)
+            return ((ByteBuffer) source).duplicate();
+        return ByteBuffer.wrap((byte[]) source).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the length of the data.
+     *
+     * @return The number of bytes.
+     */
+    public int getLength()
+    {
+        if (source instanceof ByteBuffer)
+            return ((ByteBuffer) source).remaining();
+        return ((byte[]) source).length;
+    }
+
     /**
      * Get the offset at which the data should be written.
      *
@@ -26,6 +26,7 @@ package org.metastatic.rsync;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 /**
@@ -38,13 +39,24 @@ import java.util.LinkedList;
  * <p/>
  * <p>Note that unlike the {@link GeneratorStream} and {@link
  * MatcherStream} classes this class does not need a {@link
- * Configuration}, nor does it have any "doFinal" method -- it is
- * completely stateless (except for the file) and the operations are
- * finished when the last delta has been applied.
+ * Configuration}. Unless it has a window, it is completely stateless
+ * (except for the file) and the operations are finished when the last
+ * delta has been applied; {@link #doFinal()} only closes the file.
  * <p/>
  * <p>This class is optimal for situations where the deltas are coming
  * in a stream over a communications link, and when it would be
  * inefficient to wait until all deltas are received.
+ *
+ * <p>By default each delta is applied as it arrives, with one read of
+ * the basis file for each copy. A rebuilder created with a window
+ * instead holds deltas until they cover that many bytes, or until
+ * {@link #flush()} or {@link #doFinal()} is called. The pending copies
+ * are then read in order of their offsets in the basis file, with the
+ * reads of copies that are at most {@link #readGap} bytes apart merged
+ * into one, and the events are sent in order of write offset. This
+ * turns many small scattered reads into a few large sequential ones.
+ * Copies are sent as buffers over the merged reads, which are not
+ * reused.</p>
  */
 public class RebuilderStream
 {
@@ -52,11 +64,42 @@ public class RebuilderStream
     // Fields.
     // -----------------------------------------------------------------------
 
+    /**
+     * The default largest gap between two copies whose reads are merged.
+     */
+    public static final int READ_GAP = 4096;
+
     /**
      * The basis file.
      */
     protected RandomAccessFile basisFile;
 
+    /**
+     * The length of the basis file.
+     */
+    protected long basisLength;
+
+    /**
+     * The number of bytes of pending deltas to hold before applying
+     * them, or zero to apply each delta as it arrives.
+     */
+    protected final int window;
+
+    /**
+     * The largest gap between two pending copies whose reads are merged.
+     */
+    protected final int readGap;
+
+    /**
+     * The pending deltas, or null.
+     */
+    private DeltaList pending;
+
+    /**
+     * The number of bytes covered by {@link #pending}.
+     */
+    private long pendingBytes;
+
     /**
      * The list of {@link RebuilderListener}s.
      */
@@ -66,11 +109,42 @@ public class RebuilderStream
     // -----------------------------------------------------------------------
 
     /**
-     * Create a new rebuilder.
+     * Create a new rebuilder, that applies each delta as it arrives.
      */
     public RebuilderStream()
     {
+        this(0, READ_GAP);
+    }
+
+    /**
+     * Create a new rebuilder, that holds deltas until they cover
+     * <code>window</code> bytes, and merges reads up to {@link #READ_GAP}
+     * bytes apart.
+     *
+     * @param window The number of bytes to hold, or zero to apply each
+     *               delta as it arrives.
+     */
+    public RebuilderStream(int window)
+    {
+        this(window, READ_GAP);
+    }
+
+    /**
+     * Create a new rebuilder, that holds deltas until they cover
+     * <code>window</code> bytes, and merges reads up to
+     * <code>readGap</code> bytes apart.
+     *
+     * @param window  The number of bytes to hold, or zero to apply each
+     *                delta as it arrives.
+     * @param readGap The largest gap between copies whose reads are merged.
+     */
+    public RebuilderStream(int window, int readGap)
+    {
+        if (window < 0 || readGap < 0)
+            throw new IllegalArgumentException("window and gap must not be negative");
         listeners = new LinkedList<RebuilderListener>();
+        this.window = window;
+        this.readGap = readGap;
     }
 
     // Instance methods.
@@ -104,9 +178,11 @@ public class RebuilderStream
      *
      * @param file The basis file.
      * @throws IOException If the file is not readable.
+     * @throws IllegalStateException If there are deltas pending.
      */
     public void setBasisFile(File file) throws IOException
     {
+        checkPending();
         if (basisFile != null)
         {
             basisFile.close();
@@ -114,6 +190,7 @@ public class RebuilderStream
         }
         if (file != null)
             basisFile = new RandomAccessFile(file, "r");
+        basisLength = basisFile != null ? basisFile.length() : 0;
     }
 
     /**
@@ -121,9 +198,11 @@ public class RebuilderStream
      *
      * @param file The basis file name.
      * @throws IOException If the file name is not the name of a readable file.
+     * @throws IllegalStateException If there are deltas pending.
      */
     public void setBasisFile(String file) throws IOException
     {
+        checkPending();
         if (basisFile != null)
         {
             basisFile.close();
@@ -131,15 +210,89 @@ public class RebuilderStream
         }
         if (file != null)
             basisFile = new RandomAccessFile(file, "r");
+        basisLength = basisFile != null ? basisFile.length() : 0;
     }
 
     /**
+     * Apply any pending deltas, and close the basis file.
      *
+     * @throws IOException If the basis file cannot be read.
+     * @throws ListenerException If a listener throws an exception.
      */
-    public void doFinal() throws IOException
+    public void doFinal() throws IOException, ListenerException
     {
-        if (basisFile != null)
-            basisFile.close();
+        try
+        {
+            flush();
+        } finally
+        {
+            if (basisFile != null)
+                basisFile.close();
+        }
+    }
+
+    /**
+     * Apply the pending deltas, if any. The basis file is read once for
+     * each group of copies whose reads are close together, in order of
+     * offset, and the events are then sent in order of write offset.
+     *
+     * @throws IOException If the basis file cannot be read.
+     * @throws ListenerException If a listener throws an exception.
+     */
+    public void flush() throws IOException, ListenerException
+    {
+        DeltaList list = pending;
+        if (list == null)
+            return;
+        pending = null;
+        pendingBytes = 0;
+        int n = list.size();
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++)
+            keys[i] = list.isCopy(i) ? list.getOldOffset(i) : -1;
+        int[] byRead = list.sortOrder(keys);
+        ByteBuffer[] data = new ByteBuffer[n];
+        int i = 0;
+        while (i < n && !list.isCopy(byRead[i]))
+            i++;
+        while (i < n)
+        {
+            // Extend the read over every copy that begins near its end.
+            long start = list.getOldOffset(byRead[i]);
+            long end = start;
+            int j = i;
+            for (; j < n; j++)
+            {
+                long o = list.getOldOffset(byRead[j]);
+                long e = o + list.getLength(byRead[j]);
+                if (j > i && (o > end + readGap || e - start > Integer.MAX_VALUE - 8))
+                    break;
+                end = Math.max(end, e);
+            }
+            end = Math.min(end, basisLength);
+            byte[] buf = new byte[(int) Math.max(0, end - start)];
+            if (buf.length > 0)
+            {
+                basisFile.seek(start);
+                basisFile.readFully(buf);
+            }
+            for (; i < j; i++)
+            {
+                int k = byRead[i];
+                long o = list.getOldOffset(k);
+                long len = Math.min(list.getLength(k), end - o);
+                if (len > 0)
+                    data[k] = ByteBuffer.wrap(buf, (int) (o - start), (int) len);
+            }
+        }
+        for (int k : list.sortOrder(list.newOffsets))
+        {
+            if (!list.isCopy(k))
+                fireUpdate(new RebuilderEvent(ByteBuffer.wrap(list.literalArray(k),
+                        list.literalOffset(k), list.getLength(k)), list.getWriteOffset(k)));
+            else if (data[k] != null)
+                fireUpdate(new RebuilderEvent(data[k], list.getWriteOffset(k)));
+        }
     }
 
     /**
@@ -151,7 +304,18 @@ public class RebuilderStream
      */
     public void update(Delta delta) throws IOException, ListenerException
     {
-        ListenerException exception = null, current = null;
+        if (delta instanceof Offsets && basisFile == null)
+            throw new IOException("offsets found but no basis file specified");
+        if (window > 0)
+        {
+            if (pending == null)
+                pending = new DeltaList();
+            pending.add(delta);
+            pendingBytes += delta.getBlockLength();
+            if (pendingBytes >= window)
+                flush();
+            return;
+        }
         RebuilderEvent e = null;
         if (delta instanceof DataBlock)
         {
@@ -159,10 +323,8 @@ public class RebuilderStream
                     delta.getWriteOffset());
         } else
         {
-            if (basisFile == null)
-                throw new IOException("offsets found but no basis file specified");
-            int len = Math.min(delta.getBlockLength(),
-                    (int) (basisFile.length() - ((Offsets) delta).getOldOffset()));
+            int len = (int) Math.min(delta.getBlockLength(),
+                    basisLength - ((Offsets) delta).getOldOffset());
             if (len < 0)
                 return;
             byte[] buf = new byte[len];
@@ -170,6 +332,20 @@ public class RebuilderStream
             len = basisFile.read(buf);
             e = new RebuilderEvent(buf, 0, len, delta.getWriteOffset());
         }
+        fireUpdate(e);
+    }
+
+    /**
+     * Send an event to every listener. If any listeners throw
+     * exceptions, the rest are still sent the event, and the exceptions
+     * are thrown afterwards, chained together.
+     *
+     * @param e The event.
+     * @throws ListenerException If any listener throws an exception.
+     */
+    protected void fireUpdate(RebuilderEvent e) throws ListenerException
+    {
+        ListenerException exception = null, current = null;
         for (RebuilderListener listener : listeners)
         {
             try
@@ -191,4 +367,13 @@ public class RebuilderStream
         if (exception != null)
             throw exception;
     }
+
+    // Own methods.
+    // -----------------------------------------------------------------------
+
+    private void checkPending()
+    {
+        if (pending != null)
+            throw new IllegalStateException("deltas pending; call flush() first");
+    }
 }
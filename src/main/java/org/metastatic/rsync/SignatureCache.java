@@ -0,0 +1,391 @@
+/* SignatureCache: an on-disk cache of file signatures.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A cache of the signatures of files, kept in a directory. Each entry
+ * is keyed by the canonical path, length, modification time and, where
+ * the file system has one, the inode or other file key of the file it
+ * was made from, together with every parameter of the {@link
+ * Configuration} that affects the sums. If none of these has changed
+ * since the signatures were stored, they are returned without the file
+ * being read.
+ *
+ * <p>Entries are written to a temporary file and renamed into place,
+ * and carry a CRC-32 of their contents, so an entry left half-written
+ * by a crash is never returned; it, and any stray temporary files, are
+ * removed when found. The total size of the entries is bounded: when
+ * it is exceeded, the least recently used entries are removed first.
+ * The modification time of an entry records when it was last used.</p>
+ *
+ * <p>The cache may be used from several threads: looking up and storing
+ * entries is synchronized, but signatures are generated outside the
+ * lock, so one slow file does not hold up the others. Two threads that
+ * miss on the same file both generate its signatures, and the second to
+ * finish replaces the first's entry. The cache does not guard against
+ * other processes using the same directory.</p>
+ */
+public class SignatureCache
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    private static final Logger logger = Logger.getLogger(SignatureCache.class.getName());
+
+    /**
+     * The first four bytes of an entry.
+     */
+    private static final int MAGIC = 0x4a534331; // "JSC1"
+
+    /**
+     * The suffix of entries.
+     */
+    private static final String SUFFIX = ".sig";
+
+    /**
+     * The suffix of entries being written.
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * The directory that holds the entries.
+     */
+    protected final File directory;
+
+    /**
+     * The most bytes the entries may take up.
+     */
+    protected final long maxSize;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Open a cache in a directory, which is created if it does not
+     * exist. Temporary files left by an earlier crash are removed.
+     *
+     * @param directory The directory to keep entries in.
+     * @param maxSize   The most bytes the entries may take up.
+     * @throws IOException If the directory cannot be created.
+     */
+    public SignatureCache(File directory, long maxSize) throws IOException
+    {
+        if (maxSize <= 0)
+            throw new IllegalArgumentException("cache size must be positive");
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File f : files)
+            {
+                if (f.getName().endsWith(TMP_SUFFIX))
+                    f.delete();
+            }
+        }
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Return the signatures of a file, from the cache if they are there,
+     * or else by generating them and storing them in the cache.
+     *
+     * @param file   The file.
+     * @param config The configuration to generate signatures with. If it
+     *               has a {@link BlockSizePolicy}, the block length is chosen
+     *               from the length of the file.
+     * @return The signatures.
+     * @throws IOException If the file cannot be read.
+     */
+    public SignatureTable generateSums(File file, Configuration config)
+            throws IOException
+    {
+        SignatureTable sums = get(file, config);
+        if (sums != null)
+            return sums;
+        String before = key(file, config);
+        sums = new Generator(config).generateSums(file);
+        if (before.equals(key(file, config)))
+            put(before, sums);
+        else
+            logger.log(Level.FINE, "{0} changed while being read; not cached", file);
+        return sums;
+    }
+
+    /**
+     * Return the cached signatures of a file, if there are any.
+     *
+     * @param file   The file.
+     * @param config The configuration the signatures were generated with.
+     * @return The signatures, or null if they are not in the cache.
+     * @throws IOException If the file's attributes cannot be read.
+     */
+    public synchronized SignatureTable get(File file, Configuration config)
+            throws IOException
+    {
+        String key = key(file, config);
+        File entry = entryFile(key);
+        if (!entry.exists())
+            return null;
+        SignatureTable sums = null;
+        try
+        {
+            sums = read(entry, key);
+        } catch (IOException ioe)
+        {
+            logger.log(Level.FINE, "bad cache entry " + entry, ioe);
+        } catch (RuntimeException re)
+        {
+            logger.log(Level.FINE, "bad cache entry " + entry, re);
+        }
+        if (sums == null)
+        {
+            entry.delete();
+            return null;
+        }
+        Files.setLastModifiedTime(entry.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        return sums;
+    }
+
+    /**
+     * Remove every entry from the cache.
+     */
+    public synchronized void clear()
+    {
+        for (File f : entries())
+            f.delete();
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Make the key of a file: a string of everything that, if changed,
+     * would change the file's signatures.
+     */
+    private static String key(File file, Configuration config) throws IOException
+    {
+        Path path = file.getCanonicalFile().toPath();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Configuration forFile = config.forLength(attrs.size());
+        StringBuilder key = new StringBuilder();
+        key.append(path).append('\0');
+        key.append(attrs.size()).append('\0');
+        key.append(attrs.lastModifiedTime().toMillis()).append('\0');
+        key.append(attrs.fileKey()).append('\0');
+        key.append(forFile.strongSum.getAlgorithm()).append('\0');
+        key.append(forFile.strongSumLength).append('\0');
+        key.append(forFile.blockLength).append('\0');
+        key.append(forFile.weakSum.getClass().getName()).append('\0');
+        if (forFile.weakSum instanceof Checksum32)
+            key.append(((Checksum32) forFile.weakSum).char_offset);
+        key.append('\0');
+        if (forFile.checksumSeed != null)
+            key.append(Util.toHexString(forFile.checksumSeed)).append(forFile.isSeedPrefix);
+        return key.toString();
+    }
+
+    /**
+     * The file that holds the entry for a key, named by a hash of the
+     * key.
+     */
+    private File entryFile(String key)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] hash = md.digest(key.getBytes("UTF-8"));
+            return new File(directory, Util.toHexString(hash, 0, 20) + SUFFIX);
+        } catch (NoSuchAlgorithmException nsae)
+        {
+            throw new Error(nsae);
+        } catch (java.io.UnsupportedEncodingException uee)
+        {
+            throw new Error(uee);
+        }
+    }
+
+    /**
+     * Read an entry, returning null if it is for a different key or is
+     * corrupt. The number of signatures is checked against the length of
+     * the entry before anything is allocated.
+     */
+    private static SignatureTable read(File entry, String key) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(entry)), crc));
+        try
+        {
+            if (in.readInt() != MAGIC || !key.equals(in.readUTF()))
+                return null;
+            int blockLength = in.readInt();
+            int strongLength = in.readInt();
+            long length = in.readLong();
+            if (blockLength <= 0 || strongLength <= 0 || length < 0)
+                return null;
+            long count = length / blockLength + (length % blockLength != 0 ? 1 : 0);
+            if (count > Integer.MAX_VALUE || count * (4L + strongLength) > entry.length())
+                return null;
+            SignatureTable sums = new SignatureTable(blockLength, strongLength, 0, length);
+            int n = sums.size();
+            for (int i = 0; i < n; i++)
+                sums.setWeak(i, in.readInt());
+            for (int i = 0; i < n; i += SignatureTable.SEGMENT_SIZE)
+                in.readFully(sums.strongSegment(i), 0,
+                        Math.min(SignatureTable.SEGMENT_SIZE, n - i) * strongLength);
+            long expected = crc.getValue();
+            if (in.readLong() != expected)
+                return null;
+            return sums;
+        } catch (EOFException eofe)
+        {
+            return null;
+        } finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Store an entry, then evict entries until the cache fits.
+     */
+    private synchronized void put(String key, SignatureTable sums) throws IOException
+    {
+        File entry = entryFile(key);
+        File tmp = File.createTempFile(".jarsync-", TMP_SUFFIX, directory);
+        int n = sums.size();
+        long length = n == 0 ? 0 : sums.getOffset(n - 1) + sums.getLength(n - 1);
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)), crc));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeInt(sums.getBlockLength());
+            out.writeInt(sums.getStrongLength());
+            out.writeLong(length);
+            for (int i = 0; i < n; i++)
+                out.writeInt(sums.weakAt(i));
+            for (int i = 0; i < n; i += SignatureTable.SEGMENT_SIZE)
+                out.write(sums.strongSegment(i), 0,
+                        Math.min(SignatureTable.SEGMENT_SIZE, n - i) * sums.getStrongLength());
+            out.flush();
+            out.writeLong(crc.getValue());
+        } finally
+        {
+            out.close();
+        }
+        try
+        {
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException amnse)
+        {
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally
+        {
+            tmp.delete();
+        }
+        evict();
+    }
+
+    /**
+     * Remove the least recently used entries until the cache fits.
+     */
+    private void evict()
+    {
+        File[] files = entries();
+        long total = 0;
+        final long[] used = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            total += files[i].length();
+            used[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        if (total <= maxSize)
+            return;
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                return used[a] < used[b] ? -1 : (used[a] == used[b] ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < order.length && total > maxSize; i++)
+        {
+            File f = files[order[i]];
+            long len = f.length();
+            if (f.delete())
+                total -= len;
+        }
+    }
+
+    /**
+     * List the entries.
+     */
+    private File[] entries()
+    {
+        File[] files = directory.listFiles(new java.io.FileFilter()
+        {
+            public boolean accept(File f)
+            {
+                return f.getName().endsWith(SUFFIX);
+            }
+        });
+        return files != null ? files : new File[0];
+    }
+}
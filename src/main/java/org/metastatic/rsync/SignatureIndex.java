@@ -0,0 +1,575 @@
+/* SignatureIndex: a primitive hashtable of block signatures.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An index of block signatures, used by {@link MatcherStream} to find
+ * the original offset of a block from its weak and strong sums.
+ *
+ * <p>Unlike {@link TwoKeyMap}, this class is built entirely from
+ * primitive arrays. Each signature is an <em>entry</em>, numbered in
+ * the order it was added; the weak sums, offsets and packed strong sums
+ * of the entries are kept in segments of {@link
+ * SignatureTable#SEGMENT_SIZE} entries each, as in a {@link
+ * SignatureTable}, so no single array grows with the number of
+ * entries except the hashtable. An open-addressing table, probed
+ * linearly and keyed by the full 32 bits of the weak sum, maps weak
+ * sums to entries. Lookups take the strong sum as a portion of a byte
+ * array, so a search allocates nothing.</p>
+ *
+ * <p>When a {@link SignatureTable} is added to an empty index, its
+ * segments are indexed in place rather than copied, and the offsets of
+ * its blocks are computed rather than stored; the table must not be
+ * changed while the index uses it. The sums are copied only if more
+ * entries are added afterwards.</p>
+ *
+ * <p>Entries with equal sums are all kept, and may still be reached
+ * by number, but only the one that was added first is put in the
+ * hashtable, and a lookup returns it. A file with many identical
+ * blocks, such as a disk image full of zeros, thus does not fill the
+ * table with one long cluster of duplicates.</p>
+ */
+public class SignatureIndex
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    private static final int SHIFT = SignatureTable.SHIFT;
+    private static final int SEGMENT_SIZE = SignatureTable.SEGMENT_SIZE;
+    private static final int MASK = SignatureTable.MASK;
+
+    /**
+     * The initial number of entries to make room for.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The most entries an index may hold, so that the largest hashtable,
+     * of 2<sup>30</sup> slots, is at most half full.
+     */
+    public static final int MAX_ENTRIES = 1 << 29;
+
+    /**
+     * The length of each strong sum, in bytes.
+     */
+    protected final int strongLength;
+
+    /**
+     * The weak sum of each entry, by segment.
+     */
+    protected int[][] weak;
+
+    /**
+     * The strong sums of the entries, packed together in each segment
+     * {@link #stride} bytes apart.
+     */
+    protected byte[][] strong;
+
+    /**
+     * The original offset of each entry, by segment, or null if the
+     * entries are the blocks of {@link #table}.
+     */
+    protected long[][] offsets;
+
+    /**
+     * The distance between the strong sums of adjacent entries: {@link
+     * #strongLength}, or that of {@link #table}.
+     */
+    private int stride;
+
+    /**
+     * The table indexed in place, or null if this index owns its sums.
+     */
+    private SignatureTable table;
+
+    /**
+     * The number of entries.
+     */
+    protected int size;
+
+    /**
+     * The number of entries there is room for.
+     */
+    private int capacity;
+
+    /**
+     * The hashtable. Each slot holds an entry number plus one, or zero
+     * if the slot is empty.
+     */
+    private int[] slots;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new, empty index.
+     *
+     * @param strongLength The length of the strong sums that will be
+     *                     stored, in bytes.
+     */
+    public SignatureIndex(int strongLength)
+    {
+        if (strongLength <= 0)
+            throw new IllegalArgumentException("strong sum length must be positive");
+        this.strongLength = strongLength;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Remove all entries from this index.
+     */
+    public void clear()
+    {
+        if (table != null || capacity > INITIAL_CAPACITY)
+            allocate(INITIAL_CAPACITY);
+        else
+            Arrays.fill(slots, 0);
+        size = 0;
+    }
+
+    /**
+     * Add a signature to this index.
+     *
+     * @param weakSum The weak sum.
+     * @param buf     The array holding the strong sum.
+     * @param off     The offset of the strong sum in <code>buf</code>;
+     *                {@link #getStrongLength()} bytes are read from here.
+     * @param offset  The original offset of the block.
+     * @return The number of the new entry.
+     * @throws IllegalStateException If the index holds {@link
+     *                               #MAX_ENTRIES} entries.
+     */
+    public int add(int weakSum, byte[] buf, int off, long offset)
+    {
+        if (table != null)
+            copyTable(size + 1);
+        if (size == capacity)
+        {
+            if (size == MAX_ENTRIES)
+                throw new IllegalStateException("too many signatures");
+            resize((int) Math.min(capacity * 2L, MAX_ENTRIES));
+        }
+        int entry = size++;
+        weak[entry >>> SHIFT][entry & MASK] = weakSum;
+        offsets[entry >>> SHIFT][entry & MASK] = offset;
+        System.arraycopy(buf, off, strong[entry >>> SHIFT], (entry & MASK) * stride,
+                strongLength);
+        insert(entry);
+        return entry;
+    }
+
+    /**
+     * Add a signature to this index.
+     *
+     * @param location The signature and its location.
+     * @return The number of the new entry.
+     * @throws IllegalArgumentException If the strong sum of
+     *                                  <code>location</code> is too short.
+     */
+    public int add(ChecksumLocation location)
+    {
+        ChecksumPair pair = location.getChecksumPair();
+        if (pair.getStrong().length < strongLength)
+            throw new IllegalArgumentException("strong sum too short");
+        return add(pair.getWeak(), pair.getStrong(), 0, location.getOffset());
+    }
+
+    /**
+     * Add every signature in a list to this index, in list order. A
+     * {@link SignatureTable} is read directly, without creating its
+     * elements, and is indexed in place if this index is empty.
+     *
+     * @param locations The signatures to add.
+     * @throws IllegalStateException If there would be more than {@link
+     *                               #MAX_ENTRIES} entries.
+     */
+    public void addAll(List<ChecksumLocation> locations)
+    {
+        if (locations instanceof SignatureTable)
+        {
+            SignatureTable table = (SignatureTable) locations;
+            if (table.getStrongLength() < strongLength)
+                throw new IllegalArgumentException("strong sum too short");
+            int n = table.size();
+            if (size == 0 && n > 0)
+            {
+                view(table);
+                return;
+            }
+            ensureCapacity((int) Math.min((long) size + n, Integer.MAX_VALUE));
+            for (int i = 0; i < n; i++)
+                add(table.weakAt(i), table.strongSegment(i), table.strongOffset(i),
+                        table.getOffset(i));
+            return;
+        }
+        ensureCapacity((int) Math.min((long) size + locations.size(), Integer.MAX_VALUE));
+        for (ChecksumLocation location : locations)
+            add(location);
+    }
+
+    /**
+     * Make room for at least <code>capacity</code> entries.
+     *
+     * @param capacity The number of entries to make room for.
+     * @throws IllegalStateException If <code>capacity</code> is more than
+     *                               {@link #MAX_ENTRIES}.
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity > MAX_ENTRIES)
+            throw new IllegalStateException("too many signatures");
+        if (table != null)
+            copyTable(capacity);
+        else if (capacity > this.capacity)
+            resize(capacity);
+    }
+
+    /**
+     * Test if any entry has the given weak sum.
+     *
+     * @param weakSum The weak sum.
+     * @return True if there is at least one entry with this weak sum.
+     */
+    public boolean containsWeak(int weakSum)
+    {
+        int mask = slots.length - 1;
+        for (int i = hash(weakSum) & mask; slots[i] != 0; i = (i + 1) & mask)
+        {
+            if (weakAt(slots[i] - 1) == weakSum)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Find the entry with the given weak and strong sums.
+     *
+     * @param weakSum The weak sum.
+     * @param buf     The array holding the strong sum.
+     * @param off     The offset of the strong sum in <code>buf</code>.
+     * @param len     The length of the strong sum.
+     * @return The entry number, or -1 if there is no such entry.
+     */
+    public int find(int weakSum, byte[] buf, int off, int len)
+    {
+        if (len != strongLength)
+            return -1;
+        int mask = slots.length - 1;
+        for (int i = hash(weakSum) & mask; slots[i] != 0; i = (i + 1) & mask)
+        {
+            int entry = slots[i] - 1;
+            if (weakAt(entry) == weakSum && strongEquals(entry, buf, off))
+                return entry;
+        }
+        return -1;
+    }
+
+    /**
+     * Test if an entry has the given weak and strong sums.
+     *
+     * @param entry   The entry number.
+     * @param weakSum The weak sum.
+     * @param buf     The array holding the strong sum.
+     * @param off     The offset of the strong sum in <code>buf</code>.
+     * @param len     The length of the strong sum.
+     * @return True if the entry has these sums.
+     */
+    public boolean matches(int entry, int weakSum, byte[] buf, int off, int len)
+    {
+        checkEntry(entry);
+        return len == strongLength && weakAt(entry) == weakSum
+                && strongEquals(entry, buf, off);
+    }
+
+    /**
+     * Get the original offset of the block with the given weak and
+     * strong sums.
+     *
+     * @param weakSum The weak sum.
+     * @param buf     The array holding the strong sum.
+     * @param off     The offset of the strong sum in <code>buf</code>.
+     * @param len     The length of the strong sum.
+     * @return The original offset, or -1 if there is no such block.
+     */
+    public long get(int weakSum, byte[] buf, int off, int len)
+    {
+        int entry = find(weakSum, buf, off, len);
+        return entry < 0 ? -1 : offsetAt(entry);
+    }
+
+    /**
+     * Get the weak sum of an entry.
+     *
+     * @param entry The entry number.
+     * @return The weak sum.
+     */
+    public int getWeak(int entry)
+    {
+        checkEntry(entry);
+        return weakAt(entry);
+    }
+
+    /**
+     * Get the original offset of an entry.
+     *
+     * @param entry The entry number.
+     * @return The offset.
+     */
+    public long getOffset(int entry)
+    {
+        checkEntry(entry);
+        return offsetAt(entry);
+    }
+
+    /**
+     * Get the length of the strong sums in this index.
+     *
+     * @return The strong sum length, in bytes.
+     */
+    public int getStrongLength()
+    {
+        return strongLength;
+    }
+
+    /**
+     * Return the number of entries.
+     *
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Test if this index is empty.
+     *
+     * @return True if there are no entries.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    private int weakAt(int entry)
+    {
+        return weak[entry >>> SHIFT][entry & MASK];
+    }
+
+    private long offsetAt(int entry)
+    {
+        if (offsets == null)
+            return table.getOffset(entry);
+        return offsets[entry >>> SHIFT][entry & MASK];
+    }
+
+    /**
+     * Compare the strong sum of an entry to a portion of a byte array.
+     */
+    private boolean strongEquals(int entry, byte[] buf, int off)
+    {
+        byte[] segment = strong[entry >>> SHIFT];
+        int base = (entry & MASK) * stride;
+        for (int i = 0; i < strongLength; i++)
+        {
+            if (segment[base + i] != buf[off + i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Spread the bits of a weak sum, since its low bits alone are
+     * poorly distributed.
+     */
+    private static int hash(int weakSum)
+    {
+        int h = weakSum * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Put an entry in the hashtable, unless an entry with the same sums
+     * is already there.
+     */
+    private void insert(int entry)
+    {
+        int mask = slots.length - 1;
+        int w = weakAt(entry);
+        byte[] segment = strong[entry >>> SHIFT];
+        int off = (entry & MASK) * stride;
+        int i = hash(w) & mask;
+        for (; slots[i] != 0; i = (i + 1) & mask)
+        {
+            int other = slots[i] - 1;
+            if (weakAt(other) == w && strongEquals(other, segment, off))
+                return;
+        }
+        slots[i] = entry + 1;
+    }
+
+    private void checkEntry(int entry)
+    {
+        if (entry < 0 || entry >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(entry));
+    }
+
+    /**
+     * Index the blocks of a table in place. This index is empty.
+     */
+    private void view(SignatureTable table)
+    {
+        int n = table.size();
+        if (n > MAX_ENTRIES)
+            throw new IllegalStateException("too many signatures");
+        this.table = table;
+        weak = table.weakSegments();
+        strong = table.strongSegments();
+        offsets = null;
+        stride = table.getStrongLength();
+        size = capacity = n;
+        slots = new int[tableSize(n)];
+        for (int i = 0; i < n; i++)
+            insert(i);
+    }
+
+    /**
+     * Copy the sums of the table indexed in place into storage of this
+     * index's own, with room for at least <code>capacity</code> entries.
+     * The entries keep their numbers, so the hashtable is kept too,
+     * unless it must grow.
+     */
+    private void copyTable(int capacity)
+    {
+        SignatureTable from = table;
+        int[][] fromWeak = weak;
+        byte[][] fromStrong = strong;
+        int fromStride = stride;
+        int n = size;
+        int[] keep = slots;
+        table = null;
+        allocate(Math.max(capacity, n));
+        for (int i = 0; i < n; i++)
+        {
+            weak[i >>> SHIFT][i & MASK] = fromWeak[i >>> SHIFT][i & MASK];
+            offsets[i >>> SHIFT][i & MASK] = from.getOffset(i);
+            System.arraycopy(fromStrong[i >>> SHIFT], (i & MASK) * fromStride,
+                    strong[i >>> SHIFT], (i & MASK) * stride, strongLength);
+        }
+        size = n;
+        if (slots.length == keep.length)
+            slots = keep;
+        else
+        {
+            for (int i = 0; i < n; i++)
+                insert(i);
+        }
+    }
+
+    /**
+     * Allocate empty storage for <code>capacity</code> entries of this
+     * index's own.
+     */
+    private void allocate(int capacity)
+    {
+        table = null;
+        weak = new int[0][];
+        strong = new byte[0][];
+        offsets = new long[0][];
+        stride = strongLength;
+        this.capacity = 0;
+        grow(capacity);
+        slots = new int[tableSize(this.capacity)];
+    }
+
+    /**
+     * Reallocate storage for <code>capacity</code> entries, keeping the
+     * current entries.
+     */
+    private void resize(int capacity)
+    {
+        grow(capacity);
+        slots = new int[tableSize(this.capacity)];
+        for (int i = 0; i < size; i++)
+            insert(i);
+    }
+
+    /**
+     * Add segments until there is room for <code>capacity</code>
+     * entries. Segments before the last are full; the first grows by
+     * doubling until it is, so that small indices stay small.
+     */
+    private void grow(int capacity)
+    {
+        int segments = ((capacity - 1) >>> SHIFT) + 1;
+        if (segments > weak.length)
+        {
+            weak = Arrays.copyOf(weak, segments);
+            strong = Arrays.copyOf(strong, segments);
+            offsets = Arrays.copyOf(offsets, segments);
+        }
+        for (int k = this.capacity >>> SHIFT; k < segments; k++)
+        {
+            int length = k < segments - 1 ? SEGMENT_SIZE
+                    : Math.max(capacity - (k << SHIFT),
+                    Math.min(SEGMENT_SIZE, 2 * (weak[k] != null ? weak[k].length : 0)));
+            if (weak[k] == null)
+            {
+                weak[k] = new int[length];
+                strong[k] = new byte[length * strongLength];
+                offsets[k] = new long[length];
+            } else if (weak[k].length < length)
+            {
+                weak[k] = Arrays.copyOf(weak[k], length);
+                strong[k] = Arrays.copyOf(strong[k], length * strongLength);
+                offsets[k] = Arrays.copyOf(offsets[k], length);
+            }
+        }
+        this.capacity = Math.max(this.capacity,
+                ((segments - 1) << SHIFT) + weak[segments - 1].length);
+    }
+
+    /**
+     * The smallest power of two that keeps the table at most half full.
+     * There are at most {@link #MAX_ENTRIES} entries, so this is at most
+     * 2<sup>30</sup>.
+     */
+    private static int tableSize(int capacity)
+    {
+        long n = 1;
+        while (n < capacity * 2L)
+            n <<= 1;
+        return (int) n;
+    }
+}
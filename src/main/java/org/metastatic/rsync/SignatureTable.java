@@ -0,0 +1,452 @@
+/* SignatureTable: a packed list of block signatures.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A list of the signatures of consecutive blocks, packed into primitive
+ * arrays. The weak sums are kept in <code>int[]</code> segments and the
+ * strong sums, truncated to a fixed length, one after another in
+ * <code>byte[]</code> segments of {@link #SEGMENT_SIZE} signatures each,
+ * so that a table is not limited by the largest array that can be
+ * allocated; the offset of each block is implied by its index,
+ * and only the last block may be shorter than the block length. A
+ * signature thus costs four bytes plus the length of its strong sum,
+ * rather than the several objects of a {@link ChecksumLocation}.
+ *
+ * <p>As a {@link java.util.List}, this table may be used anywhere a list
+ * of checksum locations is expected. Its elements are created as they
+ * are read, so {@link #getWeak(int)}, {@link #getOffset(int)} and the
+ * like are preferred where they suffice. The {@link Generator} returns
+ * its sums in this form, and a table may be registered as a listener of
+ * a {@link GeneratorStream} to collect that generator's sums.</p>
+ */
+public class SignatureTable extends AbstractList<ChecksumLocation>
+        implements RandomAccess, GeneratorListener
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The initial number of signatures to make room for.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The base two logarithm of {@link #SEGMENT_SIZE}.
+     */
+    static final int SHIFT = 16;
+
+    /**
+     * The number of signatures in each full segment.
+     */
+    static final int SEGMENT_SIZE = 1 << SHIFT;
+
+    /**
+     * The mask of a signature's index within its segment.
+     */
+    static final int MASK = SEGMENT_SIZE - 1;
+
+    /**
+     * The block length.
+     */
+    protected final int blockLength;
+
+    /**
+     * The length of each strong sum, in bytes.
+     */
+    protected final int strongLength;
+
+    /**
+     * The offset of the first block.
+     */
+    protected final long baseOffset;
+
+    /**
+     * The weak sums, by segment.
+     */
+    private int[][] weak;
+
+    /**
+     * The strong sums, packed together, by segment.
+     */
+    private byte[][] strong;
+
+    /**
+     * The number of signatures there is room for.
+     */
+    private int capacity;
+
+    /**
+     * The number of signatures.
+     */
+    protected int size;
+
+    /**
+     * The length of the last block.
+     */
+    protected int lastLength;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new, empty table, whose first block is at offset zero.
+     *
+     * @param blockLength  The block length.
+     * @param strongLength The length of the strong sums to keep.
+     */
+    public SignatureTable(int blockLength, int strongLength)
+    {
+        this(blockLength, strongLength, 0L);
+    }
+
+    /**
+     * Create a new, empty table.
+     *
+     * @param blockLength  The block length.
+     * @param strongLength The length of the strong sums to keep.
+     * @param baseOffset   The offset of the first block.
+     */
+    public SignatureTable(int blockLength, int strongLength, long baseOffset)
+    {
+        if (blockLength <= 0)
+            throw new IllegalArgumentException("block length must be positive");
+        if (strongLength <= 0)
+            throw new IllegalArgumentException("strong sum length must be positive");
+        this.blockLength = blockLength;
+        this.strongLength = strongLength;
+        this.baseOffset = baseOffset;
+        weak = new int[1][];
+        strong = new byte[1][];
+        ensureCapacity(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create a table with room for the signatures of <code>length</code>
+     * bytes, all zero, to be filled in with {@link #set(int, int,
+     * byte[], int)}.
+     */
+    SignatureTable(int blockLength, int strongLength, long baseOffset, long length)
+    {
+        this(blockLength, strongLength, baseOffset);
+        long count = (length + blockLength - 1) / blockLength;
+        if (count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("too many blocks: " + count);
+        ensureCapacity((int) count);
+        size = (int) count;
+        lastLength = (int) (length - (count - 1) * blockLength);
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Append the signature of the next block.
+     *
+     * @param weakSum The weak sum.
+     * @param buf     The array holding the strong sum.
+     * @param off     The offset of the strong sum in <code>buf</code>;
+     *                {@link #getStrongLength()} bytes are read from here.
+     * @param length  The length of the block, which may only be less
+     *                than the block length for the last block.
+     * @throws IllegalArgumentException If <code>length</code> is not
+     *                                  positive or is more than the block length.
+     * @throws IllegalStateException    If the last block is already shorter
+     *                                  than the block length.
+     */
+    public void add(int weakSum, byte[] buf, int off, int length)
+    {
+        if (length <= 0 || length > blockLength)
+            throw new IllegalArgumentException("bad block length: " + length);
+        if (size > 0 && lastLength < blockLength)
+            throw new IllegalStateException("the last block has been added");
+        if (size == Integer.MAX_VALUE)
+            throw new IllegalStateException("too many signatures");
+        if (size == capacity)
+            ensureCapacity(size + 1);
+        set(size, weakSum, buf, off);
+        size++;
+        lastLength = length;
+        modCount++;
+    }
+
+    /**
+     * Append a signature, which must be that of the block following the
+     * last one in this table. A location with a length of zero, meaning
+     * unknown, is taken to cover a whole block.
+     *
+     * @param location The signature and its location.
+     * @return True.
+     * @throws IllegalArgumentException If the location is not that of
+     *                                  the next block, or its strong sum is too short.
+     */
+    public boolean add(ChecksumLocation location)
+    {
+        if (location.getOffset() != getOffset(size))
+            throw new IllegalArgumentException("expected offset " + getOffset(size)
+                    + ", not " + location.getOffset());
+        ChecksumPair pair = location.getChecksumPair();
+        if (pair.getStrong().length < strongLength)
+            throw new IllegalArgumentException("strong sum too short");
+        int length = location.getLength() > 0 ? location.getLength() : blockLength;
+        add(pair.getWeak(), pair.getStrong(), 0, length);
+        return true;
+    }
+
+    /**
+     * Append the signature in a generator event.
+     *
+     * @param event The event.
+     * @see #add(ChecksumLocation)
+     */
+    public void update(GeneratorEvent event)
+    {
+        add(event.getChecksumLocation());
+    }
+
+    /**
+     * Get a signature. The location returned is a new object, holding a
+     * copy of the strong sum.
+     *
+     * @param index The signature's index.
+     * @return The signature and its location.
+     */
+    public ChecksumLocation get(int index)
+    {
+        checkIndex(index);
+        return new ChecksumLocation(new ChecksumPair(weakAt(index),
+                strongSegment(index), strongOffset(index), strongLength), getOffset(index),
+                getLength(index), index);
+    }
+
+    /**
+     * Return the number of signatures.
+     *
+     * @return The number of signatures.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Remove all signatures.
+     */
+    public void clear()
+    {
+        size = 0;
+        lastLength = 0;
+        modCount++;
+    }
+
+    /**
+     * Get the weak sum of a block.
+     *
+     * @param index The block's index.
+     * @return The weak sum.
+     */
+    public int getWeak(int index)
+    {
+        checkIndex(index);
+        return weakAt(index);
+    }
+
+    /**
+     * Get a copy of the strong sum of a block.
+     *
+     * @param index The block's index.
+     * @return The strong sum.
+     */
+    public byte[] getStrong(int index)
+    {
+        checkIndex(index);
+        int off = strongOffset(index);
+        return Arrays.copyOfRange(strongSegment(index), off, off + strongLength);
+    }
+
+    /**
+     * Get the offset of a block.
+     *
+     * @param index The block's index.
+     * @return The offset.
+     */
+    public long getOffset(int index)
+    {
+        return baseOffset + (long) index * blockLength;
+    }
+
+    /**
+     * Get the length of a block.
+     *
+     * @param index The block's index.
+     * @return The length.
+     */
+    public int getLength(int index)
+    {
+        checkIndex(index);
+        return index == size - 1 ? lastLength : blockLength;
+    }
+
+    /**
+     * Get the block length.
+     *
+     * @return The block length.
+     */
+    public int getBlockLength()
+    {
+        return blockLength;
+    }
+
+    /**
+     * Get the length of the strong sums in this table.
+     *
+     * @return The strong sum length, in bytes.
+     */
+    public int getStrongLength()
+    {
+        return strongLength;
+    }
+
+    /**
+     * Get the offset of the first block.
+     *
+     * @return The base offset.
+     */
+    public long getBaseOffset()
+    {
+        return baseOffset;
+    }
+
+    /**
+     * Make room for at least <code>capacity</code> signatures.
+     *
+     * @param capacity The number of signatures to make room for.
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity <= this.capacity)
+            return;
+        int segments = ((capacity - 1) >>> SHIFT) + 1;
+        if (segments > weak.length)
+        {
+            weak = Arrays.copyOf(weak, segments);
+            strong = Arrays.copyOf(strong, segments);
+        }
+        // Segments before the last are full; the first grows by doubling
+        // until it is, so that small tables stay small.
+        for (int k = this.capacity >>> SHIFT; k < segments; k++)
+        {
+            int length = k < segments - 1 ? SEGMENT_SIZE
+                    : Math.max(capacity - (k << SHIFT),
+                    Math.min(SEGMENT_SIZE, 2 * (weak[k] != null ? weak[k].length : 0)));
+            if (weak[k] == null)
+            {
+                weak[k] = new int[length];
+                strong[k] = new byte[length * strongLength];
+            } else if (weak[k].length < length)
+            {
+                weak[k] = Arrays.copyOf(weak[k], length);
+                strong[k] = Arrays.copyOf(strong[k], length * strongLength);
+            }
+        }
+        this.capacity = ((segments - 1) << SHIFT) + weak[segments - 1].length;
+    }
+
+    /**
+     * Set the sums of a block in a table made with a fixed length.
+     * Different threads may set different blocks.
+     */
+    void set(int index, int weakSum, byte[] buf, int off)
+    {
+        weak[index >>> SHIFT][index & MASK] = weakSum;
+        System.arraycopy(buf, off, strong[index >>> SHIFT], (index & MASK) * strongLength,
+                strongLength);
+    }
+
+    /**
+     * Set the weak sum of a block in a table made with a fixed length.
+     */
+    void setWeak(int index, int weakSum)
+    {
+        weak[index >>> SHIFT][index & MASK] = weakSum;
+    }
+
+    /**
+     * Get the weak sum of a block, without checking the index.
+     */
+    int weakAt(int index)
+    {
+        return weak[index >>> SHIFT][index & MASK];
+    }
+
+    /**
+     * Get the segment holding the strong sum of a block. The sums of the
+     * blocks of a segment are contiguous in it, so the segment of the
+     * first of them holds them all.
+     */
+    byte[] strongSegment(int index)
+    {
+        return strong[index >>> SHIFT];
+    }
+
+    /**
+     * Get the weak sum segments, for reading in place. Segment
+     * <i>k</i> holds the sums of blocks <i>k</i> &lt;&lt; {@link #SHIFT}
+     * onward.
+     */
+    int[][] weakSegments()
+    {
+        return weak;
+    }
+
+    /**
+     * Get the strong sum segments, for reading in place.
+     */
+    byte[][] strongSegments()
+    {
+        return strong;
+    }
+
+    /**
+     * Get the offset of the strong sum of a block in its segment.
+     */
+    int strongOffset(int index)
+    {
+        return (index & MASK) * strongLength;
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+    }
+}
@@ -0,0 +1,192 @@
+/* SigningRebuilderListener: sign a file while it is rebuilt.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A {@link RebuilderListener} that generates the signatures of the file
+ * being rebuilt from the data written to it, so that the file need not
+ * be read again to be signed for the next sync. It can also compute a
+ * digest of the whole file in the same pass.
+ *
+ * <p>The data is run through a {@link GeneratorStream} in order of
+ * offset. Data that arrives ahead of a gap is held until the gap is
+ * filled, so deltas applied in any order give the same result, but the
+ * memory used is least when they are applied in order, as {@link
+ * Rebuilder} does. Once the last delta has been applied, call {@link
+ * #doFinal()}; the signatures are then available from {@link
+ * #getSignatures()}, or may be received as they are made by adding a
+ * {@link GeneratorListener}.</p>
+ */
+public class SigningRebuilderListener implements RebuilderListener
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The generator the rebuilt data is fed to.
+     */
+    protected final GeneratorStream generator;
+
+    /**
+     * The signatures generated.
+     */
+    protected final SignatureTable signatures;
+
+    /**
+     * The digest of the whole file, or null.
+     */
+    protected final MessageDigest fileDigest;
+
+    /**
+     * Data received ahead of {@link #next}, by offset.
+     */
+    protected final TreeMap<Long, byte[]> pending;
+
+    /**
+     * The offset of the next byte to sign.
+     */
+    protected long next;
+
+    /**
+     * The file digest, once computed.
+     */
+    private byte[] digest;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new signing listener.
+     *
+     * @param config     The configuration to generate signatures with.
+     * @param fileDigest The digest to compute over the whole file, or
+     *                   null for none.
+     */
+    public SigningRebuilderListener(Configuration config, MessageDigest fileDigest)
+    {
+        generator = new GeneratorStream(config);
+        signatures = new SignatureTable(config.blockLength, config.strongSumLength);
+        generator.addListener(signatures);
+        this.fileDigest = fileDigest;
+        if (fileDigest != null)
+            fileDigest.reset();
+        pending = new TreeMap<Long, byte[]>();
+        next = 0;
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Add a listener that is sent each signature as it is generated.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(GeneratorListener listener)
+    {
+        generator.addListener(listener);
+    }
+
+    /**
+     * Sign the data in a rebuilder event.
+     *
+     * @param event The event.
+     * @throws ListenerException If a generator listener throws an
+     *                           exception, or if this data overlaps data already received.
+     */
+    public void update(RebuilderEvent event) throws ListenerException
+    {
+        byte[] data = event.getData();
+        long offset = event.getOffset();
+        if (offset < next || pending.containsKey(offset))
+            throw new ListenerException("data at offset " + offset + " received twice");
+        if (offset > next)
+        {
+            pending.put(offset, data);
+            return;
+        }
+        sign(data);
+        Map.Entry<Long, byte[]> e;
+        while ((e = pending.firstEntry()) != null && e.getKey() <= next)
+        {
+            pending.remove(e.getKey());
+            if (e.getKey() < next)
+                throw new ListenerException("data at offset " + e.getKey() + " received twice");
+            sign(e.getValue());
+        }
+    }
+
+    /**
+     * Finish signing, after the last delta has been applied.
+     *
+     * @throws ListenerException If a generator listener throws an
+     *                           exception, or if there is a gap in the data received.
+     */
+    public void doFinal() throws ListenerException
+    {
+        if (!pending.isEmpty())
+            throw new ListenerException("no data received for offset " + next);
+        generator.doFinal();
+        if (fileDigest != null)
+            digest = fileDigest.digest();
+    }
+
+    /**
+     * Return the signatures of the rebuilt file. This is only complete
+     * after {@link #doFinal()} has been called.
+     *
+     * @return The signatures.
+     */
+    public SignatureTable getSignatures()
+    {
+        return signatures;
+    }
+
+    /**
+     * Return the digest of the whole rebuilt file.
+     *
+     * @return The digest, or null if there is no file digest or {@link
+     * #doFinal()} has not been called.
+     */
+    public byte[] getFileDigest()
+    {
+        return digest != null ? digest.clone() : null;
+    }
+
+    // Own methods.
+    // -------------------------------------------------------------------------
+
+    private void sign(byte[] data) throws ListenerException
+    {
+        generator.update(data);
+        if (fileDigest != null)
+            fileDigest.update(data);
+        next += data.length;
+    }
+}
@@ -0,0 +1,121 @@
+/* TagTable: a bit-set prefilter of weak checksums.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+import java.util.Arrays;
+
+/**
+ * The "tag table" of the rsync algorithm: a bit set, indexed by a hash
+ * of the full 32-bit weak sum, with a bit set for every weak sum being
+ * searched for. Testing a bit takes a multiply, a shift and a load, so
+ * most window positions that match nothing can be rejected before the
+ * {@link SignatureIndex} is consulted.
+ *
+ * <p>A clear bit means the weak sum is certainly absent; a set bit
+ * means it is probably present. The table is sized at sixteen bits per
+ * weak sum, which keeps the rate of false positives near one in
+ * sixteen.</p>
+ */
+public class TagTable
+{
+
+    // Constants and fields.
+    // -------------------------------------------------------------------------
+
+    /**
+     * The smallest table, in bits, as a power of two.
+     */
+    private static final int MIN_BITS_LOG = 16;
+
+    /**
+     * The largest table, in bits, as a power of two (128 megabytes).
+     */
+    private static final int MAX_BITS_LOG = 30;
+
+    /**
+     * The bits.
+     */
+    private long[] bits;
+
+    /**
+     * How far to shift a hash to get a bit index.
+     */
+    private int shift;
+
+    // Constructors.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Create a new, empty tag table of the smallest size.
+     */
+    public TagTable()
+    {
+        clear(0);
+    }
+
+    // Instance methods.
+    // -------------------------------------------------------------------------
+
+    /**
+     * Clear all bits, and resize this table for the given number of
+     * weak sums.
+     *
+     * @param expected The number of weak sums that will be added.
+     */
+    public void clear(int expected)
+    {
+        int log = MIN_BITS_LOG;
+        while (log < MAX_BITS_LOG && (1L << log) < 16L * expected)
+            log++;
+        if (bits != null && bits.length == (1 << (log - 6)))
+            Arrays.fill(bits, 0L);
+        else
+            bits = new long[1 << (log - 6)];
+        shift = 32 - log;
+    }
+
+    /**
+     * Set the bit for a weak sum.
+     *
+     * @param weakSum The weak sum.
+     */
+    public void add(int weakSum)
+    {
+        int i = (weakSum * 0x85ebca6b) >>> shift;
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * Test the bit for a weak sum.
+     *
+     * @param weakSum The weak sum.
+     * @return False if no weak sum like this has been added; true if
+     * one may have been.
+     */
+    public boolean mightContain(int weakSum)
+    {
+        int i = (weakSum * 0x85ebca6b) >>> shift;
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+}
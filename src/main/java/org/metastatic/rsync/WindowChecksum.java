@@ -0,0 +1,104 @@
+/* WindowChecksum: rolling checksums summed in place.
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.  */
+
+
+package org.metastatic.rsync;
+
+/**
+ * A {@link RollingChecksum} that can sum a window straight from the
+ * caller's buffer, without copying it. The caller, which still holds the
+ * window, supplies the byte that leaves it each time the checksum is
+ * rolled. {@link Generator}, {@link GeneratorStream} and {@link
+ * MatcherStream} use these methods when the configured weak sum has
+ * them, and {@link RollingChecksum#check(byte[], int, int)} and {@link
+ * RollingChecksum#roll(byte)} otherwise.
+ *
+ * @see Checksum32
+ */
+public interface WindowChecksum extends RollingChecksum
+{
+
+    // Methods.
+    // -----------------------------------------------------------------------
+
+    /**
+     * Update the checksum with a single byte, with the caller supplying
+     * the byte that leaves the window. No internal copy of the window is
+     * consulted.
+     *
+     * @param out The byte leaving the window.
+     * @param in  The byte entering the window.
+     */
+    void roll(byte out, byte in);
+
+    /**
+     * Replaces the current internal state with entirely new data,
+     * reading it in place from <code>buf</code> without keeping a copy.
+     * Afterwards the checksum may only be rolled with {@link
+     * #roll(byte, byte)}, the caller supplying the outgoing byte from its
+     * own buffer.
+     *
+     * @param buf    The bytes to checksum.
+     * @param offset The offset into <code>buf</code> to start reading.
+     * @param length The number of bytes to update.
+     */
+    void checkNoCopy(byte[] buf, int offset, int length);
+
+    /**
+     * Computes the checksum of every window of <code>blockLength</code>
+     * bytes in a region of a byte array, in one pass. The sum of the
+     * window beginning at <code>offset + i</code> is stored in
+     * <code>sums[i]</code>, for each of the <code>length - blockLength +
+     * 1</code> window positions.
+     *
+     * <p>This is equivalent to calling {@link #checkNoCopy(byte[], int,
+     * int)} on the first window, then {@link #roll(byte, byte)} for each
+     * following byte and storing {@link #getValue()} after each step.
+     * When this method returns, the internal state is that of the last
+     * window, so rolling may continue from there.
+     *
+     * @param buf         The bytes to checksum.
+     * @param offset      The offset into <code>buf</code> to start reading.
+     * @param length      The number of bytes to scan; at least
+     *                    <code>blockLength</code>.
+     * @param blockLength The window size.
+     * @param sums        The array that receives one sum per window.
+     */
+    void checkWindows(byte[] buf, int offset, int length, int blockLength, int[] sums);
+
+    /**
+     * Rolls the checksum over <code>length</code> more bytes, storing
+     * the sum after each step in <code>sums</code>. The current window
+     * must be the <code>blockLength</code> bytes of <code>buf</code> just
+     * before <code>offset</code>, as left by {@link #checkWindows(byte[],
+     * int, int, int, int[])} or the other methods of this interface, so
+     * that the outgoing bytes can be read from <code>buf</code>. This is
+     * equivalent to calling {@link #roll(byte, byte)} for each byte.
+     *
+     * @param buf    The bytes to checksum.
+     * @param offset The offset into <code>buf</code> of the first byte
+     *               to roll in.
+     * @param length The number of bytes to roll in.
+     * @param sums   The array that receives one sum per byte.
+     */
+    void rollWindows(byte[] buf, int offset, int length, int[] sums);
+}
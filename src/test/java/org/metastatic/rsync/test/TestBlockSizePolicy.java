@@ -0,0 +1,82 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.BlockSizePolicy;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.SignatureTable;
+
+public class TestBlockSizePolicy
+{
+    @Test
+    public void testSquareRoot()
+    {
+        BlockSizePolicy policy = new BlockSizePolicy.SquareRoot();
+        Assert.assertEquals(700, policy.blockLength(0));
+        Assert.assertEquals(700, policy.blockLength(700 * 700));
+        Assert.assertEquals(1000, policy.blockLength(1000 * 1000));
+        Assert.assertEquals(31616, policy.blockLength(1000000000L));
+        Assert.assertEquals(131072, policy.blockLength(100L << 30));
+        for (long len = 1L << 20; len < 1L << 40; len = len * 3 + 1)
+        {
+            int blockLength = policy.blockLength(len);
+            Assert.assertEquals(0, blockLength % 8);
+            Assert.assertTrue((long) blockLength * blockLength <= len);
+            Assert.assertTrue(blockLength == 131072
+                    || (long) (blockLength + 8) * (blockLength + 8) > len);
+        }
+    }
+
+    @Test
+    public void testGenerator() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5"))
+                .blockSizePolicy(new BlockSizePolicy.SquareRoot()).build();
+        Assert.assertSame(config, config.forLength(1000));
+        Configuration forFile = config.forLength(4000000);
+        Assert.assertEquals(2000, forFile.blockLength);
+        Assert.assertTrue(forFile.chunkSize >= 4 * forFile.blockLength);
+
+        File f = File.createTempFile("jarsync", ".test");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(new byte[4000000]);
+            out.close();
+            SignatureTable sums = new Generator(config).generateSums(f);
+            Assert.assertEquals(2000, sums.getBlockLength());
+            Assert.assertEquals(2000, sums.size());
+        } finally
+        {
+            f.delete();
+        }
+    }
+}
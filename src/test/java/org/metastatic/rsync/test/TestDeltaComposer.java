@@ -0,0 +1,120 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.DeltaComposer;
+import org.metastatic.rsync.DeltaList;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.Offsets;
+import org.metastatic.rsync.Rebuilder;
+
+public class TestDeltaComposer
+{
+    @Test
+    public void testComposeChain() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        List<byte[]> versions = new ArrayList<byte[]>();
+        byte[] version = new byte[50000];
+        r.nextBytes(version);
+        versions.add(version);
+        for (int i = 0; i < 4; i++)
+        {
+            version = edit(version, r);
+            versions.add(version);
+        }
+
+        Matcher matcher = new Matcher(config);
+        Generator generator = new Generator(config);
+        List<List<Delta>> chain = new ArrayList<List<Delta>>();
+        for (int i = 1; i < versions.size(); i++)
+            chain.add(matcher.hashSearch(generator.generateSums(versions.get(i - 1)),
+                    versions.get(i)));
+
+        byte[] first = versions.get(0);
+        DeltaList composed = DeltaComposer.compose(chain.get(0), chain.get(1));
+        Assert.assertArrayEquals(versions.get(2), Rebuilder.rebuild(first, composed));
+        composed = DeltaComposer.compose(chain);
+        Assert.assertArrayEquals(versions.get(versions.size() - 1),
+                Rebuilder.rebuild(first, composed));
+        Assert.assertTrue(composed.size() < chain.get(0).size() + chain.get(1).size()
+                + chain.get(2).size() + chain.get(3).size());
+    }
+
+    @Test
+    public void testLiteralPieces() throws Exception
+    {
+        byte[] a = "abcdefgh".getBytes("US-ASCII");
+        List<Delta> ab = new ArrayList<Delta>();
+        ab.add(new Offsets(0, 0, 4));
+        ab.add(new DataBlock(4, "WXYZ".getBytes("US-ASCII")));
+        List<Delta> bc = new ArrayList<Delta>();
+        bc.add(new Offsets(2, 0, 4));
+        bc.add(new DataBlock(4, "!".getBytes("US-ASCII")));
+
+        DeltaList ac = DeltaComposer.compose(ab, bc);
+        Assert.assertEquals(2, ac.size());
+        Assert.assertEquals(new Offsets(2, 0, 2), ac.get(0));
+        Assert.assertEquals(new DataBlock(2, "WX!".getBytes("US-ASCII")), ac.get(1));
+        Assert.assertArrayEquals("cdWX!".getBytes("US-ASCII"), Rebuilder.rebuild(a, ac));
+
+        bc.add(new Offsets(6, 5, 4));
+        try
+        {
+            DeltaComposer.compose(ab, bc);
+            Assert.fail("composed a copy past the end of the intermediate data");
+        } catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    /**
+     * Make a new version by moving, inserting and changing some data.
+     */
+    private static byte[] edit(byte[] text, Random r)
+    {
+        byte[] insert = new byte[1 + r.nextInt(3000)];
+        r.nextBytes(insert);
+        int at = r.nextInt(text.length);
+        byte[] result = new byte[text.length + insert.length];
+        System.arraycopy(text, at, result, 0, text.length - at);
+        System.arraycopy(insert, 0, result, text.length - at, insert.length);
+        System.arraycopy(text, 0, result, text.length - at + insert.length, at);
+        for (int i = 0; i < 3; i++)
+            result[r.nextInt(result.length)] ^= 0x55;
+        return result;
+    }
+}
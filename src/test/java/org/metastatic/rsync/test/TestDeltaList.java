@@ -0,0 +1,152 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.DeltaList;
+import org.metastatic.rsync.DeltaOptimizer;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.Offsets;
+import org.metastatic.rsync.Rdiff;
+import org.metastatic.rsync.Rebuilder;
+
+public class TestDeltaList
+{
+    @Test
+    public void testAddAndGet()
+    {
+        DeltaList list = new DeltaList();
+        byte[] data = {1, 2, 3, 4, 5};
+        list.addCopy(100, 0, 700);
+        list.addLiteral(data, 1, 3, 700);
+        list.add(new Offsets(0, 703, 10));
+        list.add(new DataBlock(713, data));
+
+        Assert.assertEquals(4, list.size());
+        Assert.assertEquals(new Offsets(100, 0, 700), list.get(0));
+        Assert.assertEquals(new DataBlock(700, new byte[]{2, 3, 4}), list.get(1));
+        Assert.assertEquals(new Offsets(0, 703, 10), list.get(2));
+        Assert.assertEquals(new DataBlock(713, data), list.get(3));
+        Assert.assertTrue(list.isCopy(0));
+        Assert.assertFalse(list.isCopy(1));
+        Assert.assertEquals(8, list.getLiteralLength());
+        Assert.assertEquals(list, new ArrayList<Delta>(list));
+        Assert.assertEquals(list, new DeltaList(new ArrayList<Delta>(list)));
+    }
+
+    @Test
+    public void testSortAndRebuild() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[100000];
+        r.nextBytes(text1);
+        byte[] text2 = new byte[120000];
+        System.arraycopy(text1, 50000, text2, 0, 50000);
+        r.nextBytes(text2);
+        System.arraycopy(text1, 0, text2, 70000, 50000);
+        DeltaList deltas = new Matcher(config).hashSearch(new Generator(config).generateSums(text1), text2);
+        Assert.assertTrue(deltas.isSortedByWriteOffset());
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, deltas));
+
+        List<Delta> shuffled = new ArrayList<Delta>(deltas);
+        Collections.shuffle(shuffled, r);
+        DeltaList list = new DeltaList(shuffled);
+        Assert.assertFalse(list.isSortedByWriteOffset());
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, list));
+        list.sortByWriteOffset();
+        Assert.assertEquals(deltas, list);
+    }
+
+    @Test
+    public void testRdiffDeltas() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[50000];
+        r.nextBytes(text1);
+        byte[] text2 = text1.clone();
+        for (int i = 0; i < 5; i++)
+            text2[r.nextInt(text2.length)] ^= 0x55;
+        DeltaList deltas = new Matcher(config).hashSearch(new Generator(config).generateSums(text1), text2);
+
+        Rdiff rdiff = new Rdiff();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rdiff.writeDeltas(deltas, out);
+        DeltaList read = rdiff.readDeltas(new ByteArrayInputStream(out.toByteArray()));
+        Assert.assertEquals(deltas, read);
+    }
+
+    @Test
+    public void testManySegments()
+    {
+        Random r = new Random(31337);
+        byte[] data = new byte[5 << 20];
+        r.nextBytes(data);
+        DeltaList list = new DeltaList();
+        int off = 0;
+        while (off < data.length)
+        {
+            int len = Math.min(1 + r.nextInt(300000), data.length - off);
+            list.addLiteral(data, off, len, off);
+            off += len;
+        }
+        // One literal longer than a segment, one after it.
+        byte[] big = new byte[3 << 20];
+        r.nextBytes(big);
+        list.addLiteral(big, 0, big.length, off);
+        list.addLiteral(data, 0, 10, off + big.length);
+        Assert.assertEquals(data.length + big.length + 10, list.getLiteralLength());
+
+        int n = list.size();
+        byte[] rebuilt = new byte[data.length + big.length + 10];
+        for (int i = 0; i < n; i++)
+            list.getLiteral(i, rebuilt, (int) list.getWriteOffset(i));
+        byte[] expect = new byte[rebuilt.length];
+        System.arraycopy(data, 0, expect, 0, data.length);
+        System.arraycopy(big, 0, expect, data.length, big.length);
+        System.arraycopy(data, 0, expect, data.length + big.length, 10);
+        Assert.assertArrayEquals(expect, rebuilt);
+        Assert.assertEquals(list, new DeltaList(list));
+
+        // Merging the adjacent literals extends them across segments.
+        DeltaList merged = new DeltaOptimizer().optimize(list);
+        Assert.assertEquals(1, merged.size());
+        Assert.assertEquals(new DataBlock(0, expect), merged.get(0));
+    }
+}
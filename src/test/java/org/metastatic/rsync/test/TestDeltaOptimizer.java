@@ -0,0 +1,165 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.DeltaList;
+import org.metastatic.rsync.DeltaOptimizer;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.MatcherStream;
+import org.metastatic.rsync.Offsets;
+import org.metastatic.rsync.Rebuilder;
+
+public class TestDeltaOptimizer
+{
+    @Test
+    public void testMergeCopies() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[100 * config.blockLength];
+        r.nextBytes(text1);
+        byte[] text2 = text1.clone();
+        text2[50 * config.blockLength + 7] ^= 0x55;
+        List<Delta> deltas = new ArrayList<Delta>(new Matcher(config).hashSearch(
+                new Generator(config).generateSums(text1), text2));
+        Collections.shuffle(deltas, r);
+
+        DeltaList optimized = new DeltaOptimizer().optimize(deltas);
+        Assert.assertEquals(3, optimized.size());
+        Assert.assertEquals(new Offsets(0, 0, 50 * config.blockLength), optimized.get(0));
+        Assert.assertFalse(optimized.isCopy(1));
+        Assert.assertEquals(new Offsets(51 * config.blockLength, 51 * config.blockLength,
+                49 * config.blockLength), optimized.get(2));
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, optimized));
+    }
+
+    @Test
+    public void testAbsorbShortCopies() throws Exception
+    {
+        byte[] text1 = "0123456789abcdefghij".getBytes("US-ASCII");
+        byte[] text2 = "xyz45678uvw".getBytes("US-ASCII");
+        List<Delta> deltas = new ArrayList<Delta>();
+        deltas.add(new DataBlock(0, "xyz".getBytes("US-ASCII")));
+        deltas.add(new Offsets(4, 3, 5));
+        deltas.add(new DataBlock(8, "uvw".getBytes("US-ASCII")));
+
+        DeltaList kept = new DeltaOptimizer().optimize(deltas);
+        Assert.assertEquals(3, kept.size());
+
+        DeltaList absorbed = new DeltaOptimizer().optimize(deltas, text2);
+        Assert.assertEquals(1, absorbed.size());
+        Assert.assertEquals(new DataBlock(0, text2), absorbed.get(0));
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, absorbed));
+
+        DeltaList longCopies = new DeltaOptimizer(4, Integer.MAX_VALUE).optimize(deltas, text2);
+        Assert.assertEquals(deltas, longCopies);
+    }
+
+    @Test
+    public void testMatcherStreamAbsorbs() throws Exception
+    {
+        Random r = new Random(31337);
+        byte[] text1 = new byte[1000];
+        r.nextBytes(text1);
+        // A literal, one short matched block, a literal, then a long run.
+        byte[] text2 = new byte[608];
+        r.nextBytes(text2);
+        System.arraycopy(text1, 0, text2, 100, 8);
+        System.arraycopy(text1, 200, text2, 208, 400);
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).blockLength(8)
+                .doRunLength(true).build();
+        MatcherStream match = new MatcherStream(config);
+        match.setChecksums(new Generator(config).generateSums(text1));
+        match.setMinCopyLength(DeltaOptimizer.MIN_COPY_LENGTH);
+        DeltaList deltas = new DeltaList();
+        match.addSink(deltas);
+        match.update(text2);
+        match.doFinal();
+
+        DeltaList optimized = new DeltaOptimizer().optimize(deltas);
+        Assert.assertEquals(2, optimized.size());
+        Assert.assertEquals(new DataBlock(0, Arrays.copyOf(text2, 208)), optimized.get(0));
+        Assert.assertEquals(new Offsets(200, 208, 400), optimized.get(1));
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, optimized));
+    }
+
+    @Test
+    public void testReadPlan() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[100000];
+        r.nextBytes(text1);
+        byte[] text2 = new byte[120000];
+        System.arraycopy(text1, 50000, text2, 0, 50000);
+        r.nextBytes(text2);
+        System.arraycopy(text1, 0, text2, 70000, 50000);
+        DeltaList plan = DeltaOptimizer.readPlan(new Matcher(config).hashSearch(
+                new Generator(config).generateSums(text1), text2));
+
+        long last = -1;
+        for (int i = 0; i < plan.size(); i++)
+        {
+            if (plan.isCopy(i))
+            {
+                Assert.assertTrue(plan.getOldOffset(i) >= last);
+                last = plan.getOldOffset(i);
+            } else
+                Assert.assertEquals(-1, last);
+        }
+
+        File oldFile = File.createTempFile("jarsync", ".old");
+        File newFile = File.createTempFile("jarsync", ".new");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(oldFile);
+            out.write(text1);
+            out.close();
+            Rebuilder.rebuildFile(oldFile, newFile, plan);
+            Assert.assertArrayEquals(text2, Files.readAllBytes(newFile.toPath()));
+        } finally
+        {
+            oldFile.delete();
+            newFile.delete();
+        }
+    }
+}
@@ -22,10 +22,20 @@ THE SOFTWARE.  */
 
 package org.metastatic.rsync.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -81,4 +91,180 @@ public class TestGenerators
         Assert.assertEquals(fromOnes, fromFives);
         Assert.assertEquals(fromFives, atOnce);
     }
+
+    @Test
+    public void testParallelGenerator() throws NoSuchAlgorithmException, IOException
+    {
+        Configuration.Builder builder = Configuration.Builder.create();
+        Configuration config = builder.strongSum(MessageDigest.getInstance("MD5")).build();
+
+        // Several tasks' worth, and not a whole number of blocks.
+        byte[] corpus = new byte[5 * 1024 * 1024 + 123];
+        new Random(31337).nextBytes(corpus);
+        List<ChecksumLocation> expected = new Generator(config).generateSums(corpus);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        ParallelGenerator generator = new ParallelGenerator(config, pool);
+        Assert.assertEquals(expected, generator.generateSums(corpus));
+        Assert.assertEquals(expected, generator.generateSums(ByteBuffer.wrap(corpus), 0));
+        Assert.assertEquals(new Generator(config).generateSums(corpus, 1000, 3000000, 5),
+                generator.generateSums(corpus, 1000, 3000000, 5));
+
+        File f = File.createTempFile("jarsync", ".test");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(corpus);
+            out.close();
+            Assert.assertEquals(expected, generator.generateSums(f));
+        } finally
+        {
+            f.delete();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFileAndStream() throws NoSuchAlgorithmException, IOException
+    {
+        Configuration.Builder builder = Configuration.Builder.create();
+        Configuration config = builder.strongSum(MessageDigest.getInstance("MD5")).build();
+        Generator generator = new Generator(config);
+
+        byte[] corpus = new byte[100000];
+        new Random(31337).nextBytes(corpus);
+        List<ChecksumLocation> expected = generator.generateSums(corpus);
+
+        // A stream that returns short reads.
+        ByteArrayInputStream in = new ByteArrayInputStream(corpus)
+        {
+            public int read(byte[] b, int off, int len)
+            {
+                return super.read(b, off, Math.min(len, 1000));
+            }
+        };
+        Assert.assertEquals(expected, generator.generateSums(in));
+        Assert.assertTrue(generator.generateSums(new ByteArrayInputStream(new byte[0])).isEmpty());
+
+        File f = File.createTempFile("jarsync", ".test");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(corpus);
+            out.close();
+            Assert.assertEquals(expected, generator.generateSums(f));
+            Assert.assertEquals(expected, generator.generateSums(f.toPath()));
+        } finally
+        {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testIterateSums() throws Exception
+    {
+        Configuration.Builder builder = Configuration.Builder.create();
+        Configuration config = builder.strongSum(MessageDigest.getInstance("MD5")).build();
+        Generator generator = new Generator(config);
+
+        byte[] corpus = new byte[100000];
+        new Random(31337).nextBytes(corpus);
+        List<ChecksumLocation> expected = new ArrayList<ChecksumLocation>(
+                generator.generateSums(corpus));
+
+        List<ChecksumLocation> iterated = new ArrayList<ChecksumLocation>();
+        Iterator<ChecksumLocation> it = generator.iterateSums(new ByteArrayInputStream(corpus));
+        while (it.hasNext())
+            iterated.add(it.next());
+        Assert.assertEquals(expected, iterated);
+        Assert.assertFalse(generator.iterateSums(new ByteArrayInputStream(new byte[0])).hasNext());
+
+        final List<ChecksumLocation> pushed = new ArrayList<ChecksumLocation>();
+        generator.generateSums(new ByteArrayInputStream(corpus), new GeneratorListener()
+        {
+            public void update(GeneratorEvent event)
+            {
+                pushed.add(event.getChecksumLocation());
+            }
+        });
+        Assert.assertEquals(expected, pushed);
+
+        InputStream broken = new InputStream()
+        {
+            public int read() throws IOException
+            {
+                throw new IOException("broken");
+            }
+        };
+        try
+        {
+            generator.iterateSums(broken).hasNext();
+            Assert.fail("no exception from a broken stream");
+        } catch (IOError expectedError)
+        {
+            Assert.assertEquals("broken", expectedError.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void testPlainRollingChecksum() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Configuration plain = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5"))
+                .weakSum(new PlainChecksum()).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[100000];
+        r.nextBytes(text1);
+        byte[] text2 = text1.clone();
+        for (int i = 0; i < 20; i++)
+            text2[r.nextInt(text2.length)] ^= 0x55;
+
+        List<ChecksumLocation> sums = new Generator(config).generateSums(text1);
+        Assert.assertEquals(sums, new Generator(plain).generateSums(text1));
+        Assert.assertEquals(new Matcher(config).hashSearch(sums, text2),
+                new Matcher(plain).hashSearch(sums, text2));
+    }
+
+    /**
+     * A rolling checksum without the in-place methods of {@link
+     * WindowChecksum}.
+     */
+    static class PlainChecksum implements RollingChecksum
+    {
+        private Checksum32 sum = new Checksum32();
+
+        public int getValue()
+        {
+            return sum.getValue();
+        }
+
+        public void reset()
+        {
+            sum.reset();
+        }
+
+        public void roll(byte bt)
+        {
+            sum.roll(bt);
+        }
+
+        public void trim()
+        {
+            sum.trim();
+        }
+
+        public void check(byte[] buf, int offset, int length)
+        {
+            sum.check(buf, offset, length);
+        }
+
+        public Object clone()
+        {
+            PlainChecksum that = new PlainChecksum();
+            that.sum = (Checksum32) sum.clone();
+            return that;
+        }
+    }
 }
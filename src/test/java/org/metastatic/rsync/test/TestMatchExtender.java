@@ -0,0 +1,76 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.ChecksumLocation;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.MatchExtender;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.Rebuilder;
+
+public class TestMatchExtender
+{
+    @Test
+    public void testScatteredEdits() throws Exception
+    {
+        Configuration conf = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[100000];
+        r.nextBytes(text1);
+        byte[] text2 = text1.clone();
+        int edits = 20;
+        // Keep the edits several blocks apart, and after the first block.
+        for (int i = 0; i < edits; i++)
+            text2[1000 + i * 5000 + r.nextInt(2000)] ^= 0x55;
+
+        List<ChecksumLocation> sums = new Generator(conf).generateSums(text1);
+        List<Delta> deltas = new Matcher(conf).hashSearch(sums, text2);
+        List<Delta> extended = MatchExtender.extend(text1, deltas);
+
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, deltas));
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, extended));
+        Assert.assertTrue(literalBytes(deltas) >= edits * conf.blockLength);
+        Assert.assertEquals(edits, literalBytes(extended));
+    }
+
+    private static long literalBytes(List<Delta> deltas)
+    {
+        long n = 0;
+        for (Delta d : deltas)
+        {
+            if (d instanceof DataBlock)
+                n += d.getBlockLength();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.metastatic.rsync.ChecksumLocation;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.DeltaSink;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.ListenerException;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.MatcherEvent;
+import org.metastatic.rsync.MatcherListener;
+import org.metastatic.rsync.MatcherStream;
+import org.metastatic.rsync.Offsets;
+import org.metastatic.rsync.Rebuilder;
+
+public class TestMatcherStream
+{
+    Configuration conf;
+    MatcherStream matcher;
+    List<Delta> deltas;
+
+    @Before
+    public void setup() throws NoSuchAlgorithmException
+    {
+        setup(false);
+    }
+
+    private void setup(boolean doRunLength) throws NoSuchAlgorithmException
+    {
+        conf = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5"))
+                .doRunLength(doRunLength).build();
+        matcher = new MatcherStream(conf);
+        deltas = new ArrayList<Delta>();
+        matcher.addListener(new MatcherListener()
+        {
+            public void update(MatcherEvent event)
+            {
+                deltas.add(event.getDelta());
+            }
+        });
+    }
+
+    @Test
+    public void testPredictsNextBlock() throws Exception
+    {
+        byte[] a = fill('a');
+        byte[] b = fill('b');
+        byte[] c = fill('c');
+        byte[] text = concat(a, b, a, c, a, b, a, c);
+        List<ChecksumLocation> sums = new Generator(conf).generateSums(text);
+        matcher.setChecksums(sums);
+        matcher.update(text);
+        matcher.doFinal();
+
+        // Every block is matched in place, although the "a" blocks and
+        // the second half are all duplicates of earlier blocks.
+        Assert.assertEquals(8, deltas.size());
+        for (int i = 0; i < deltas.size(); i++)
+        {
+            Offsets o = (Offsets) deltas.get(i);
+            Assert.assertEquals(o.getNewOffset(), o.getOldOffset());
+        }
+        Assert.assertEquals(7, matcher.getPredictedMatches());
+    }
+
+    @Test
+    public void testRunLength() throws Exception
+    {
+        setup(true);
+        byte[] text1 = new byte[100 * conf.blockLength + 123];
+        new Random(31337).nextBytes(text1);
+        byte[] text2 = text1.clone();
+        text2[50 * conf.blockLength + 7] ^= 0x55;
+        matcher.setChecksums(new Generator(conf).generateSums(text1));
+        matcher.update(text2);
+        matcher.doFinal();
+
+        // One run before the edited block, and one after it.
+        Assert.assertEquals(3, deltas.size());
+        Assert.assertEquals(new Offsets(0, 0, 50 * conf.blockLength), deltas.get(0));
+        Assert.assertEquals(50 * conf.blockLength, deltas.get(1).getWriteOffset());
+        Assert.assertEquals(51 * conf.blockLength, deltas.get(2).getWriteOffset());
+        Assert.assertEquals(49 * conf.blockLength + 123, deltas.get(2).getBlockLength());
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, deltas));
+
+        // The same, a byte at a time.
+        deltas.clear();
+        matcher.setChecksums(new Generator(conf).generateSums(text1));
+        for (byte b : text2)
+            matcher.update(b);
+        matcher.doFinal();
+        Assert.assertEquals(3, deltas.size());
+        Assert.assertArrayEquals(text2, Rebuilder.rebuild(text1, deltas));
+    }
+
+    @Test
+    public void testEventQueue() throws Exception
+    {
+        byte[] text1 = new byte[100 * conf.blockLength];
+        Random r = new Random(31337);
+        r.nextBytes(text1);
+        byte[] text2 = text1.clone();
+        for (int i = 0; i < 10; i++)
+            text2[r.nextInt(text2.length)] ^= 0x55;
+        matcher.setChecksums(new Generator(conf).generateSums(text1));
+        matcher.update(text2);
+        matcher.doFinal();
+
+        Configuration queued = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5"))
+                .eventQueueLength(4).build();
+        MatcherStream stream = new MatcherStream(queued);
+        final List<Delta> queuedDeltas = new ArrayList<Delta>();
+        final Thread caller = Thread.currentThread();
+        stream.addListener(new MatcherListener()
+        {
+            public void update(MatcherEvent event) throws ListenerException
+            {
+                if (Thread.currentThread() == caller)
+                    throw new ListenerException("called on the matching thread");
+                queuedDeltas.add(event.getDelta());
+            }
+        });
+        stream.setChecksums(new Generator(queued).generateSums(text1));
+        for (int i = 0; i < text2.length; i += 1000)
+            stream.update(text2, i, Math.min(1000, text2.length - i));
+        stream.doFinal();
+        Assert.assertEquals(deltas, queuedDeltas);
+
+        // A failing listener is reported to the matching thread.
+        stream.addListener(new MatcherListener()
+        {
+            public void update(MatcherEvent event) throws ListenerException
+            {
+                throw new ListenerException("failed");
+            }
+        });
+        stream.setChecksums(new Generator(queued).generateSums(text1));
+        int failures = 0;
+        try
+        {
+            stream.update(text2);
+        } catch (ListenerException le)
+        {
+            for (; le != null; le = le.getNext())
+            {
+                Assert.assertEquals("failed", le.getMessage());
+                failures++;
+            }
+        }
+        try
+        {
+            stream.doFinal();
+        } catch (ListenerException le)
+        {
+            for (; le != null; le = le.getNext())
+            {
+                Assert.assertEquals("failed", le.getMessage());
+                failures++;
+            }
+        }
+        Assert.assertTrue(failures > 0);
+    }
+
+    @Test
+    public void testDeltaSink() throws Exception
+    {
+        byte[] text1 = new byte[100 * conf.blockLength];
+        Random r = new Random(31337);
+        r.nextBytes(text1);
+        byte[] text2 = text1.clone();
+        for (int i = 0; i < 10; i++)
+            text2[r.nextInt(text2.length)] ^= 0x55;
+
+        // Rebuild the new data straight from the sink's arguments.
+        final byte[] rebuilt = new byte[text2.length];
+        final byte[] old = text1;
+        final List<Delta> sunk = new ArrayList<Delta>();
+        DeltaSink sink = new DeltaSink()
+        {
+            public void onCopy(long oldOffset, long newOffset, int length)
+            {
+                System.arraycopy(old, (int) oldOffset, rebuilt, (int) newOffset, length);
+                sunk.add(new Offsets(oldOffset, newOffset, length));
+            }
+
+            public void onLiteral(byte[] buf, int off, int len, long newOffset)
+            {
+                System.arraycopy(buf, off, rebuilt, (int) newOffset, len);
+                sunk.add(new DataBlock(newOffset, buf, off, len));
+            }
+        };
+        matcher.addSink(sink);
+        matcher.setChecksums(new Generator(conf).generateSums(text1));
+        matcher.update(text2);
+        matcher.doFinal();
+        Assert.assertArrayEquals(text2, rebuilt);
+        Assert.assertEquals(deltas, sunk);
+        Assert.assertTrue(matcher.removeSink(sink));
+
+        sunk.clear();
+        Arrays.fill(rebuilt, (byte) 0);
+        new Matcher(conf).hashSearch(new Generator(conf).generateSums(text1),
+                text2, 0, text2.length, sink);
+        Assert.assertArrayEquals(text2, rebuilt);
+        Assert.assertEquals(deltas, sunk);
+    }
+
+    private byte[] fill(char ch)
+    {
+        byte[] block = new byte[conf.blockLength];
+        Arrays.fill(block, (byte) ch);
+        return block;
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            out.write(part);
+        return out.toByteArray();
+    }
+}
@@ -24,6 +24,7 @@ THE SOFTWARE. */
 
 package org.metastatic.rsync.test;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Assert;
@@ -314,4 +315,127 @@ public class TestOfChecksum32
             Assert.fail("TestRoll");
         }
     }
+
+    @Test
+    public void testCheckWindows()
+    {
+        Random r = new Random(31337);
+        for (int i = 0; i < 10; i++)
+        {
+            Checksum32 c1 = new Checksum32(31);
+            Checksum32 c2 = new Checksum32(31);
+            int blockLength = 1 + r.nextInt(700);
+            byte[] buf = new byte[blockLength + r.nextInt(2000)];
+            r.nextBytes(buf);
+            int[] sums = new int[buf.length - blockLength + 1];
+            c1.checkWindows(buf, 0, buf.length, blockLength, sums);
+            c2.check(buf, 0, blockLength);
+            Assert.assertEquals(c2.getValue(), sums[0]);
+            for (int j = 1; j < sums.length; j++)
+            {
+                c2.roll(buf[j + blockLength - 1]);
+                Assert.assertEquals(c2.getValue(), sums[j]);
+            }
+            Assert.assertEquals(c2.getValue(), c1.getValue());
+
+            // Rolling must continue seamlessly from the last window.
+            byte[] more = Arrays.copyOf(buf, buf.length + 50);
+            for (int j = buf.length; j < more.length; j++)
+                more[j] = (byte) r.nextInt();
+            int[] rolled = new int[50];
+            c1.rollWindows(more, buf.length, 50, rolled);
+            for (int j = 0; j < 50; j++)
+            {
+                c2.roll(more[buf.length + j]);
+                Assert.assertEquals(c2.getValue(), rolled[j]);
+            }
+            Assert.assertEquals(c2.getValue(), c1.getValue());
+            c1.roll(more[more.length - blockLength], (byte) 7);
+            c2.roll((byte) 7);
+            Assert.assertEquals(c2.getValue(), c1.getValue());
+        }
+    }
+
+    @Test
+    public void testCheckNoCopy()
+    {
+        Random r = new Random(31338);
+        for (int i = 0; i < 10; i++)
+        {
+            Checksum32 c1 = new Checksum32(31);
+            Checksum32 c2 = new Checksum32(31);
+            int blockLength = 1 + r.nextInt(700);
+            byte[] buf = new byte[blockLength + r.nextInt(2000)];
+            r.nextBytes(buf);
+            c1.checkNoCopy(buf, 0, blockLength);
+            c2.check(buf, 0, blockLength);
+            Assert.assertEquals(c2.getValue(), c1.getValue());
+            for (int j = blockLength; j < buf.length; j++)
+            {
+                c1.roll(buf[j - blockLength], buf[j]);
+                c2.roll(buf[j]);
+                Assert.assertEquals(c2.getValue(), c1.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testClone()
+    {
+        byte[] buf = new byte[1000];
+        new Random(31339).nextBytes(buf);
+        Checksum32 c1 = new Checksum32(31)
+        {
+        };
+        c1.check(buf, 0, 100);
+        Checksum32 c2 = (Checksum32) c1.clone();
+        Assert.assertSame(c1.getClass(), c2.getClass());
+        Assert.assertEquals(c1.getValue(), c2.getValue());
+        // Rolling one must not disturb the other's copy of the window.
+        for (int j = 100; j < 200; j++)
+            c1.roll(buf[j]);
+        for (int j = 100; j < 200; j++)
+            c2.roll(buf[j]);
+        Assert.assertEquals(c1.getValue(), c2.getValue());
+    }
+
+    @Test
+    public void testMixedRolls()
+    {
+        byte[] buf = new byte[64];
+        new Random(31340).nextBytes(buf);
+        Checksum32 c1 = new Checksum32(31);
+        Checksum32 c2 = new Checksum32(31);
+
+        // roll(byte) may be followed by roll(byte, byte)...
+        c1.check(buf, 0, 16);
+        c1.roll(buf[16]);
+        c1.roll(buf[1], buf[17]);
+        c2.check(buf, 2, 16);
+        Assert.assertEquals(c2.getValue(), c1.getValue());
+
+        // ...but not the other way round: the window copy is out of date.
+        c1.check(buf, 0, 16);
+        c1.roll(buf[0], buf[16]);
+        try
+        {
+            c1.roll(buf[17]);
+            Assert.fail("roll(byte) after roll(byte, byte)");
+        } catch (IllegalStateException expected)
+        {
+        }
+        try
+        {
+            c1.trim();
+            Assert.fail("trim() after roll(byte, byte)");
+        } catch (IllegalStateException expected)
+        {
+        }
+
+        // A new check() restores it.
+        c1.check(buf, 2, 16);
+        c1.roll(buf[18]);
+        c2.check(buf, 3, 16);
+        Assert.assertEquals(c2.getValue(), c1.getValue());
+    }
 }
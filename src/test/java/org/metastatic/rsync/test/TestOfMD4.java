@@ -54,6 +54,7 @@ import java.security.Security;
 import org.junit.Assert;
 import org.junit.Test;
 import org.metastatic.rsync.JarsyncProvider;
+import org.metastatic.rsync.MD4;
 import org.metastatic.rsync.Util;
 
 /**
@@ -207,4 +208,22 @@ public class TestOfMD4
             Assert.fail("TestOfMD4.testCloning");
         }
     }
+
+    @Test
+    public void testDigestInto() throws Exception
+    {
+        Security.addProvider(new JarsyncProvider());
+        MessageDigest md4 = MessageDigest.getInstance("MD4", "JARSYNC");
+        byte[] out = new byte[MD4.DIGEST_LENGTH + 2];
+        for (int len = 0; len < 200; len++)
+        {
+            byte[] in = new byte[len];
+            for (int i = 0; i < len; i++) in[i] = (byte) (i * 31 + len);
+            byte[] exp = md4.digest(in);
+            md4.update(in);
+            Assert.assertEquals(MD4.DIGEST_LENGTH, md4.digest(out, 1, MD4.DIGEST_LENGTH));
+            Assert.assertEquals("length " + len, Util.toHexString(exp),
+                    Util.toHexString(out, 1, MD4.DIGEST_LENGTH));
+        }
+    }
 }
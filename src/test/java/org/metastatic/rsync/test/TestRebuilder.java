@@ -0,0 +1,269 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.DataBlock;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.MappedRebuilderStream;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.Offsets;
+import org.metastatic.rsync.ParallelRebuilder;
+import org.metastatic.rsync.Rdiff;
+import org.metastatic.rsync.Rebuilder;
+import org.metastatic.rsync.RebuilderEvent;
+import org.metastatic.rsync.RebuilderListener;
+import org.metastatic.rsync.RebuilderStream;
+
+public class TestRebuilder
+{
+    byte[] text1;
+    byte[] text2;
+    List<Delta> deltas;
+    File oldFile;
+    File newFile;
+
+    @Before
+    public void setup() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5"))
+                .doRunLength(true).build();
+        Random r = new Random(31337);
+        text1 = new byte[1 << 20];
+        r.nextBytes(text1);
+        text2 = new byte[text1.length + 5000];
+        System.arraycopy(text1, 400000, text2, 0, text1.length - 400000);
+        r.nextBytes(text2);
+        System.arraycopy(text1, 0, text2, text1.length - 400000 + 5000, 400000);
+        System.arraycopy(text1, 400000, text2, 0, text1.length - 400000 - 3000);
+        deltas = new ArrayList<Delta>(new Matcher(config).hashSearch(
+                new Generator(config).generateSums(text1), text2));
+
+        oldFile = File.createTempFile("jarsync", ".old");
+        newFile = File.createTempFile("jarsync", ".new");
+        FileOutputStream out = new FileOutputStream(oldFile);
+        out.write(text1);
+        out.close();
+    }
+
+    @After
+    public void teardown()
+    {
+        oldFile.delete();
+        newFile.delete();
+    }
+
+    @Test
+    public void testRebuildStream() throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Rebuilder.rebuild(out, oldFile, deltas);
+        Assert.assertArrayEquals(text2, out.toByteArray());
+
+        FileOutputStream fout = new FileOutputStream(newFile);
+        Rebuilder.rebuild(fout, oldFile, deltas);
+        fout.close();
+        Assert.assertArrayEquals(text2, Files.readAllBytes(newFile.toPath()));
+    }
+
+    @Test
+    public void testRebuildFile() throws Exception
+    {
+        Rebuilder.rebuildFile(oldFile, newFile, deltas);
+        Assert.assertArrayEquals(text2, Files.readAllBytes(newFile.toPath()));
+
+        // With a listener, long copies are sent in pieces, in order.
+        newFile.delete();
+        final ByteArrayOutputStream seen = new ByteArrayOutputStream();
+        Rebuilder.rebuildFile(oldFile, newFile, deltas, new RebuilderListener()
+        {
+            public void update(RebuilderEvent event)
+            {
+                Assert.assertEquals(seen.size(), event.getOffset());
+                Assert.assertTrue(event.getData().length <= Rebuilder.COPY_BUFFER_SIZE);
+                seen.write(event.getData(), 0, event.getData().length);
+            }
+        });
+        Assert.assertArrayEquals(text2, Files.readAllBytes(newFile.toPath()));
+        Assert.assertArrayEquals(text2, seen.toByteArray());
+    }
+
+    @Test
+    public void testParallelRebuildFile() throws Exception
+    {
+        // The file is split into ranges in the middle of copies.
+        ForkJoinPool pool = new ForkJoinPool(4);
+        new ParallelRebuilder(pool).rebuildFile(oldFile, newFile, deltas);
+        pool.shutdown();
+        Assert.assertArrayEquals(text2, Files.readAllBytes(newFile.toPath()));
+
+        deltas.add(new Offsets(text1.length - 10, text2.length, 20));
+        try
+        {
+            ParallelRebuilder.getDefault().rebuildFile(oldFile, newFile, deltas);
+            Assert.fail("copied past the end of the original file");
+        } catch (EOFException expected)
+        {
+        }
+    }
+
+    @Test
+    public void testMappedStream() throws Exception
+    {
+        // Small segments, so that copies straddle them and evict each other.
+        MappedRebuilderStream stream = new MappedRebuilderStream(4096, 0, 2);
+        stream.setBasisFile(oldFile);
+        final byte[] rebuilt = new byte[text2.length];
+        stream.addListener(new RebuilderListener()
+        {
+            public void update(RebuilderEvent event)
+            {
+                event.getBuffer().get(rebuilt, (int) event.getOffset(), event.getLength());
+            }
+        });
+        for (Delta delta : deltas)
+            stream.update(delta);
+        stream.doFinal();
+        Assert.assertArrayEquals(text2, rebuilt);
+    }
+
+    @Test
+    public void testBatchedStream() throws Exception
+    {
+        // Split the copies into short pieces, and apply them out of order.
+        List<Delta> pieces = new ArrayList<Delta>();
+        for (Delta delta : deltas)
+        {
+            if (!(delta instanceof Offsets))
+            {
+                pieces.add(delta);
+                continue;
+            }
+            Offsets o = (Offsets) delta;
+            for (int off = 0; off < o.getBlockLength(); off += 700)
+                pieces.add(new Offsets(o.getOldOffset() + off, o.getNewOffset() + off,
+                        Math.min(700, o.getBlockLength() - off)));
+        }
+        Collections.shuffle(pieces, new Random(7));
+        RebuilderStream stream = new RebuilderStream(1 << 16, 256);
+        stream.setBasisFile(oldFile);
+        final byte[] rebuilt = new byte[text2.length];
+        stream.addListener(new RebuilderListener()
+        {
+            public void update(RebuilderEvent event)
+            {
+                event.getBuffer().get(rebuilt, (int) event.getOffset(), event.getLength());
+            }
+        });
+        for (Delta delta : pieces)
+            stream.update(delta);
+        stream.doFinal();
+        Assert.assertArrayEquals(text2, rebuilt);
+    }
+
+    @Test
+    public void testRdiffPatch() throws Exception
+    {
+        Rdiff rdiff = new Rdiff();
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        rdiff.writeDeltas(deltas, delta);
+
+        // Streamed from the delta, with no intermediate file.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        rdiff.rebuildFile(oldFile, new ByteArrayInputStream(delta.toByteArray()), out);
+        Assert.assertArrayEquals(text2, out.toByteArray());
+
+        out.reset();
+        rdiff.rebuildFile(oldFile, rdiff.readDeltas(
+                new ByteArrayInputStream(delta.toByteArray())), out);
+        Assert.assertArrayEquals(text2, out.toByteArray());
+    }
+
+    @Test
+    public void testRebuildInPlace() throws Exception
+    {
+        // The two halves of the file trade places, so the copies form a cycle.
+        Rebuilder.rebuildFileInPlace(oldFile, deltas);
+        Assert.assertArrayEquals(text2, Files.readAllBytes(oldFile.toPath()));
+
+        // With no memory to spare, the cycle is broken through a spill file.
+        FileOutputStream out = new FileOutputStream(oldFile);
+        out.write(text1);
+        out.close();
+        Rebuilder.rebuildFileInPlace(oldFile, deltas, 0);
+        Assert.assertArrayEquals(text2, Files.readAllBytes(oldFile.toPath()));
+    }
+
+    @Test
+    public void testRebuildInPlaceChain() throws Exception
+    {
+        // Each block moves up by one, so every copy must wait on the next.
+        int blocks = 200000;
+        int blockLength = 4;
+        byte[] expected = new byte[(blocks + 1) * blockLength];
+        byte[] original = new byte[blocks * blockLength];
+        new Random(42).nextBytes(original);
+        System.arraycopy(original, 0, expected, blockLength, original.length);
+        List<Delta> chain = new ArrayList<Delta>();
+        for (int i = 0; i < blocks; i++)
+            chain.add(new Offsets((long) i * blockLength, (long) (i + 1) * blockLength, blockLength));
+        chain.add(new DataBlock(0, expected, 0, blockLength));
+        FileOutputStream out = new FileOutputStream(oldFile);
+        out.write(original);
+        out.close();
+        Rebuilder.rebuildFileInPlace(oldFile, chain);
+        Assert.assertArrayEquals(expected, Files.readAllBytes(oldFile.toPath()));
+    }
+
+    @Test
+    public void testCopyPastEnd() throws Exception
+    {
+        deltas.add(new Offsets(text1.length - 10, text2.length, 20));
+        try
+        {
+            Rebuilder.rebuild(new ByteArrayOutputStream(), oldFile, deltas);
+            Assert.fail("copied past the end of the original file");
+        } catch (EOFException expected)
+        {
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.SignatureCache;
+import org.metastatic.rsync.SignatureTable;
+
+public class TestSignatureCache
+{
+    File dir;
+    File cacheDir;
+    Configuration config;
+
+    @Before
+    public void setup() throws Exception
+    {
+        dir = Files.createTempDirectory("jarsync").toFile();
+        cacheDir = new File(dir, "cache");
+        config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+    }
+
+    @Test
+    public void testHitAndMiss() throws Exception
+    {
+        File f = write("a", 100000);
+        SignatureCache cache = new SignatureCache(cacheDir, 1 << 20);
+        Assert.assertNull(cache.get(f, config));
+        SignatureTable sums = cache.generateSums(f, config);
+        Assert.assertEquals(new Generator(config).generateSums(f), sums);
+        Assert.assertEquals(sums, cache.get(f, config));
+
+        // A new cache in the same directory finds the entry.
+        cache = new SignatureCache(cacheDir, 1 << 20);
+        Assert.assertEquals(sums, cache.get(f, config));
+
+        // Other parameters do not.
+        Configuration other = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).blockLength(1000).build();
+        Assert.assertNull(cache.get(f, other));
+
+        // Nor does a changed file.
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(90000);
+        raf.close();
+        Assert.assertNull(cache.get(f, config));
+        cleanup();
+    }
+
+    @Test
+    public void testCorruptEntry() throws Exception
+    {
+        File f = write("a", 100000);
+        SignatureCache cache = new SignatureCache(cacheDir, 1 << 20);
+        cache.generateSums(f, config);
+        File[] entries = cacheDir.listFiles();
+        Assert.assertEquals(1, entries.length);
+        RandomAccessFile raf = new RandomAccessFile(entries[0], "rw");
+        raf.seek(raf.length() / 2);
+        raf.write(raf.read() ^ 1);
+        raf.close();
+        Assert.assertNull(cache.get(f, config));
+        Assert.assertFalse(entries[0].exists());
+        cleanup();
+    }
+
+    @Test
+    public void testBadCount() throws Exception
+    {
+        File f = write("a", 100000);
+        SignatureCache cache = new SignatureCache(cacheDir, 1 << 20);
+        long[] lengths = {Long.MAX_VALUE, Integer.MAX_VALUE - 1L, 1L << 40};
+        for (long length : lengths)
+        {
+            cache.generateSums(f, config);
+            File entry = cacheDir.listFiles()[0];
+            // The length of the file follows the magic, the key and the
+            // block and strong lengths.
+            RandomAccessFile raf = new RandomAccessFile(entry, "rw");
+            raf.seek(4);
+            int keyLength = raf.readUnsignedShort();
+            raf.seek(6 + keyLength);
+            raf.writeInt(1);
+            raf.writeInt(Integer.MAX_VALUE);
+            raf.writeLong(length);
+            raf.close();
+            Assert.assertNull(cache.get(f, config));
+            Assert.assertFalse(entry.exists());
+        }
+        cleanup();
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        // Each entry is a little over 143 blocks * 20 bytes, so two fit.
+        SignatureCache cache = new SignatureCache(cacheDir, 7000);
+        File a = write("a", 100000);
+        File b = write("b", 100000);
+        File c = write("c", 100000);
+        cache.generateSums(a, config);
+        cache.generateSums(b, config);
+        // Make b the least recently used.
+        for (File e : cacheDir.listFiles())
+            e.setLastModified(e.lastModified() - 10000);
+        Assert.assertNotNull(cache.get(a, config));
+        cache.generateSums(c, config);
+        Assert.assertNotNull(cache.get(a, config));
+        Assert.assertNull(cache.get(b, config));
+        Assert.assertNotNull(cache.get(c, config));
+        cleanup();
+    }
+
+    private File write(String name, int length) throws IOException
+    {
+        File f = new File(dir, name);
+        byte[] data = new byte[length];
+        new Random(name.hashCode()).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(data);
+        out.close();
+        return f;
+    }
+
+    private void cleanup()
+    {
+        for (File f : cacheDir.listFiles())
+            f.delete();
+        cacheDir.delete();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.metastatic.rsync.ChecksumLocation;
+import org.metastatic.rsync.ChecksumPair;
+import org.metastatic.rsync.SignatureIndex;
+import org.metastatic.rsync.SignatureTable;
+
+public class TestSignatureIndex
+{
+    SignatureIndex index;
+
+    @Before
+    public void setup()
+    {
+        index = new SignatureIndex(8);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        Assert.assertTrue(index.isEmpty());
+        Assert.assertFalse(index.containsWeak(0x31337));
+        Assert.assertEquals(-1, index.get(0x31337, new byte[8], 0, 8));
+    }
+
+    @Test
+    public void testAddGet()
+    {
+        byte[] strong = "xxxxxxxxyyyyyyyy".getBytes();
+        index.add(new ChecksumLocation(new ChecksumPair(0xdeadbeef, strong), 700));
+        Assert.assertTrue(index.containsWeak(0xdeadbeef));
+        // Only the full 32 bits of the weak sum match.
+        Assert.assertFalse(index.containsWeak(0x0000beef));
+        Assert.assertEquals(700, index.get(0xdeadbeef, strong, 0, 8));
+        Assert.assertEquals(-1, index.get(0xdeadbeef, strong, 8, 8));
+        Assert.assertEquals(-1, index.get(0xdeadbeef, strong, 0, 7));
+    }
+
+    @Test
+    public void testManyEntries()
+    {
+        Random r = new Random(31337);
+        int n = 10000;
+        int[] weak = new int[n];
+        byte[] strong = new byte[n * 8];
+        for (int i = 0; i < n; i++)
+            weak[i] = r.nextInt(n / 4); // force weak sum collisions
+        r.nextBytes(strong);
+        for (int i = 0; i < n; i++)
+            Assert.assertEquals(i, index.add(weak[i], strong, i * 8, i * 700L));
+        Assert.assertEquals(n, index.size());
+        for (int i = 0; i < n; i++)
+        {
+            Assert.assertEquals(i, index.find(weak[i], strong, i * 8, 8));
+            Assert.assertEquals(i * 700L, index.getOffset(i));
+            Assert.assertEquals(weak[i], index.getWeak(i));
+        }
+
+        index.clear();
+        Assert.assertTrue(index.isEmpty());
+        Assert.assertFalse(index.containsWeak(weak[0]));
+    }
+
+    @Test
+    public void testDuplicates()
+    {
+        byte[] strong = new byte[8];
+        index.add(42, strong, 0, 0);
+        index.add(42, strong, 0, 700);
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(0, index.get(42, strong, 0, 8));
+
+        // Many identical blocks, across resizes, keep the first entry
+        // and every offset.
+        for (int i = 2; i < 100000; i++)
+            index.add(42, strong, 0, i * 700L);
+        Assert.assertEquals(100000, index.size());
+        Assert.assertEquals(0, index.find(42, strong, 0, 8));
+        Assert.assertEquals(99999 * 700L, index.getOffset(99999));
+        Assert.assertFalse(index.containsWeak(43));
+    }
+
+    @Test
+    public void testTableInPlace()
+    {
+        Random r = new Random(31337);
+        int n = 150000;
+        SignatureTable table = new SignatureTable(700, 16, 1000);
+        byte[] strong = new byte[16];
+        int[] weak = new int[n];
+        byte[][] strongs = new byte[n][];
+        for (int i = 0; i < n; i++)
+        {
+            weak[i] = r.nextInt();
+            r.nextBytes(strong);
+            strongs[i] = strong.clone();
+            table.add(weak[i], strong, 0, 700);
+        }
+        // Strong sums longer than the index's are compared by prefix.
+        index.addAll(table);
+        Assert.assertEquals(n, index.size());
+        for (int i = 0; i < n; i += 7)
+        {
+            Assert.assertEquals(i, index.find(weak[i], strongs[i], 0, 8));
+            Assert.assertEquals(1000 + i * 700L, index.getOffset(i));
+        }
+
+        // Adding more copies the table's sums, keeping the entries.
+        byte[] extra = new byte[8];
+        Assert.assertEquals(n, index.add(42, extra, 0, 5));
+        for (int i = 0; i < n; i += 7)
+            Assert.assertEquals(i, index.find(weak[i], strongs[i], 0, 8));
+        Assert.assertEquals(1000 + (n - 1) * 700L, index.getOffset(n - 1));
+        Assert.assertEquals(n, index.find(42, extra, 0, 8));
+        Assert.assertEquals(5, index.getOffset(n));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTooMany()
+    {
+        index.ensureCapacity(SignatureIndex.MAX_ENTRIES + 1);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.ChecksumLocation;
+import org.metastatic.rsync.ChecksumPair;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.GeneratorStream;
+import org.metastatic.rsync.SignatureTable;
+
+public class TestSignatureTable
+{
+    @Test
+    public void testAddGet()
+    {
+        SignatureTable table = new SignatureTable(700, 8, 100);
+        byte[] strong = "xxxxxxxxyyyyyyyy".getBytes();
+        table.add(0xdeadbeef, strong, 0, 700);
+        table.add(new ChecksumLocation(new ChecksumPair(0x31337, strong, 8, 8), 800, 123));
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals(new ChecksumLocation(new ChecksumPair(0xdeadbeef, strong, 0, 8), 100, 700, 0),
+                table.get(0));
+        Assert.assertEquals(new ChecksumLocation(new ChecksumPair(0x31337, strong, 8, 8), 800, 123, 1),
+                table.get(1));
+        Assert.assertEquals(123, table.getLength(1));
+        try
+        {
+            table.add(0, strong, 0, 700);
+            Assert.fail("added a block after a short one");
+        } catch (IllegalStateException expected)
+        {
+        }
+    }
+
+    @Test
+    public void testManySegments()
+    {
+        // Enough signatures to fill several segments.
+        int n = 200000;
+        SignatureTable table = new SignatureTable(16, 4);
+        byte[] strong = new byte[4];
+        for (int i = 0; i < n; i++)
+        {
+            strong[0] = (byte) i;
+            strong[3] = (byte) (i >>> 16);
+            table.add(i * 31, strong, 0, 16);
+        }
+        Assert.assertEquals(n, table.size());
+        for (int i = 0; i < n; i += 997)
+        {
+            Assert.assertEquals(i * 31, table.getWeak(i));
+            Assert.assertEquals((byte) i, table.getStrong(i)[0]);
+            Assert.assertEquals((byte) (i >>> 16), table.getStrong(i)[3]);
+            Assert.assertEquals(i * 16L, table.getOffset(i));
+        }
+    }
+
+    @Test
+    public void testOutOfOrder()
+    {
+        SignatureTable table = new SignatureTable(700, 8);
+        try
+        {
+            table.add(new ChecksumLocation(new ChecksumPair(0, new byte[8]), 700));
+            Assert.fail("added a block at the wrong offset");
+        } catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    @Test
+    public void testFromGeneratorStream() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        byte[] corpus = new byte[100000];
+        new Random(31337).nextBytes(corpus);
+
+        SignatureTable table = new SignatureTable(config.blockLength, config.strongSumLength);
+        GeneratorStream stream = new GeneratorStream(config);
+        stream.addListener(table);
+        stream.update(corpus);
+        stream.doFinal();
+
+        List<ChecksumLocation> expected = new ArrayList<ChecksumLocation>(
+                new Generator(config).generateSums(corpus));
+        Assert.assertEquals(expected, table);
+        Assert.assertEquals(table, expected);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.Configuration;
+import org.metastatic.rsync.Delta;
+import org.metastatic.rsync.Generator;
+import org.metastatic.rsync.Matcher;
+import org.metastatic.rsync.Rebuilder;
+import org.metastatic.rsync.RebuilderEvent;
+import org.metastatic.rsync.SigningRebuilderListener;
+
+public class TestSigningRebuilderListener
+{
+    @Test
+    public void testRebuildFile() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        Random r = new Random(31337);
+        byte[] text1 = new byte[100000];
+        r.nextBytes(text1);
+        byte[] text2 = new byte[120000];
+        System.arraycopy(text1, 50000, text2, 0, 50000);
+        r.nextBytes(text2);
+        System.arraycopy(text1, 0, text2, 70000, 50000);
+        List<Delta> deltas = new Matcher(config).hashSearch(new Generator(config).generateSums(text1), text2);
+
+        File oldFile = File.createTempFile("jarsync", ".old");
+        File newFile = File.createTempFile("jarsync", ".new");
+        try
+        {
+            FileOutputStream out = new FileOutputStream(oldFile);
+            out.write(text1);
+            out.close();
+            SigningRebuilderListener signer = new SigningRebuilderListener(config,
+                    MessageDigest.getInstance("SHA-256"));
+            Rebuilder.rebuildFile(oldFile, newFile, deltas, signer);
+            signer.doFinal();
+
+            Assert.assertEquals(new Generator(config).generateSums(newFile), signer.getSignatures());
+            Assert.assertEquals(new Generator(config).generateSums(text2), signer.getSignatures());
+            Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(text2),
+                    signer.getFileDigest());
+        } finally
+        {
+            oldFile.delete();
+            newFile.delete();
+        }
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception
+    {
+        Configuration config = Configuration.Builder.create()
+                .strongSum(MessageDigest.getInstance("MD5")).build();
+        byte[] data = new byte[5000];
+        new Random(31337).nextBytes(data);
+        SigningRebuilderListener signer = new SigningRebuilderListener(config, null);
+        signer.update(new RebuilderEvent(data, 3000, 2000, 3000));
+        signer.update(new RebuilderEvent(data, 1000, 2000, 1000));
+        signer.update(new RebuilderEvent(data, 0, 1000, 0));
+        signer.doFinal();
+        Assert.assertEquals(new Generator(config).generateSums(data), signer.getSignatures());
+        Assert.assertNull(signer.getFileDigest());
+    }
+}
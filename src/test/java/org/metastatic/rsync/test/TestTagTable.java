@@ -0,0 +1,66 @@
+/*
+
+Copyright (C) 2014 Casey Marshall
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE. */
+
+package org.metastatic.rsync.test;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.metastatic.rsync.TagTable;
+
+public class TestTagTable
+{
+    @Test
+    public void testNoFalseNegatives()
+    {
+        TagTable tags = new TagTable();
+        Random r = new Random(31337);
+        int n = 100000;
+        int[] weak = new int[n];
+        tags.clear(n);
+        for (int i = 0; i < n; i++)
+        {
+            weak[i] = r.nextInt();
+            tags.add(weak[i]);
+        }
+        for (int i = 0; i < n; i++)
+            Assert.assertTrue(tags.mightContain(weak[i]));
+        int falsePositives = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (tags.mightContain(r.nextInt()))
+                falsePositives++;
+        }
+        Assert.assertTrue("too many false positives: " + falsePositives, falsePositives < n / 8);
+    }
+
+    @Test
+    public void testClear()
+    {
+        TagTable tags = new TagTable();
+        tags.add(0xdeadbeef);
+        Assert.assertTrue(tags.mightContain(0xdeadbeef));
+        tags.clear(0);
+        Assert.assertFalse(tags.mightContain(0xdeadbeef));
+    }
+}